@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist.bench;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import photodist.BufferedImageSource;
+import photodist.Geometry;
+import photodist.PhotoPanel;
+
+/**
+ * Data shared by the JMH benchmarks of the geometry and rendering hot
+ * paths.  Build and run these with
+ *
+ *   gradle jmh [-PjmhArgs='NAME -rf csv -rff results.csv']
+ *
+ * where JMH's -rf and -rff options write results to a CSV file so that
+ * numbers can be tracked from release to release.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public final class Benchmarks {
+
+    /**
+     * Number of points in each randomly generated path.
+     */
+    static final int PATH_LENGTH = 100;
+
+    static final int PANEL_WIDTH = 640, PANEL_HEIGHT = 480;
+
+    private Benchmarks() { }
+
+    /**
+     * @param imageSize size of the form WIDTHxHEIGHT
+     * @return width and height
+     */
+    static int[] parseSize(String imageSize) {
+        int sep = imageSize.indexOf('x');
+        return new int[] {
+            Integer.parseInt(imageSize.substring(0, sep)),
+            Integer.parseInt(imageSize.substring(sep+1))};
+    }
+
+    /**
+     * Create geometry containing n random point pairs.
+     */
+    static Geometry createGeometry(int n, int width, int height, long seed) {
+        Random random = new Random(seed);
+        Geometry geom = new Geometry();
+        geom.setImageSize(width, height);
+
+        int[] xL = new int[PATH_LENGTH], yL = new int[PATH_LENGTH];
+        int[] xR = new int[PATH_LENGTH], yR = new int[PATH_LENGTH];
+        geom.beginBatch();
+        for (int added=0; added<n; added+=PATH_LENGTH) {
+            int len = Math.min(PATH_LENGTH, n-added);
+            if (len < PATH_LENGTH) {
+                xL = new int[len]; yL = new int[len];
+                xR = new int[len]; yR = new int[len];
+            }
+            int x = random.nextInt(width), y = random.nextInt(height);
+            for (int i=0; i<len; i++) {
+                x = Math.min(Math.max(x + random.nextInt(21) - 10, 0), width-1);
+                y = Math.min(Math.max(y + random.nextInt(21) - 10, 0), height-1);
+                xL[i] = x;
+                yL[i] = y;
+                xR[i] = Math.min(x + 1 + random.nextInt(50), width-1);
+                yR[i] = y;
+            }
+            geom.addPath(xL, yL, xR, yR);
+        }
+        geom.endBatch();
+
+        return geom;
+    }
+
+    /**
+     * Create panel displaying a blank image with n random point pairs.
+     */
+    static PhotoPanel createPanel(int n, int width, int height) {
+        Geometry geom = createGeometry(n, width, height, 5);
+        PhotoPanel panel = new PhotoPanel(geom, 0);
+        panel.setImageSource(new BufferedImageSource(
+            new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB)));
+        panel.setSize(PANEL_WIDTH, PANEL_HEIGHT);
+        return panel;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist.bench;
+
+import java.io.File;
+import java.io.IOException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import photodist.Exporters;
+import photodist.Geometry;
+import photodist.GeometryExporter;
+
+/**
+ * Export of triangulated points to a file, in each registered format.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class ExportBenchmark extends GeometryBenchmark {
+
+    @Param({"txt", "ply", "raw32", "raw64"})
+    public String format;
+
+    Geometry geom;
+    GeometryExporter exporter;
+    File file;
+
+    @Setup
+    public void setUp() throws IOException {
+        readImageSize();
+        geom = Benchmarks.createGeometry(points, width, height, 4);
+        geom.triangulate(width, height);
+        exporter = Exporters.forName(format);
+        file = File.createTempFile("photodist-bench", "." + exporter.getExtension());
+    }
+
+    @Benchmark
+    public long export3DGeometry() throws IOException {
+        geom.export3DGeometry(exporter, file);
+        return file.length();
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+}
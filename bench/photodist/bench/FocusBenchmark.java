@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import photodist.Geometry;
+
+/**
+ * Hit testing of the point nearest the mouse, alternating between left
+ * and right images.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FocusBenchmark extends GeometryBenchmark {
+
+    static final int QUERIES = 1 << 16;
+
+    Geometry geom;
+    int[] qx, qy;
+    int query;
+
+    @Setup
+    public void setUp() {
+        readImageSize();
+        geom = Benchmarks.createGeometry(points, width, height, 2);
+
+        Random random = new Random(3);
+        qx = new int[QUERIES];
+        qy = new int[QUERIES];
+        for (int i=0; i<QUERIES; i++) {
+            qx[i] = random.nextInt(width);
+            qy[i] = random.nextInt(height);
+        }
+    }
+
+    @Benchmark
+    public int updateFocusedPoint() {
+        int i = query++ & (QUERIES-1);
+        geom.updateFocusedPoint(qx[i], qy[i], i & 1);
+        return geom.getFocusedIndex();
+    }
+}
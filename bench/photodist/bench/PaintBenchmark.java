@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist.bench;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Setup;
+import photodist.PhotoPanel;
+
+/**
+ * Offscreen painting of a photo panel.  Cold frames are painted from a
+ * different view to the last, so the path overlay is redrawn, while
+ * warm frames only draw the cached overlay.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class PaintBenchmark extends GeometryBenchmark {
+
+    /**
+     * Views (zoom factor and panel x and y of zoom centre) cycled
+     * through by cold frames, covering whole-image views as well as
+     * close-ups in which most paths are culled.
+     */
+    static final double[][] VIEWS = {
+        {1, 320, 240}, {2, 100, 100}, {4, 500, 380}, {16, 320, 240},
+        {1.5, 600, 50}, {64, 200, 400}, {8, 40, 460}, {3, 320, 240}};
+
+    PhotoPanel panel;
+    BufferedImage target;
+    int view;
+
+    @Setup
+    public void setUp() {
+        readImageSize();
+        panel = Benchmarks.createPanel(points, width, height);
+        target = new BufferedImage(Benchmarks.PANEL_WIDTH,
+            Benchmarks.PANEL_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+
+        setView(VIEWS[0]);
+        paint();
+    }
+
+    void setView(double[] v) {
+        panel.resetView();
+        panel.zoomAbout(v[1], v[2], v[0]);
+    }
+
+    void paint() {
+        Graphics2D g2d = target.createGraphics();
+        panel.paint(g2d);
+        g2d.dispose();
+    }
+
+    @Benchmark
+    public BufferedImage paintCold() {
+        view = (view + 1) % VIEWS.length;
+        setView(VIEWS[view]);
+        paint();
+        return target;
+    }
+
+    @Benchmark
+    public BufferedImage paintWarm() {
+        paint();
+        return target;
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Setup;
+import photodist.Geometry;
+import photodist.PointStore;
+
+/**
+ * Triangulation of every point in a geometry.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class TriangulateBenchmark extends GeometryBenchmark {
+
+    Geometry geom;
+
+    @Setup
+    public void setUp() {
+        readImageSize();
+        geom = Benchmarks.createGeometry(points, width, height, 1);
+    }
+
+    @Benchmark
+    public PointStore triangulate() {
+        geom.triangulate(width, height);
+        return geom.getPoints();
+    }
+}
@@ -0,0 +1,763 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Headless processing of every left/right image pair in a directory.
+ * Pairs are files named NAME_L.EXT and NAME_R.EXT; correspondences are
+ * taken from a session file NAME.pds alongside them, if present, and/or
+ * found by matching a regular grid of left image points against the
+ * right image.  The resulting 3D points are written to NAME.EXT in the
+ * output directory, with EXT determined by the chosen exporter.
+ *
+ * Pairs pass through four stages (decode, match, triangulate and
+ * export), each served by its own pool of worker threads and connected
+ * to the next by a bounded queue.  A full queue blocks the stage
+ * feeding it, so that decoding cannot run ahead of the slower stages.
+ * Decoded images are released as soon as matching is complete, so at
+ * most decoders + queueCapacity + matchers pairs hold images at any
+ * one time.  Matching and triangulation of a single pair are themselves
+ * split across a fork-join pool, so one worker in each of these stages
+ * is usually enough to occupy every core.
+ *
+ * Failure to process one pair does not stop the others.
+ *
+ * This class avoids any Swing dependencies.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class BatchPipeline {
+
+    /**
+     * Left/right image pair, along with the data accumulated for it as
+     * it passes through the pipeline.
+     */
+    public static class Pair {
+        final String name;
+        final File leftFile, rightFile;
+
+        int width, height;
+        ImageSource left, right;
+        PointStore points;
+        long pointCount;
+        Throwable error;
+
+        public Pair(String name, File leftFile, File rightFile) {
+            this.name = name;
+            this.leftFile = leftFile;
+            this.rightFile = rightFile;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public File getLeftFile() {
+            return leftFile;
+        }
+
+        public File getRightFile() {
+            return rightFile;
+        }
+
+        /**
+         * @return number of points written.
+         */
+        public long getPointCount() {
+            return pointCount;
+        }
+
+        /**
+         * @return exception or error which stopped this pair being
+         * processed, or null if it was processed successfully.
+         */
+        public Throwable getError() {
+            return error;
+        }
+
+        void disposeImages() {
+            if (left != null)
+                left.dispose();
+            if (right != null)
+                right.dispose();
+            left = null;
+            right = null;
+        }
+    }
+
+    /**
+     * Receiver of pairs as they leave the pipeline.  Calls are made on
+     * the thread which called run().
+     */
+    public interface PairListener {
+        public void pairFinished(Pair pair);
+    }
+
+    /**
+     * Marker passed down the pipeline once every pair has been queued.
+     */
+    private static final Pair END = new Pair(null, null, null);
+
+    final CameraModel leftCamera, rightCamera;
+    final double sep;
+
+    final TriangulationEngine engine;
+    final StereoMatcher matcher;
+    final ForkJoinPool pool;
+
+    GeometryExporter exporter = Exporters.forName("txt");
+    boolean matching;
+    int gridStep = 32;
+    int queueCapacity = 1;
+    int decoders = 2, matchers = 1, triangulators = 1, exporters = 2;
+    boolean filtering;
+    double minDisparity, voxelSize, outlierRatio;
+
+    /**
+     * @param leftCamera
+     * @param rightCamera
+     * @param sep camera separation
+     */
+    public BatchPipeline(CameraModel leftCamera, CameraModel rightCamera,
+            double sep) {
+        this.leftCamera = leftCamera;
+        this.rightCamera = rightCamera;
+        this.sep = sep;
+
+        pool = ForkJoinPool.commonPool();
+        engine = new TriangulationEngine(pool);
+        matcher = new StereoMatcher();
+    }
+
+    /**
+     * Create a pipeline using the camera model of a geometry.
+     *
+     * @param snapshot
+     */
+    public BatchPipeline(GeometrySnapshot snapshot) {
+        this(snapshot.getCamera(0), snapshot.getCamera(1),
+            snapshot.getSeparation());
+    }
+
+    public void setExporter(GeometryExporter exporter) {
+        this.exporter = exporter;
+    }
+
+    /**
+     * Pass exported points through a CloudFilter.
+     *
+     * @param minDisparity disparity in pixels below which points are
+     * discarded
+     * @param voxelSize voxel edge length, or zero to disable downsampling
+     * @param outlierRatio see CloudFilter.setOutlierRatio()
+     */
+    public void setFilter(double minDisparity, double voxelSize,
+            double outlierRatio) {
+        this.filtering = true;
+        this.minDisparity = minDisparity;
+        this.voxelSize = voxelSize;
+        this.outlierRatio = outlierRatio;
+    }
+
+    /**
+     * Enable or disable grid matching.  When disabled only session
+     * correspondences are used, and images are not decoded.
+     *
+     * @param matching
+     */
+    public void setMatching(boolean matching) {
+        this.matching = matching;
+    }
+
+    /**
+     * @return matcher used to find grid correspondences.
+     */
+    public StereoMatcher getMatcher() {
+        return matcher;
+    }
+
+    /**
+     * Set spacing in pixels of the grid of points matched.
+     *
+     * @param gridStep
+     */
+    public void setGridStep(int gridStep) {
+        this.gridStep = Math.max(gridStep, 1);
+    }
+
+    /**
+     * Set capacity of the queue between each pair of stages.
+     *
+     * @param queueCapacity
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = Math.max(queueCapacity, 1);
+    }
+
+    /**
+     * Set number of worker threads in each stage.
+     *
+     * @param decoders
+     * @param matchers
+     * @param triangulators
+     * @param exporters
+     */
+    public void setWorkers(int decoders, int matchers, int triangulators,
+            int exporters) {
+        this.decoders = Math.max(decoders, 1);
+        this.matchers = Math.max(matchers, 1);
+        this.triangulators = Math.max(triangulators, 1);
+        this.exporters = Math.max(exporters, 1);
+    }
+
+    /**
+     * Find image pairs in directory.
+     *
+     * @param dir
+     * @return pairs, sorted by name
+     * @throws IOException if the directory cannot be listed
+     */
+    public static List<Pair> findPairs(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null)
+            throw new IOException("Cannot list directory " + dir + ".");
+        Arrays.sort(files);
+
+        List<Pair> pairs = new ArrayList<>();
+        for (File file : files) {
+            String fileName = file.getName();
+            int dot = fileName.lastIndexOf('.');
+            if (dot < 2 || !fileName.substring(dot-2, dot).equalsIgnoreCase("_L"))
+                continue;
+
+            String name = fileName.substring(0, dot-2);
+            String ext = fileName.substring(dot);
+            char r = fileName.charAt(dot-1) == 'L' ? 'R' : 'r';
+            File rightFile = new File(dir, name + "_" + r + ext);
+            if (rightFile.isFile())
+                pairs.add(new Pair(name, file, rightFile));
+        }
+        return pairs;
+    }
+
+    /**
+     * Stage of the pipeline.  Each worker takes pairs from the input
+     * queue, processes those which have not already failed and passes
+     * every pair on to the output queue.
+     */
+    private abstract class Stage {
+        final String name;
+        final int workers;
+        final BlockingQueue<Pair> in, out;
+        final int outWorkers;
+        final AtomicInteger running;
+
+        Stage(String name, int workers, BlockingQueue<Pair> in,
+                BlockingQueue<Pair> out, int outWorkers) {
+            this.name = name;
+            this.workers = workers;
+            this.in = in;
+            this.out = out;
+            this.outWorkers = outWorkers;
+            this.running = new AtomicInteger(workers);
+        }
+
+        abstract void process(Pair pair) throws IOException;
+
+        ExecutorService start() {
+            ExecutorService executor = Executors.newFixedThreadPool(workers,
+                new ThreadFactory() {
+                    final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "BatchPipeline " + name
+                            + "-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+            for (int w=0; w<workers; w++) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            work();
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            return executor;
+        }
+
+        private void work() throws InterruptedException {
+            try {
+                while (true) {
+                    Pair pair = in.take();
+                    if (pair == END)
+                        return;
+
+                    if (pair.error == null) {
+                        try {
+                            process(pair);
+                        } catch (Throwable ex) {
+                            // Includes errors such as OutOfMemoryError
+                            // from decoding, which only affect this pair.
+                            pair.error = ex;
+                            pair.disposeImages();
+                            pair.points = null;
+                        }
+                    }
+                    out.put(pair);
+                }
+            } finally {
+                // The last worker to finish passes the marker on, even
+                // if this one is leaving abnormally.
+                if (running.decrementAndGet() == 0) {
+                    for (int k=0; k<outWorkers; k++)
+                        out.put(END);
+                }
+            }
+        }
+    }
+
+    /**
+     * Process pairs, writing point clouds to outDir.
+     *
+     * @param pairs
+     * @param outDir
+     * @param listener notified of each pair once processed (may be null)
+     * @return pairs in the order in which they finished
+     * @throws InterruptedException
+     */
+    public List<Pair> run(final List<Pair> pairs, final File outDir,
+            PairListener listener) throws InterruptedException {
+        final BlockingQueue<Pair> decodeQueue = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Pair> matchQueue = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Pair> triangulateQueue = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Pair> exportQueue = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Pair> doneQueue = new LinkedBlockingQueue<>();
+
+        List<Stage> stages = new ArrayList<>();
+        stages.add(new Stage("decode", decoders, decodeQueue, matchQueue, matchers) {
+            @Override
+            void process(Pair pair) throws IOException {
+                decode(pair);
+            }
+        });
+        stages.add(new Stage("match", matchers, matchQueue, triangulateQueue, triangulators) {
+            @Override
+            void process(Pair pair) {
+                try {
+                    if (matching)
+                        match(pair);
+                } finally {
+                    pair.disposeImages();
+                }
+            }
+        });
+        stages.add(new Stage("triangulate", triangulators, triangulateQueue, exportQueue, exporters) {
+            @Override
+            void process(Pair pair) {
+                triangulate(pair);
+            }
+        });
+        stages.add(new Stage("export", exporters, exportQueue, doneQueue, 1) {
+            @Override
+            void process(Pair pair) throws IOException {
+                export(pair, outDir);
+            }
+        });
+
+        List<ExecutorService> executors = new ArrayList<>();
+        for (Stage stage : stages)
+            executors.add(stage.start());
+
+        Thread feeder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (Pair pair : pairs)
+                        decodeQueue.put(pair);
+                    for (int k=0; k<decoders; k++)
+                        decodeQueue.put(END);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "BatchPipeline feeder");
+        feeder.setDaemon(true);
+        feeder.start();
+
+        List<Pair> finished = new ArrayList<>();
+        try {
+            while (true) {
+                Pair pair = doneQueue.take();
+                if (pair == END)
+                    break;
+                finished.add(pair);
+                if (listener != null)
+                    listener.pairFinished(pair);
+            }
+        } finally {
+            feeder.interrupt();
+            for (ExecutorService executor : executors)
+                executor.shutdownNow();
+        }
+
+        return finished;
+    }
+
+    /**
+     * Read image dimensions and any session correspondences, decoding
+     * the images themselves only if they are needed for matching.
+     */
+    void decode(Pair pair) throws IOException {
+        int[] size = readSize(pair.leftFile);
+        int[] rightSize = readSize(pair.rightFile);
+        if (size[0] != rightSize[0] || size[1] != rightSize[1])
+            throw new IOException("Image dimensions differ.");
+        pair.width = size[0];
+        pair.height = size[1];
+
+        pair.points = new PointStore();
+        File sessionFile = new File(pair.leftFile.getParentFile(),
+            pair.name + "." + Session.EXTENSION);
+        if (sessionFile.isFile()) {
+            Session session = Session.read(sessionFile);
+
+            // Images are processed unrectified.
+            Rectification rect = session.getRectification();
+            if (rect != null && rect.getWidth() == pair.width
+                    && rect.getHeight() == pair.height)
+                rect.mapPoints(session.xL, session.yL, session.xR, session.yR,
+                    session.size, false);
+
+            pair.points.replace(session.xL, session.yL, session.xR, session.yR,
+                session.size, session.pathOffsets, session.nPaths);
+        }
+
+        if (matching) {
+            pair.left = readImage(pair.leftFile);
+            pair.right = readImage(pair.rightFile);
+        }
+    }
+
+    private static int[] readSize(File file) throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(file)) {
+            if (iis == null)
+                throw new IOException("Cannot open " + file.getName());
+
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext())
+                throw new IOException("Unsupported image format: " + file.getName());
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                return new int[] {reader.getWidth(0), reader.getHeight(0)};
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static ImageSource readImage(File file) throws IOException {
+        long t0 = Metrics.start();
+        BufferedImage image = ImageIO.read(file);
+        if (image == null)
+            throw new IOException("Unsupported image format: " + file.getName());
+        Metrics.stop(Metrics.Probe.IMAGE_LOAD, t0);
+        return new BufferedImageSource(image);
+    }
+
+    /**
+     * Match a grid of left image points against the right image, adding
+     * each row of matched points as a path.  Rows are matched in
+     * parallel.
+     */
+    void match(Pair pair) {
+        final ImageSource left = pair.left;
+        final ImageSource right = pair.right;
+        final int step = gridStep;
+        final int width = pair.width;
+        final int nRows = (pair.height + step/2) / step;
+        final int[][] rowXL = new int[nRows][];
+        final int[][] rowXR = new int[nRows][];
+        final int[] rowCount = new int[nRows];
+
+        final List<RecursiveAction> tasks = new ArrayList<>();
+        for (int r=0; r<nRows; r++) {
+            final int row = r;
+            tasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    int y = step/2 + row*step;
+                    int[] xL = new int[(width + step/2) / step];
+                    int[] xR = new int[xL.length];
+                    int n = 0;
+                    for (int x=step/2; x<width; x+=step) {
+                        StereoMatcher.Match m = matcher.match(left, right, x, y);
+                        if (m == null)
+                            continue;
+                        xL[n] = x;
+                        xR[n] = (int)Math.round(m.getX());
+                        n += 1;
+                    }
+                    rowXL[row] = xL;
+                    rowXR[row] = xR;
+                    rowCount[row] = n;
+                }
+            });
+        }
+
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+
+        PointStore points = pair.points;
+        for (int r=0; r<nRows; r++) {
+            if (rowCount[r] == 0)
+                continue;
+
+            int y = step/2 + r*step;
+            points.startPath();
+            for (int k=0; k<rowCount[r]; k++)
+                points.add(rowXL[r][k], y, rowXR[r][k], y);
+        }
+    }
+
+    void triangulate(Pair pair) {
+        long t0 = Metrics.start();
+        engine.triangulate(pair.points, leftCamera, rightCamera, sep,
+            pair.width, pair.height);
+        Metrics.stop(Metrics.Probe.TRIANGULATE, t0);
+    }
+
+    void export(Pair pair, File outDir) throws IOException {
+        long t0 = Metrics.start();
+        PointStore points = pair.points;
+        File file = new File(outDir, pair.name + "." + exporter.getExtension());
+        CloudFilter filter = null;
+        GeometryExporter.PointWriter writer = exporter.open(file);
+        if (filtering) {
+            filter = new CloudFilter(writer,
+                CloudFilter.getMaxDepth(leftCamera, sep, pair.width,
+                    pair.height, minDisparity), voxelSize);
+            filter.setOutlierRatio(outlierRatio);
+            writer = filter;
+        }
+        try {
+            for (int p=0; p<points.getPathCount(); p++)
+                writer.write(points.X, points.Y, points.Z,
+                    points.getPathStart(p), points.getPathEnd(p), p);
+        } finally {
+            writer.close();
+        }
+        pair.pointCount = filter != null ? filter.getOutputCount() : points.size();
+        pair.points = null;
+        Metrics.stop(Metrics.Probe.EXPORT, t0);
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: BatchPipeline [-fovh DEG] [-fovv DEG] [-sep M]"
+            + " [-session FILE] [-format FMT] [-match] [-grid PX]"
+            + " [-workers D,M,T,E] [-queue N] [-mindisp PX] [-voxel M]"
+            + " [-outliers SD] -out DIR INPUTDIR");
+        System.err.println();
+        System.err.println("Processes every NAME_L.EXT/NAME_R.EXT image pair in"
+            + " INPUTDIR, using correspondences from NAME.pds if present and,"
+            + " with -match, from a grid of matched points.  Camera parameters"
+            + " are taken from -session if given.  Any of -mindisp, -voxel"
+            + " or -outliers enables filtering of exported points.");
+        System.err.print("Formats:");
+        for (GeometryExporter exporter : Exporters.getAll())
+            System.err.print(" " + exporter.getName());
+        System.err.println(" (default txt)");
+    }
+
+    public static void main(String[] args) {
+        double fovH = 15, fovV = 15, sep = 0.3;
+        File sessionFile = null, outDir = null, inDir = null;
+        GeometryExporter exporter = Exporters.forName("txt");
+        boolean matching = false;
+        int gridStep = 32, queue = 1;
+        int[] workers = {2, 1, 1, 2};
+        boolean filtering = false;
+        double minDisparity = 0.0, voxelSize = 0.0, outlierRatio = 2.0;
+
+        try {
+            for (int i=0; i<args.length; i++) {
+                switch (args[i]) {
+                    case "-fovh":
+                        fovH = Double.parseDouble(args[++i]);
+                        break;
+                    case "-fovv":
+                        fovV = Double.parseDouble(args[++i]);
+                        break;
+                    case "-sep":
+                        sep = Double.parseDouble(args[++i]);
+                        break;
+                    case "-session":
+                        sessionFile = new File(args[++i]);
+                        break;
+                    case "-format":
+                        exporter = Exporters.forName(args[++i]);
+                        if (exporter == null)
+                            throw new IllegalArgumentException("Unknown format " + args[i]);
+                        break;
+                    case "-match":
+                        matching = true;
+                        break;
+                    case "-grid":
+                        gridStep = Integer.parseInt(args[++i]);
+                        break;
+                    case "-workers":
+                        String[] counts = args[++i].split(",");
+                        if (counts.length != 4)
+                            throw new IllegalArgumentException("Expected four worker counts.");
+                        for (int k=0; k<4; k++)
+                            workers[k] = Integer.parseInt(counts[k]);
+                        break;
+                    case "-queue":
+                        queue = Integer.parseInt(args[++i]);
+                        break;
+                    case "-mindisp":
+                        minDisparity = Double.parseDouble(args[++i]);
+                        filtering = true;
+                        break;
+                    case "-voxel":
+                        voxelSize = Double.parseDouble(args[++i]);
+                        filtering = true;
+                        break;
+                    case "-outliers":
+                        outlierRatio = Double.parseDouble(args[++i]);
+                        filtering = true;
+                        break;
+                    case "-out":
+                        outDir = new File(args[++i]);
+                        break;
+                    case "-help":
+                        printUsage();
+                        return;
+                    default:
+                        inDir = new File(args[i]);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException ex) {
+            System.err.println("Error parsing arguments: " + ex.getMessage());
+            printUsage();
+            System.exit(1);
+        }
+
+        if (inDir == null || outDir == null) {
+            printUsage();
+            System.exit(1);
+        }
+
+        BatchPipeline pipeline;
+        List<Pair> pairs;
+        try {
+            if (sessionFile != null) {
+                Session session = Session.read(sessionFile);
+                pipeline = new BatchPipeline(session.getCamera(0),
+                    session.getCamera(1), session.getSeparation());
+            } else {
+                pipeline = new BatchPipeline(new CameraModel(fovH, fovV),
+                    new CameraModel(fovH, fovV), sep);
+            }
+            pairs = findPairs(inDir);
+            if (!outDir.isDirectory() && !outDir.mkdirs())
+                throw new IOException("Cannot create directory " + outDir + ".");
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        pipeline.setExporter(exporter);
+        pipeline.setMatching(matching);
+        pipeline.setGridStep(gridStep);
+        pipeline.setQueueCapacity(queue);
+        pipeline.setWorkers(workers[0], workers[1], workers[2], workers[3]);
+        if (filtering)
+            pipeline.setFilter(minDisparity, voxelSize, outlierRatio);
+
+        final int total = pairs.size();
+        final int[] done = new int[1];
+        final long t0 = System.nanoTime();
+        List<Pair> finished;
+        try {
+            finished = pipeline.run(pairs, outDir, new PairListener() {
+                @Override
+                public void pairFinished(Pair pair) {
+                    done[0] += 1;
+                    Throwable error = pair.getError();
+                    if (error != null)
+                        System.err.format("[%d/%d] %s: failed: %s\n", done[0], total,
+                            pair.getName(), error.getMessage() != null
+                                ? error.getMessage() : error.toString());
+                    else
+                        System.err.format("[%d/%d] %s: %d points\n", done[0], total,
+                            pair.getName(), pair.getPointCount());
+                }
+            });
+        } catch (InterruptedException ex) {
+            System.exit(1);
+            return;
+        }
+
+        int failed = 0;
+        for (Pair pair : finished) {
+            if (pair.getError() != null)
+                failed += 1;
+        }
+        System.err.println(String.format(Locale.ROOT,
+            "Processed %d pairs (%d failed) in %.1f s.", finished.size(), failed,
+            (System.nanoTime() - t0)*1e-9));
+        if (failed > 0)
+            System.exit(2);
+    }
+}
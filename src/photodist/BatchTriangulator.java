@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Headless command-line triangulation of correspondence files.  Input
+ * files contain one "xL yL xR yR path" row per point pair (whitespace or
+ * comma separated, with blank lines, header lines and lines beginning
+ * with '#' ignored).  Rows are streamed through the triangulation in
+ * fixed-size chunks, so memory use does not depend on the input size.
+ *
+ * This class deliberately avoids any AWT or Swing dependencies.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class BatchTriangulator {
+
+    /**
+     * Number of rows triangulated and written at a time.
+     */
+    public static final int CHUNK_SIZE = 1 << 16;
+
+    double fovH = 15, fovV = 15, sep = 0.3;
+    int imageWidth, imageHeight;
+
+    final TriangulationEngine engine;
+
+    final int[] xL, yL, xR, yR, path;
+    final double[] X, Y, Z;
+    int n;
+
+    long rowCount;
+
+    public BatchTriangulator() {
+        engine = new TriangulationEngine();
+
+        xL = new int[CHUNK_SIZE];
+        yL = new int[CHUNK_SIZE];
+        xR = new int[CHUNK_SIZE];
+        yR = new int[CHUNK_SIZE];
+        path = new int[CHUNK_SIZE];
+        X = new double[CHUNK_SIZE];
+        Y = new double[CHUNK_SIZE];
+        Z = new double[CHUNK_SIZE];
+    }
+
+    public void setHorizontalFOV(double fovH) {
+        this.fovH = fovH;
+    }
+
+    public void setVerticalFOV(double fovV) {
+        this.fovV = fovV;
+    }
+
+    public void setSeparation(double sep) {
+        this.sep = sep;
+    }
+
+    public void setImageSize(int width, int height) {
+        this.imageWidth = width;
+        this.imageHeight = height;
+    }
+
+    /**
+     * @return number of rows processed so far.
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Triangulate every row read from stream, passing the results to
+     * writer.
+     *
+     * @param in
+     * @param writer
+     * @throws IOException
+     */
+    public void process(InputStream in, GeometryExporter.PointWriter writer)
+            throws IOException {
+        BufferedReader reader = new BufferedReader(
+            new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+
+        int[] fields = new int[5];
+        String line;
+        long lineNum = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNum += 1;
+            int nFields = parseRow(line, fields);
+            if (nFields == 0)
+                continue;
+            if (nFields != 5)
+                throw new IOException("Expected 5 fields on line " + lineNum
+                    + " but found " + nFields + ".");
+
+            xL[n] = fields[0];
+            yL[n] = fields[1];
+            xR[n] = fields[2];
+            yR[n] = fields[3];
+            path[n] = fields[4];
+            n += 1;
+
+            if (n == CHUNK_SIZE)
+                flush(writer);
+        }
+    }
+
+    /**
+     * Triangulate and write any buffered rows.
+     *
+     * @param writer
+     * @throws IOException
+     */
+    public void flush(GeometryExporter.PointWriter writer) throws IOException {
+        if (n == 0)
+            return;
+
+        CameraModel camera = new CameraModel(fovH, fovV);
+        TriangulationEngine.RayTable[] t = engine.getRayTables(camera, camera,
+            imageWidth, imageHeight);
+        engine.triangulate(xL, yL, xR, yR, X, Y, Z, 0, n, sep, t[0], t[1]);
+
+        int start = 0;
+        for (int i=1; i<=n; i++) {
+            if (i == n || path[i] != path[start]) {
+                writer.write(X, Y, Z, start, i, path[start]);
+                start = i;
+            }
+        }
+
+        rowCount += n;
+        n = 0;
+    }
+
+    /**
+     * Parse integer fields from line.
+     *
+     * @param line
+     * @param fields array to receive parsed fields
+     * @return number of fields found, or 0 if the line is blank, a
+     * comment or a header.
+     * @throws IOException if a field is not an integer.
+     */
+    static int parseRow(String line, int[] fields) throws IOException {
+        int nFields = 0;
+        int len = line.length();
+        int i = 0;
+        while (i < len) {
+            char c = line.charAt(i);
+            if (c == ' ' || c == '\t' || c == ',') {
+                i += 1;
+                continue;
+            }
+
+            if (nFields == 0 && c == '#')
+                return 0;
+
+            boolean negative = false;
+            if (c == '-' || c == '+') {
+                negative = c == '-';
+                i += 1;
+            }
+
+            int start = i;
+            long value = 0;
+            while (i < len && line.charAt(i) >= '0' && line.charAt(i) <= '9') {
+                value = 10*value + (line.charAt(i) - '0');
+                if (value > Integer.MAX_VALUE)
+                    throw new IOException("Value out of range: " + line);
+                i += 1;
+            }
+
+            if (i == start || (i < len && " \t,".indexOf(line.charAt(i)) < 0)) {
+                // Non-numeric leading field denotes a header line.
+                if (nFields == 0)
+                    return 0;
+                throw new IOException("Malformed row: " + line);
+            }
+
+            if (nFields < fields.length)
+                fields[nFields] = negative ? -(int)value : (int)value;
+            nFields += 1;
+        }
+
+        return nFields;
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: BatchTriangulator -width W -height H"
+            + " [-fovh DEG] [-fovv DEG] [-sep M] [-format FMT]"
+            + " -out FILE [INPUT ...]");
+        System.err.println();
+        System.err.println("Input rows are \"xL yL xR yR path\"; reads standard"
+            + " input if no INPUT files are given or INPUT is \"-\".");
+        System.err.print("Formats:");
+        for (GeometryExporter exporter : Exporters.getAll())
+            System.err.print(" " + exporter.getName());
+        System.err.println(" (default txt)");
+    }
+
+    public static void main(String[] args) {
+        BatchTriangulator triangulator = new BatchTriangulator();
+        GeometryExporter exporter = Exporters.forName("txt");
+        File outFile = null;
+        int width = 0, height = 0;
+        List<String> inputs = new ArrayList<>();
+
+        try {
+            for (int i=0; i<args.length; i++) {
+                switch (args[i]) {
+                    case "-width":
+                        width = Integer.parseInt(args[++i]);
+                        break;
+                    case "-height":
+                        height = Integer.parseInt(args[++i]);
+                        break;
+                    case "-fovh":
+                        triangulator.setHorizontalFOV(Double.parseDouble(args[++i]));
+                        break;
+                    case "-fovv":
+                        triangulator.setVerticalFOV(Double.parseDouble(args[++i]));
+                        break;
+                    case "-sep":
+                        triangulator.setSeparation(Double.parseDouble(args[++i]));
+                        break;
+                    case "-format":
+                        exporter = Exporters.forName(args[++i]);
+                        if (exporter == null)
+                            throw new IllegalArgumentException("Unknown format " + args[i]);
+                        break;
+                    case "-out":
+                        outFile = new File(args[++i]);
+                        break;
+                    case "-help":
+                        printUsage();
+                        return;
+                    default:
+                        inputs.add(args[i]);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException ex) {
+            System.err.println("Error parsing arguments: " + ex.getMessage());
+            printUsage();
+            System.exit(1);
+        }
+
+        if (width <= 0 || height <= 0 || outFile == null) {
+            printUsage();
+            System.exit(1);
+        }
+
+        if (inputs.isEmpty())
+            inputs.add("-");
+
+        triangulator.setImageSize(width, height);
+        try (GeometryExporter.PointWriter writer = exporter.open(outFile)) {
+            for (String input : inputs) {
+                if (input.equals("-")) {
+                    triangulator.process(System.in, writer);
+                } else {
+                    try (InputStream in = new FileInputStream(input)) {
+                        triangulator.process(in, writer);
+                    }
+                }
+            }
+            triangulator.flush(writer);
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            System.exit(1);
+        }
+
+        System.err.println("Triangulated " + triangulator.getRowCount()
+            + " point pairs.");
+    }
+}
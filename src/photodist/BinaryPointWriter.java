@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Base class for point writers producing little-endian binary output.
+ * Data is accumulated in a large direct buffer which is written through
+ * a FileChannel whenever it fills.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public abstract class BinaryPointWriter implements GeometryExporter.PointWriter {
+
+    public static final int BUFFER_SIZE = 1 << 20;
+
+    final FileChannel channel;
+    final ByteBuffer buffer;
+    long pointCount;
+
+    public BinaryPointWriter(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @return number of bytes used to encode a single point.
+     */
+    protected abstract int getRecordSize();
+
+    /**
+     * Encode point i into the buffer.
+     *
+     * @param X
+     * @param Y
+     * @param Z
+     * @param i
+     * @param path
+     */
+    protected abstract void putPoint(double[] X, double[] Y, double[] Z,
+        int i, int path);
+
+    @Override
+    public void write(double[] X, double[] Y, double[] Z,
+            int from, int to, int path) throws IOException {
+        int recordSize = getRecordSize();
+        for (int i=from; i<to; i++) {
+            if (buffer.remaining() < recordSize)
+                flush();
+            putPoint(X, Y, Z, i, path);
+        }
+        pointCount += to - from;
+    }
+
+    /**
+     * Write any buffered data to the channel.
+     *
+     * @throws IOException
+     */
+    protected void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * @return number of points written so far.
+     */
+    public long getPointCount() {
+        return pointCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
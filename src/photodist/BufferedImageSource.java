@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+
+/**
+ * Image source backed by an image held in memory.  Scaled drawing
+ * uses an image pyramid.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class BufferedImageSource implements ImageSource {
+
+    final BufferedImage image;
+    final ImagePyramid pyramid;
+
+    public BufferedImageSource(BufferedImage image) {
+        this.image = image;
+        this.pyramid = new ImagePyramid(image);
+    }
+
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    @Override
+    public int getWidth() {
+        return image.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return image.getHeight();
+    }
+
+    @Override
+    public void getRGB(int x0, int y0, int width, int height, int[] out) {
+        image.getRGB(x0, y0, width, height, out, 0, width);
+    }
+
+    @Override
+    public void draw(Graphics2D g2d, int width, int height,
+            double x0, double y0, double scaleX, double scaleY) {
+        GraphicsConfiguration gc = g2d.getDeviceConfiguration();
+
+        // Whole image fitted to the region: draw cached scaled copy.
+        if (x0 == 0 && y0 == 0
+            && Math.round(image.getWidth()*scaleX) == width
+            && Math.round(image.getHeight()*scaleY) == height) {
+            g2d.drawImage(pyramid.getScaledImage(width, height, gc), 0, 0, null);
+            return;
+        }
+
+        int sx0 = Math.max(0, (int)Math.floor(x0));
+        int sy0 = Math.max(0, (int)Math.floor(y0));
+        int sx1 = Math.min(image.getWidth(), (int)Math.ceil(x0 + width/scaleX));
+        int sy1 = Math.min(image.getHeight(), (int)Math.ceil(y0 + height/scaleY));
+        if (sx1 <= sx0 || sy1 <= sy0)
+            return;
+
+        int k = pyramid.getLevelFor(Math.max(scaleX, scaleY));
+        BufferedImage level = pyramid.getLevel(k, gc);
+        int f = 1 << k;
+
+        // Region in level pixels, snapped outwards.
+        int lx0 = sx0/f, ly0 = sy0/f;
+        int lx1 = (sx1+f-1)/f, ly1 = (sy1+f-1)/f;
+
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+            RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2d.drawImage(level,
+            (int)Math.round((lx0*f-x0)*scaleX), (int)Math.round((ly0*f-y0)*scaleY),
+            (int)Math.round((lx1*f-x0)*scaleX), (int)Math.round((ly1*f-y0)*scaleY),
+            lx0, ly0, lx1, ly1, null);
+    }
+
+    @Override
+    public void dispose() { }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+/**
+ * Intrinsic parameters and lens distortion of a single camera.
+ *
+ * A pixel at (x, y) is first mapped to horizontal and vertical angles
+ * linear in its offset from the principal point, which lies (cx, cy)
+ * pixels from the image centre, with the full image width spanning
+ * fovH/2 degrees and the full height fovV/2 degrees.  The tangents of
+ * these angles are the distorted normalized image coordinates of the
+ * pixel, which are related to the undistorted coordinates (the tangents
+ * of the true ray angles) by the Brown-Conrady model with radial
+ * coefficients k1, k2 and tangential coefficients p1, p2.
+ *
+ * Camera models are immutable.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class CameraModel {
+
+    /**
+     * Maximum number of fixed-point iterations used to undistort a ray.
+     */
+    public static final int UNDISTORT_ITERATIONS = 20;
+
+    final double fovH, fovV;
+    final double cx, cy;
+    final double k1, k2, p1, p2;
+
+    /**
+     * Create an ideal, distortion-free camera.
+     *
+     * @param fovH horizontal field of view in degrees
+     * @param fovV vertical field of view in degrees
+     */
+    public CameraModel(double fovH, double fovV) {
+        this(fovH, fovV, 0, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * @param fovH horizontal field of view in degrees
+     * @param fovV vertical field of view in degrees
+     * @param cx horizontal offset of principal point from image centre
+     * @param cy vertical offset of principal point from image centre
+     * @param k1 second order radial distortion coefficient
+     * @param k2 fourth order radial distortion coefficient
+     * @param p1 first tangential distortion coefficient
+     * @param p2 second tangential distortion coefficient
+     */
+    public CameraModel(double fovH, double fovV, double cx, double cy,
+            double k1, double k2, double p1, double p2) {
+        this.fovH = fovH;
+        this.fovV = fovV;
+        this.cx = cx;
+        this.cy = cy;
+        this.k1 = k1;
+        this.k2 = k2;
+        this.p1 = p1;
+        this.p2 = p2;
+    }
+
+    /**
+     * @param fovH
+     * @param fovV
+     * @return camera identical to this one but for its fields of view.
+     */
+    public CameraModel withFOV(double fovH, double fovV) {
+        return new CameraModel(fovH, fovV, cx, cy, k1, k2, p1, p2);
+    }
+
+    public double getHorizontalFOV() {
+        return fovH;
+    }
+
+    public double getVerticalFOV() {
+        return fovV;
+    }
+
+    public double getPrincipalX() {
+        return cx;
+    }
+
+    public double getPrincipalY() {
+        return cy;
+    }
+
+    public double getK1() {
+        return k1;
+    }
+
+    public double getK2() {
+        return k2;
+    }
+
+    public double getP1() {
+        return p1;
+    }
+
+    public double getP2() {
+        return p2;
+    }
+
+    /**
+     * @return true if any distortion coefficient is non-zero.
+     */
+    public boolean hasDistortion() {
+        return k1 != 0 || k2 != 0 || p1 != 0 || p2 != 0;
+    }
+
+    /**
+     * Apply distortion to undistorted normalized coordinates.
+     *
+     * @param x
+     * @param y
+     * @param result array receiving distorted x and y
+     */
+    public void distort(double x, double y, double[] result) {
+        double r2 = x*x + y*y;
+        double radial = 1 + r2*(k1 + r2*k2);
+        result[0] = x*radial + 2*p1*x*y + p2*(r2 + 2*x*x);
+        result[1] = y*radial + p1*(r2 + 2*y*y) + 2*p2*x*y;
+    }
+
+    /**
+     * Remove distortion from distorted normalized coordinates by
+     * fixed-point iteration.  This is far too slow to use per point;
+     * TriangulationEngine.RayTable caches its results per pixel.
+     *
+     * @param xd
+     * @param yd
+     * @param result array receiving undistorted x and y
+     */
+    public void undistort(double xd, double yd, double[] result) {
+        double x = xd, y = yd;
+        for (int it=0; it<UNDISTORT_ITERATIONS; it++) {
+            double r2 = x*x + y*y;
+            double radial = 1 + r2*(k1 + r2*k2);
+            double dx = 2*p1*x*y + p2*(r2 + 2*x*x);
+            double dy = p1*(r2 + 2*y*y) + 2*p2*x*y;
+            double xNew = (xd - dx)/radial;
+            double yNew = (yd - dy)/radial;
+            boolean converged = xNew == x && yNew == y;
+            x = xNew;
+            y = yNew;
+            if (converged)
+                break;
+        }
+        result[0] = x;
+        result[1] = y;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof CameraModel))
+            return false;
+
+        CameraModel other = (CameraModel)obj;
+        return fovH == other.fovH && fovV == other.fovV
+            && cx == other.cx && cy == other.cy
+            && k1 == other.k1 && k2 == other.k2
+            && p1 == other.p1 && p2 == other.p2;
+    }
+
+    @Override
+    public int hashCode() {
+        long h = Double.doubleToLongBits(fovH);
+        for (double v : new double[] {fovV, cx, cy, k1, k2, p1, p2})
+            h = 31*h + Double.doubleToLongBits(v);
+        return (int)(h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,470 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Point writer which cleans up a point cloud before passing it on to
+ * another writer.  Three stages are applied:
+ *
+ * 1. Points which are not finite or whose depth exceeds a maximum are
+ *    discarded.  Such points result from near-zero disparities, for
+ *    which triangulation is ill-conditioned.
+ *
+ * 2. Remaining points are binned into a hashed grid of cubic voxels,
+ *    each voxel accumulating the sum and number of its points.  This
+ *    happens as points are written, so memory use grows with the number
+ *    of occupied voxels rather than with the number of points.
+ *
+ * 3. When the writer is closed, each voxel's support (the number of
+ *    points in the voxel and its 26 neighbours) is computed.  Voxels
+ *    whose log support lies more than outlierRatio standard deviations
+ *    below the mean are discarded as outliers, and the centroid of each
+ *    remaining voxel is written.  Log support is used as densities
+ *    typically vary by orders of magnitude with depth, and its standard
+ *    deviation is taken to be at least one, so that the boundaries of
+ *    uniformly dense regions survive.
+ *
+ * With a voxel size of zero only the first stage is applied, and points
+ * are passed straight through.  Each output point belongs to the path
+ * of the first point to land in its voxel.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class CloudFilter implements GeometryExporter.PointWriter {
+
+    /**
+     * Voxel indices are stored in 21 bits per axis.
+     */
+    static final int AXIS_BITS = 21;
+    static final long AXIS_OFFSET = 1L << (AXIS_BITS-1);
+    static final long AXIS_MASK = (1L << AXIS_BITS) - 1;
+
+    static final int BLOCK_SIZE = 4096;
+
+    final GeometryExporter.PointWriter writer;
+    final double maxDepth;
+    final double voxelSize;
+    double outlierRatio = 2.0;
+
+    final VoxelTable table = new VoxelTable();
+    double[] sumX, sumY, sumZ;
+    int[] count, path;
+
+    final double[] X = new double[BLOCK_SIZE];
+    final double[] Y = new double[BLOCK_SIZE];
+    final double[] Z = new double[BLOCK_SIZE];
+
+    long inputCount, rejectedCount, outlierCount, outputCount;
+
+    /**
+     * @param writer destination of filtered points
+     * @param maxDepth maximum magnitude of X coordinate
+     * @param voxelSize voxel edge length, or zero to disable downsampling
+     * and outlier removal
+     */
+    public CloudFilter(GeometryExporter.PointWriter writer, double maxDepth,
+            double voxelSize) {
+        if (voxelSize < 0)
+            throw new IllegalArgumentException("Negative voxel size.");
+
+        this.writer = writer;
+        this.maxDepth = maxDepth;
+        this.voxelSize = voxelSize;
+
+        if (voxelSize > 0) {
+            sumX = new double[VoxelTable.INITIAL_CAPACITY];
+            sumY = new double[VoxelTable.INITIAL_CAPACITY];
+            sumZ = new double[VoxelTable.INITIAL_CAPACITY];
+            count = new int[VoxelTable.INITIAL_CAPACITY];
+            path = new int[VoxelTable.INITIAL_CAPACITY];
+        }
+    }
+
+    /**
+     * Set number of standard deviations below the mean log support at
+     * which a voxel is considered an outlier.  Zero disables outlier
+     * removal.
+     *
+     * @param outlierRatio
+     */
+    public void setOutlierRatio(double outlierRatio) {
+        this.outlierRatio = outlierRatio;
+    }
+
+    public double getOutlierRatio() {
+        return outlierRatio;
+    }
+
+    @Override
+    public void write(double[] X, double[] Y, double[] Z, int from, int to,
+            int path) throws IOException {
+        inputCount += to - from;
+
+        if (voxelSize > 0) {
+            for (int i=from; i<to; i++) {
+                if (isValid(X[i], Y[i], Z[i]))
+                    addToVoxel(X[i], Y[i], Z[i], path);
+                else
+                    rejectedCount += 1;
+            }
+            return;
+        }
+
+        // Pass valid points straight through.
+        int n = 0;
+        for (int i=from; i<to; i++) {
+            if (!isValid(X[i], Y[i], Z[i])) {
+                rejectedCount += 1;
+                continue;
+            }
+            this.X[n] = X[i];
+            this.Y[n] = Y[i];
+            this.Z[n] = Z[i];
+            if (++n == BLOCK_SIZE) {
+                writer.write(this.X, this.Y, this.Z, 0, n, path);
+                outputCount += n;
+                n = 0;
+            }
+        }
+        if (n > 0) {
+            writer.write(this.X, this.Y, this.Z, 0, n, path);
+            outputCount += n;
+        }
+    }
+
+    private boolean isValid(double x, double y, double z) {
+        return !Double.isNaN(x) && !Double.isInfinite(x)
+            && Math.abs(x) <= maxDepth
+            && !Double.isNaN(y) && !Double.isInfinite(y)
+            && !Double.isNaN(z) && !Double.isInfinite(z);
+    }
+
+    /**
+     * @return key of voxel containing (x,y,z), or -1 if the voxel lies
+     * beyond the range representable by a key.
+     */
+    long getKey(double x, double y, double z) {
+        long ix = (long)Math.floor(x/voxelSize) + AXIS_OFFSET;
+        long iy = (long)Math.floor(y/voxelSize) + AXIS_OFFSET;
+        long iz = (long)Math.floor(z/voxelSize) + AXIS_OFFSET;
+        if (((ix | iy | iz) & ~AXIS_MASK) != 0)
+            return -1;
+
+        return (ix << 2*AXIS_BITS) | (iy << AXIS_BITS) | iz;
+    }
+
+    private void addToVoxel(double x, double y, double z, int p) {
+        long key = getKey(x, y, z);
+        if (key < 0) {
+            rejectedCount += 1;
+            return;
+        }
+
+        int v = table.get(key);
+        if (v < 0) {
+            v = table.add(key);
+            if (v == count.length) {
+                int capacity = 2*count.length;
+                sumX = Arrays.copyOf(sumX, capacity);
+                sumY = Arrays.copyOf(sumY, capacity);
+                sumZ = Arrays.copyOf(sumZ, capacity);
+                count = Arrays.copyOf(count, capacity);
+                path = Arrays.copyOf(path, capacity);
+            }
+            path[v] = p;
+        }
+        sumX[v] += x;
+        sumY[v] += y;
+        sumZ[v] += z;
+        count[v] += 1;
+    }
+
+    /**
+     * @param v voxel index
+     * @return number of points in voxel v and its 26 neighbours.
+     */
+    private int getSupport(int v) {
+        long key = table.keyOf(v);
+        long ix = key >>> 2*AXIS_BITS;
+        long iy = (key >>> AXIS_BITS) & AXIS_MASK;
+        long iz = key & AXIS_MASK;
+
+        int support = 0;
+        for (long jx=ix-1; jx<=ix+1; jx++) {
+            for (long jy=iy-1; jy<=iy+1; jy++) {
+                for (long jz=iz-1; jz<=iz+1; jz++) {
+                    if (((jx | jy | jz) & ~AXIS_MASK) != 0)
+                        continue;
+                    int u = table.get((jx << 2*AXIS_BITS) | (jy << AXIS_BITS) | jz);
+                    if (u >= 0)
+                        support += count[u];
+                }
+            }
+        }
+        return support;
+    }
+
+    /**
+     * Remove outliers and write voxel centroids, grouped by path.
+     */
+    private void flushVoxels() throws IOException {
+        int nVoxels = table.size;
+        if (nVoxels == 0)
+            return;
+
+        double threshold = Double.NEGATIVE_INFINITY;
+        float[] logSupport = null;
+        if (outlierRatio > 0) {
+            logSupport = new float[nVoxels];
+            double mean = 0.0, meanSq = 0.0;
+            for (int v=0; v<nVoxels; v++) {
+                double l = Math.log(getSupport(v));
+                logSupport[v] = (float)l;
+                mean += l;
+                meanSq += l*l;
+            }
+            mean /= nVoxels;
+            double sd = Math.sqrt(Math.max(meanSq/nVoxels - mean*mean, 0.0));
+            threshold = mean - outlierRatio*Math.max(sd, 1.0);
+        }
+
+        // Voxels are numbered in order of creation, so sorting by path
+        // then number keeps each path's points in the order written.
+        long[] order = new long[nVoxels];
+        int n = 0;
+        for (int v=0; v<nVoxels; v++) {
+            if (logSupport != null && logSupport[v] < threshold) {
+                outlierCount += count[v];
+                continue;
+            }
+            order[n++] = ((long)path[v] << 32) | v;
+        }
+        Arrays.sort(order, 0, n);
+
+        int m = 0, p = 0;
+        for (int k=0; k<n; k++) {
+            int v = (int)order[k];
+            if (m > 0 && (path[v] != p || m == BLOCK_SIZE)) {
+                writer.write(X, Y, Z, 0, m, p);
+                outputCount += m;
+                m = 0;
+            }
+            p = path[v];
+            X[m] = sumX[v]/count[v];
+            Y[m] = sumY[v]/count[v];
+            Z[m] = sumZ[v]/count[v];
+            m += 1;
+        }
+        if (m > 0) {
+            writer.write(X, Y, Z, 0, m, p);
+            outputCount += m;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (voxelSize > 0)
+                flushVoxels();
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * @return number of points received.
+     */
+    public long getInputCount() {
+        return inputCount;
+    }
+
+    /**
+     * @return number of points discarded as invalid or too distant.
+     */
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * @return number of points discarded as belonging to outlying voxels.
+     */
+    public long getOutlierCount() {
+        return outlierCount;
+    }
+
+    /**
+     * @return number of points written.  Only final once the writer
+     * has been closed.
+     */
+    public long getOutputCount() {
+        return outputCount;
+    }
+
+    /**
+     * Compute the depth corresponding to the given disparity at the
+     * centre of the left image, which is where a disparity maps to
+     * the greatest depth.  Points more distant than this have
+     * disparities smaller than minDisparity wherever they lie.
+     *
+     * @param camera left camera model
+     * @param sep camera separation
+     * @param imageWidth
+     * @param imageHeight
+     * @param minDisparity disparity in pixels
+     * @return maximum depth
+     */
+    public static double getMaxDepth(CameraModel camera, double sep,
+            int imageWidth, int imageHeight, double minDisparity) {
+        TriangulationEngine.RayTable table = new TriangulationEngine.RayTable(
+            camera, imageWidth, imageHeight);
+        int y = imageHeight/2;
+        double x = 0.5*imageWidth;
+        double dtan = Math.abs(table.tanTheta(x + minDisparity, y)
+            - table.tanTheta(x, y));
+        return sep/dtan + 0.5*sep;
+    }
+
+    /**
+     * Wrap an exporter so that the points written to each file it
+     * opens are passed through a CloudFilter.
+     *
+     * @param exporter
+     * @param maxDepth
+     * @param voxelSize
+     * @param outlierRatio
+     * @return filtering exporter
+     */
+    public static GeometryExporter wrap(final GeometryExporter exporter,
+            final double maxDepth, final double voxelSize,
+            final double outlierRatio) {
+        return new GeometryExporter() {
+            @Override
+            public String getName() {
+                return exporter.getName();
+            }
+
+            @Override
+            public String getDescription() {
+                return exporter.getDescription();
+            }
+
+            @Override
+            public String getExtension() {
+                return exporter.getExtension();
+            }
+
+            @Override
+            public PointWriter open(File file) throws IOException {
+                CloudFilter filter = new CloudFilter(exporter.open(file),
+                    maxDepth, voxelSize);
+                filter.setOutlierRatio(outlierRatio);
+                return filter;
+            }
+        };
+    }
+
+    /**
+     * Open-addressing hash table mapping voxel keys to voxel indices,
+     * which are allocated consecutively as keys are added.  Keys are
+     * held in a primitive array to avoid boxing a Long per voxel.
+     */
+    static final class VoxelTable {
+
+        static final int INITIAL_CAPACITY = 1 << 12;
+        static final long EMPTY = -1;
+
+        long[] keys = new long[INITIAL_CAPACITY];
+        int[] values = new int[INITIAL_CAPACITY];
+        long[] voxelKeys = new long[INITIAL_CAPACITY];
+        int size;
+        int shift = 64 - Integer.numberOfTrailingZeros(INITIAL_CAPACITY);
+
+        VoxelTable() {
+            Arrays.fill(keys, EMPTY);
+        }
+
+        private int hash(long key) {
+            return (int)((key*0x9E3779B97F4A7C15L) >>> shift);
+        }
+
+        /**
+         * @return index of voxel with given key, or -1 if absent.
+         */
+        int get(long key) {
+            int mask = keys.length - 1;
+            for (int s=hash(key); ; s=(s+1) & mask) {
+                if (keys[s] == key)
+                    return values[s];
+                if (keys[s] == EMPTY)
+                    return -1;
+            }
+        }
+
+        /**
+         * Add a key known to be absent.
+         *
+         * @return index allocated to the new voxel.
+         */
+        int add(long key) {
+            if (2*(size+1) > keys.length)
+                rehash(2*keys.length);
+
+            int mask = keys.length - 1;
+            int s = hash(key);
+            while (keys[s] != EMPTY)
+                s = (s+1) & mask;
+
+            keys[s] = key;
+            values[s] = size;
+            if (size == voxelKeys.length)
+                voxelKeys = Arrays.copyOf(voxelKeys, 2*size);
+            voxelKeys[size] = key;
+            return size++;
+        }
+
+        /**
+         * @return key of voxel v.
+         */
+        long keyOf(int v) {
+            return voxelKeys[v];
+        }
+
+        private void rehash(int capacity) {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[capacity];
+            values = new int[capacity];
+            Arrays.fill(keys, EMPTY);
+            shift = 64 - Integer.numberOfTrailingZeros(capacity);
+
+            int mask = capacity - 1;
+            for (int t=0; t<oldKeys.length; t++) {
+                if (oldKeys[t] == EMPTY)
+                    continue;
+                int s = hash(oldKeys[t]);
+                while (keys[s] != EMPTY)
+                    s = (s+1) & mask;
+                keys[s] = oldKeys[t];
+                values[s] = oldValues[t];
+            }
+        }
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Dense stereo matching of a left/right image pair.  For each candidate
+ * disparity d (right x minus left x), absolute luminance differences
+ * are aggregated over a square window using running column and row
+ * sums, and each pixel takes the disparity of lowest aggregated cost
+ * (refined to sub-pixel precision by a parabolic fit).
+ *
+ * The image is processed in bands of rows, each handled as a separate
+ * task on a fork-join pool.  A band only holds the luminance of its
+ * own rows and a handful of per-pixel cost arrays, and its disparities
+ * are passed to a consumer as soon as they are computed, so memory use
+ * is bounded by the number of bands in flight rather than by the image
+ * size.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class DenseStereo {
+
+    /**
+     * Receiver of computed disparities.  Calls may come from any pool
+     * thread, but are never concurrent.
+     */
+    public interface DisparityConsumer {
+
+        /**
+         * @param y0 first row of band
+         * @param y1 one past the last row of band
+         * @param width image width
+         * @param disparity row-major disparities, NaN where no valid
+         * match was found
+         * @throws IOException
+         */
+        public abstract void band(int y0, int y1, int width, float[] disparity)
+            throws IOException;
+    }
+
+    int minDisparity = -64, maxDisparity = 64;
+    int windowRadius = 3;
+    int bandHeight = 32;
+
+    final ForkJoinPool pool;
+
+    public DenseStereo() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public DenseStereo(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public void setDisparityRange(int minDisparity, int maxDisparity) {
+        if (minDisparity > maxDisparity)
+            throw new IllegalArgumentException("Minimum disparity exceeds maximum.");
+
+        this.minDisparity = minDisparity;
+        this.maxDisparity = maxDisparity;
+    }
+
+    public int getMinDisparity() {
+        return minDisparity;
+    }
+
+    public int getMaxDisparity() {
+        return maxDisparity;
+    }
+
+    public void setWindowRadius(int windowRadius) {
+        this.windowRadius = windowRadius;
+    }
+
+    public int getWindowRadius() {
+        return windowRadius;
+    }
+
+    public void setBandHeight(int bandHeight) {
+        this.bandHeight = Math.max(bandHeight, 1);
+    }
+
+    public int getBandHeight() {
+        return bandHeight;
+    }
+
+    /**
+     * Compute disparity map of an identically sized image pair.
+     *
+     * @param left
+     * @param right
+     * @param consumer
+     * @throws IOException if an image cannot be read or the consumer fails
+     */
+    public void compute(final ImageSource left, final ImageSource right,
+            final DisparityConsumer consumer) throws IOException {
+        if (left.getWidth() != right.getWidth()
+            || left.getHeight() != right.getHeight())
+            throw new IllegalArgumentException("Image dimensions differ.");
+
+        final int height = left.getHeight();
+        final IOException[] failure = new IOException[1];
+
+        final List<RecursiveAction> tasks = new ArrayList<>();
+        for (int y=0; y<height; y+=bandHeight) {
+            final int y0 = y;
+            final int y1 = Math.min(y+bandHeight, height);
+            tasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    synchronized (failure) {
+                        if (failure[0] != null)
+                            return;
+                    }
+
+                    float[] disparity;
+                    try {
+                        disparity = computeBand(left, right, y0, y1);
+                    } catch (UncheckedIOException ex) {
+                        synchronized (failure) {
+                            if (failure[0] == null)
+                                failure[0] = ex.getCause();
+                        }
+                        return;
+                    }
+                    synchronized (failure) {
+                        if (failure[0] != null)
+                            return;
+                        try {
+                            consumer.band(y0, y1, left.getWidth(), disparity);
+                        } catch (IOException ex) {
+                            failure[0] = ex;
+                        }
+                    }
+                }
+            });
+        }
+
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+
+        if (failure[0] != null)
+            throw failure[0];
+    }
+
+    /**
+     * Compute disparities for rows y0 (inclusive) to y1 (exclusive).
+     */
+    float[] computeBand(ImageSource left, ImageSource right, int y0, int y1) {
+        int w = left.getWidth();
+        int r = windowRadius;
+        int bh = y1 - y0;
+        int rows = bh + 2*r;
+
+        // Luminance of band rows plus margins (edge-replicated).
+        int[] lumL = new int[rows*w];
+        int[] lumR = new int[rows*w];
+        StereoMatcher.readLuminance(left, 0, y0-r, w, rows, lumL);
+        StereoMatcher.readLuminance(right, 0, y0-r, w, rows, lumR);
+
+        int[] bestCost = new int[bh*w];
+        int[] bestD = new int[bh*w];
+        int[] costMinus = new int[bh*w];
+        int[] costPlus = new int[bh*w];
+        int[] prevCost = new int[bh*w];
+        Arrays.fill(bestCost, Integer.MAX_VALUE);
+
+        int[] colSum = new int[w];
+
+        for (int d=minDisparity; d<=maxDisparity; d++) {
+            // Vertical window sums for first output row.
+            Arrays.fill(colSum, 0);
+            for (int row=0; row<2*r+1; row++)
+                addAbsDiff(lumL, lumR, w, row, d, colSum, 1);
+
+            for (int y=0; y<bh; y++) {
+                if (y > 0) {
+                    addAbsDiff(lumL, lumR, w, y+2*r, d, colSum, 1);
+                    addAbsDiff(lumL, lumR, w, y-1, d, colSum, -1);
+                }
+
+                // Horizontal window sums.
+                int sum = 0;
+                for (int k=-r; k<=r; k++)
+                    sum += colSum[Math.min(Math.max(k, 0), w-1)];
+
+                int off = y*w;
+                for (int x=0; x<w; x++) {
+                    if (x > 0)
+                        sum += colSum[Math.min(x+r, w-1)] - colSum[Math.max(x-r-1, 0)];
+
+                    int xr = x + d;
+                    int cost = xr >= 0 && xr < w ? sum : Integer.MAX_VALUE;
+
+                    int idx = off + x;
+                    if (cost < bestCost[idx]) {
+                        bestCost[idx] = cost;
+                        bestD[idx] = d;
+                        costMinus[idx] = d > minDisparity ? prevCost[idx] : Integer.MAX_VALUE;
+                        costPlus[idx] = Integer.MAX_VALUE;
+                    } else if (bestD[idx] == d-1 && bestCost[idx] != Integer.MAX_VALUE) {
+                        costPlus[idx] = cost;
+                    }
+                    prevCost[idx] = cost;
+                }
+            }
+        }
+
+        float[] disparity = new float[bh*w];
+        for (int idx=0; idx<bh*w; idx++) {
+            if (bestCost[idx] == Integer.MAX_VALUE) {
+                disparity[idx] = Float.NaN;
+                continue;
+            }
+
+            double offset = 0.0;
+            int cm = costMinus[idx], cp = costPlus[idx];
+            if (cm != Integer.MAX_VALUE && cp != Integer.MAX_VALUE) {
+                double denom = (double)cm - 2.0*bestCost[idx] + cp;
+                if (denom > 0)
+                    offset = 0.5*(cm - cp)/denom;
+            }
+            disparity[idx] = (float)(bestD[idx] + offset);
+        }
+
+        return disparity;
+    }
+
+    /**
+     * Add (sign=1) or subtract (sign=-1) absolute differences between
+     * the given row of lumL and the same row of lumR shifted by d to
+     * colSum.  Right image locations beyond the edges are clamped.
+     */
+    private static void addAbsDiff(int[] lumL, int[] lumR, int w, int row,
+            int d, int[] colSum, int sign) {
+        int off = row*w;
+        for (int x=0; x<w; x++) {
+            int xr = Math.min(Math.max(x+d, 0), w-1);
+            colSum[x] += sign*Math.abs(lumL[off+x] - lumR[off+xr]);
+        }
+    }
+
+    /**
+     * Consumer which triangulates each valid disparity using the camera
+     * models of a Geometry and passes the resulting points to a writer.
+     * Points in each image row are written as a separate path.
+     */
+    public static class PointCloudWriter implements DisparityConsumer {
+
+        final GeometryExporter.PointWriter writer;
+        final TriangulationEngine.RayTable left, right;
+        final double sep;
+
+        double[] X, Y, Z;
+        long pointCount;
+
+        public PointCloudWriter(GeometryExporter.PointWriter writer,
+                double fovH, double fovV, double sep,
+                int imageWidth, int imageHeight) {
+            this(writer, new CameraModel(fovH, fovV), new CameraModel(fovH, fovV),
+                sep, imageWidth, imageHeight);
+        }
+
+        public PointCloudWriter(GeometryExporter.PointWriter writer,
+                CameraModel leftCamera, CameraModel rightCamera, double sep,
+                int imageWidth, int imageHeight) {
+            this.writer = writer;
+            this.left = new TriangulationEngine.RayTable(
+                leftCamera, imageWidth, imageHeight);
+            this.right = rightCamera.equals(leftCamera) ? left
+                : new TriangulationEngine.RayTable(rightCamera, imageWidth, imageHeight);
+            this.sep = sep;
+        }
+
+        public PointCloudWriter(GeometryExporter.PointWriter writer,
+                Geometry geom) {
+            this(writer, geom.getCamera(0), geom.getCamera(1),
+                geom.getSeparation(), geom.getImageWidth(), geom.getImageHeight());
+        }
+
+        @Override
+        public void band(int y0, int y1, int width, float[] disparity)
+                throws IOException {
+            if (X == null || X.length < width) {
+                X = new double[width];
+                Y = new double[width];
+                Z = new double[width];
+            }
+
+            for (int y=y0; y<y1; y++) {
+                int n = 0;
+                int off = (y-y0)*width;
+                for (int x=0; x<width; x++) {
+                    float d = disparity[off+x];
+                    if (Float.isNaN(d))
+                        continue;
+
+                    double tantheta0 = left.tanTheta(x, y);
+                    double tantheta1 = right.tanTheta(x + (double)d, y);
+                    double tanphi = left.tanPhi(x, y);
+                    X[n] = sep/(tantheta1 - tantheta0) + 0.5*sep;
+                    Y[n] = X[n]*tantheta1;
+                    Z[n] = Y[n]*tanphi;
+                    n += 1;
+                }
+                writer.write(X, Y, Z, 0, n, y);
+                pointCount += n;
+            }
+        }
+
+        /**
+         * @return number of points written.
+         */
+        public long getPointCount() {
+            return pointCount;
+        }
+    }
+}
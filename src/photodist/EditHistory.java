@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Undo/redo history of a Geometry, held as a log of compact int records
+ * rather than as copies of the point store.  Each record is laid out as
+ *
+ *   type, n, payload[0] ... payload[n-1], n, type
+ *
+ * so that the log can be walked in either direction.  Records before
+ * undoEnd may be undone and those from undoEnd to redoEnd redone.  An
+ * undo step is a run of records, the first of which has STEP_START set
+ * in its type.
+ *
+ * Records which need a copy of many points (resets, rectifications, and
+ * paths added in one go once they have been undone) instead refer to a
+ * slot holding a GeometrySnapshot, which shares the point store's
+ * arrays until they are next overwritten.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class EditHistory {
+
+    /*
+     * Record types and their payloads.
+     *
+     * ADD_POINT:  i, startedPath, xL, yL, xR, yR
+     * ADD_PATH:   start, count, slot
+     * MOVE_POINT: i, pidx, oldX, oldY, newX, newY
+     * END_PATH:   count, then xL, yL, xR, yR of each dropped point
+     * RESET:      slot
+     * RECTIFY:    slot
+     */
+    static final int ADD_POINT = 1;
+    static final int ADD_PATH = 2;
+    static final int MOVE_POINT = 3;
+    static final int END_PATH = 4;
+    static final int RESET = 5;
+    static final int RECTIFY = 6;
+
+    static final int TYPE_MASK = 0xff;
+    static final int STEP_START = 0x100;
+
+    /**
+     * Default maximum number of undo steps retained.
+     */
+    public static final int DEFAULT_MAX_STEPS = 10000;
+
+    int[] log;
+    int undoEnd, redoEnd;
+    int undoSteps, redoSteps;
+    int maxSteps;
+
+    /*
+     * Snapshot slots, allocated in log order.  Slot s is held in
+     * snapshots.get(s - slotBase).
+     */
+    final List<GeometrySnapshot> snapshots;
+    int slotBase;
+
+    int groupDepth;
+    boolean groupStarted;
+    boolean sealed;
+
+    public EditHistory() {
+        this(DEFAULT_MAX_STEPS);
+    }
+
+    public EditHistory(int maxSteps) {
+        log = new int[256];
+        snapshots = new ArrayList<>();
+        sealed = true;
+        setMaxSteps(maxSteps);
+    }
+
+    /**
+     * Set maximum number of undo steps retained.  Older steps are
+     * discarded as new ones are recorded.
+     *
+     * @param maxSteps
+     */
+    public void setMaxSteps(int maxSteps) {
+        this.maxSteps = Math.max(maxSteps, 1);
+        if (undoSteps > this.maxSteps)
+            dropOldest(undoSteps - this.maxSteps);
+    }
+
+    public int getMaxSteps() {
+        return maxSteps;
+    }
+
+    public boolean canUndo() {
+        return undoSteps > 0;
+    }
+
+    public boolean canRedo() {
+        return redoSteps > 0;
+    }
+
+    public int getUndoSteps() {
+        return undoSteps;
+    }
+
+    public int getRedoSteps() {
+        return redoSteps;
+    }
+
+    /**
+     * @return number of ints currently held in the log.
+     */
+    public int getLogSize() {
+        return redoEnd;
+    }
+
+    /**
+     * Discard all undo and redo steps.
+     */
+    public void clear() {
+        undoEnd = 0;
+        redoEnd = 0;
+        undoSteps = 0;
+        redoSteps = 0;
+        snapshots.clear();
+        slotBase = 0;
+        sealed = true;
+        if (log.length > 256)
+            log = new int[256];
+    }
+
+    /**
+     * Begin a group of records forming a single undo step.  Groups may
+     * be nested, with only the outermost having any effect.
+     */
+    void beginGroup() {
+        groupDepth += 1;
+    }
+
+    void endGroup() {
+        groupDepth -= 1;
+        if (groupDepth == 0)
+            groupStarted = false;
+    }
+
+    /**
+     * Prevent the last record from being extended by merge().
+     */
+    void seal() {
+        sealed = true;
+    }
+
+    /**
+     * Append a record, discarding any redo steps.
+     *
+     * @param type
+     * @param n payload length
+     * @return offset of payload in log
+     */
+    int append(int type, int n) {
+        truncateRedo();
+
+        boolean stepStart = groupDepth == 0 || !groupStarted;
+        if (groupDepth > 0)
+            groupStarted = true;
+
+        // Trim before writing, as this moves the records down the log.
+        if (stepStart && undoSteps >= maxSteps)
+            dropOldest(Math.max(1, Math.min(maxSteps/4, undoSteps)));
+
+        if (undoEnd + n + 4 > log.length)
+            log = Arrays.copyOf(log, Math.max(undoEnd + n + 4, 2*log.length));
+
+        int t = stepStart ? type | STEP_START : type;
+        log[undoEnd] = t;
+        log[undoEnd+1] = n;
+        log[undoEnd+n+2] = n;
+        log[undoEnd+n+3] = t;
+        int off = undoEnd + 2;
+        undoEnd += n + 4;
+        redoEnd = undoEnd;
+        sealed = false;
+
+        if (stepStart)
+            undoSteps += 1;
+
+        return off;
+    }
+
+    /**
+     * @return offset of the payload of the last record, if it has type
+     * type and may be extended, or -1 otherwise.
+     */
+    int merge(int type) {
+        if (sealed || undoEnd == 0 || (log[undoEnd-1] & TYPE_MASK) != type)
+            return -1;
+
+        return undoEnd - log[undoEnd-2] - 2;
+    }
+
+    /**
+     * Allocate a snapshot slot.  Slots must be allocated in the order of
+     * the records referring to them.
+     *
+     * @param snapshot initial contents (may be null)
+     * @return slot
+     */
+    int allocateSlot(GeometrySnapshot snapshot) {
+        snapshots.add(snapshot);
+        return slotBase + snapshots.size() - 1;
+    }
+
+    GeometrySnapshot getSnapshot(int slot) {
+        return snapshots.get(slot - slotBase);
+    }
+
+    void setSnapshot(int slot, GeometrySnapshot snapshot) {
+        snapshots.set(slot - slotBase, snapshot);
+    }
+
+    /**
+     * Step back over the last undoable record.
+     *
+     * @return offset of its payload
+     */
+    int popUndo() {
+        int n = log[undoEnd-2];
+        undoEnd -= n + 4;
+        if ((log[undoEnd] & STEP_START) != 0) {
+            undoSteps -= 1;
+            redoSteps += 1;
+        }
+        sealed = true;
+        return undoEnd + 2;
+    }
+
+    /**
+     * Step forward over the next redoable record.
+     *
+     * @return offset of its payload
+     */
+    int popRedo() {
+        if ((log[undoEnd] & STEP_START) != 0) {
+            redoSteps -= 1;
+            undoSteps += 1;
+        }
+        int off = undoEnd + 2;
+        undoEnd += log[undoEnd+1] + 4;
+        sealed = true;
+        return off;
+    }
+
+    /**
+     * @return true if the last undone record began a step.
+     */
+    boolean atUndoStepStart() {
+        return (log[undoEnd] & STEP_START) != 0;
+    }
+
+    /**
+     * @return true if the next redoable record belongs to the step
+     * most recently redone.
+     */
+    boolean redoStepContinues() {
+        return undoEnd < redoEnd && (log[undoEnd] & STEP_START) == 0;
+    }
+
+    /**
+     * @param off payload offset
+     * @return type of record
+     */
+    int typeAt(int off) {
+        return log[off-2] & TYPE_MASK;
+    }
+
+    /**
+     * @return payload offsets of the records, undoable or redoable,
+     * lying between the RECTIFY records either side of undoEnd.  These
+     * hold point coordinates in the current image coordinates.
+     */
+    int[] currentFrameRecords() {
+        int start = undoEnd;
+        while (start > 0 && (log[start-1] & TYPE_MASK) != RECTIFY)
+            start -= log[start-2] + 4;
+
+        int count = 0;
+        int end = start;
+        while (end < redoEnd && (log[end] & TYPE_MASK) != RECTIFY) {
+            end += log[end+1] + 4;
+            count += 1;
+        }
+
+        int[] offsets = new int[count];
+        for (int k=0, pos=start; k<count; k++, pos += log[pos+1] + 4)
+            offsets[k] = pos + 2;
+        return offsets;
+    }
+
+    private boolean hasSlot(int type) {
+        return type == ADD_PATH || type == RESET || type == RECTIFY;
+    }
+
+    private void truncateRedo() {
+        for (int pos=undoEnd; pos<redoEnd; pos += log[pos+1] + 4) {
+            int type = log[pos] & TYPE_MASK;
+            if (hasSlot(type)) {
+                int slot = log[pos + 2 + (type == ADD_PATH ? 2 : 0)];
+                snapshots.subList(slot - slotBase, snapshots.size()).clear();
+                break;
+            }
+        }
+        redoEnd = undoEnd;
+        redoSteps = 0;
+    }
+
+    /**
+     * Discard the oldest steps.
+     *
+     * @param steps number of steps to discard
+     */
+    private void dropOldest(int steps) {
+        int pos = 0;
+        int nSlots = 0;
+        while (pos < undoEnd) {
+            if ((log[pos] & STEP_START) != 0) {
+                if (steps == 0)
+                    break;
+                steps -= 1;
+                undoSteps -= 1;
+            }
+            if (hasSlot(log[pos] & TYPE_MASK))
+                nSlots += 1;
+            pos += log[pos+1] + 4;
+        }
+
+        System.arraycopy(log, pos, log, 0, redoEnd - pos);
+        undoEnd -= pos;
+        redoEnd -= pos;
+        snapshots.subList(0, nSlots).clear();
+        slotBase += nSlots;
+    }
+}
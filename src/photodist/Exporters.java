@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Registry of available 3D geometry export formats.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public final class Exporters {
+
+    private static final List<GeometryExporter> EXPORTERS =
+        Collections.unmodifiableList(Arrays.<GeometryExporter>asList(
+            new TextExporter(),
+            new PLYExporter(),
+            new RawExporter(false),
+            new RawExporter(true)));
+
+    private Exporters() { }
+
+    /**
+     * @return all available exporters, the default (text) format first.
+     */
+    public static List<GeometryExporter> getAll() {
+        return EXPORTERS;
+    }
+
+    /**
+     * @param name
+     * @return exporter with the given short name, or null if none exists.
+     */
+    public static GeometryExporter forName(String name) {
+        for (GeometryExporter exporter : EXPORTERS) {
+            if (exporter.getName().equalsIgnoreCase(name))
+                return exporter;
+        }
+        return null;
+    }
+}
@@ -16,41 +16,159 @@
  */
 package photodist;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintStream;
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 
 /**
+ * Point correspondences, paths and camera parameters.
+ *
+ * A geometry has a single writer: the thread which created it (for the
+ * application, the EDT).  Every mutation, and every read of the live
+ * point store, must happen on that thread, and mutators throw
+ * IllegalStateException if called from any other.  Work on other
+ * threads reads an immutable GeometrySnapshot instead.  Listeners may
+ * be added from any thread, but are notified on the writer thread.
+ *
+ * Point additions, moves, path ends and resets are recorded in an
+ * EditHistory so that they can be undone and redone.  The mutations
+ * made within a batch form a single undo step.
  *
  * @author Tim Vaughan (tgvaughan@gmail.com)
  */
 public class Geometry {
 
-    List<GeometryListener> listeners;
+    final List<GeometryListener> listeners;
+    Thread writer;
 
-    public static class PointPair {
-        int[] x, y;
-        double trueX, trueY, trueZ;
+    int batchDepth;
+    GeometryEvent batchEvent;
 
-        public PointPair() {
-            x = new int[2];
-            y = new int[2];
+    final EditHistory history;
+    boolean replaying;
+
+    /**
+     * Lightweight view of a single point pair held in the geometry's
+     * PointStore.  Views are only valid until the point they refer to
+     * is removed.
+     */
+    public class PointPair {
+        final int index;
+
+        PointPair(int index) {
+            this.index = index;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public int getX(int pidx) {
+            return points.getX(index, pidx);
+        }
+
+        public int getY(int pidx) {
+            return points.getY(index, pidx);
+        }
+
+        public double getTrueX() {
+            return points.getTrueX(index);
+        }
+
+        public double getTrueY() {
+            return points.getTrueY(index);
+        }
+
+        public double getTrueZ() {
+            return points.getTrueZ(index);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof PointPair
+                && ((PointPair)obj).index == index;
+        }
+
+        @Override
+        public int hashCode() {
+            return index;
         }
     }
 
-    List<List<PointPair>> paths;
-    double fovH, fovV, sep;
+    final PointStore points;
+    CameraModel leftCamera, rightCamera;
+    double sep;
 
-    List<PointPair> currentPath;
+    /*
+     * Rectification of the image pair, or null if the original images
+     * are used.  While rectified, point coordinates refer to the
+     * rectified images and both cameras are the rectified camera.
+     */
+    Rectification rectification;
+
+    /*
+     * Original image coordinates (xL, yL, xR, yR) of the points at the
+     * time they were mapped into the current rectification.  Points not
+     * moved since are mapped back to exactly these coordinates, so that
+     * rectifying repeatedly does not accumulate rounding errors.
+     */
+    int[][] originalPoints;
 
-    PointPair focusedPoint;
+    boolean pathOpen;
+
+    int focusedPoint;
+
+    /**
+     * Maximum image-space distance at which a point can be focused.
+     */
+    public static final int FOCUS_RADIUS = 50;
+
+    final PointGrid[] grids;
+
+    final TriangulationEngine engine;
+
+    int imageWidth, imageHeight;
+
+    /*
+     * Triangulation state.  paramsDirty is set whenever a parameter
+     * changes, invalidating every 3D position.  Points whose image
+     * coordinates have changed since they were last triangulated are
+     * listed in dirtyList (with dirtyFlags preventing duplicates).
+     * editCount and paramVersion are used to detect whether a background
+     * triangulation has been overtaken by later changes.
+     */
+    boolean paramsDirty;
+    final BitSet dirtyFlags;
+    int[] dirtyList;
+    int nDirty;
+    int editCount, paramVersion;
 
     public Geometry() {
-        paths = new ArrayList<>();
-        listeners = new ArrayList<>();
+        points = new PointStore();
+        listeners = new CopyOnWriteArrayList<>();
+        writer = Thread.currentThread();
+        history = new EditHistory();
+
+        grids = new PointGrid[2];
+        for (int pidx=0; pidx<2; pidx++)
+            grids[pidx] = new PointGrid(points, pidx, FOCUS_RADIUS);
+
+        focusedPoint = -1;
+
+        engine = new TriangulationEngine();
 
-        fovH = 15;
-        fovV = 15;
+        paramsDirty = true;
+        dirtyFlags = new BitSet();
+        dirtyList = new int[16];
+
+        leftCamera = new CameraModel(15, 15);
+        rightCamera = leftCamera;
         sep = 0.3;
     }
 
@@ -58,76 +176,1083 @@ public class Geometry {
         listeners.add(gl);
     }
 
+    public void removeListener(GeometryListener gl) {
+        listeners.remove(gl);
+    }
+
+    /**
+     * Hand the right to modify this geometry to another thread.  Must
+     * be called from the current writer thread.
+     *
+     * @param thread
+     */
+    public void setWriterThread(Thread thread) {
+        checkWriter();
+        writer = thread;
+    }
+
+    /**
+     * @throws IllegalStateException if not called on the writer thread.
+     */
+    void checkWriter() {
+        if (Thread.currentThread() != writer)
+            throw new IllegalStateException(
+                "Geometry modified from thread " + Thread.currentThread().getName()
+                    + " rather than its writer thread " + writer.getName() + ".");
+    }
+
+    /**
+     * Capture the current points, paths and parameters.  This is cheap,
+     * as arrays are only copied when next modified.
+     *
+     * @return immutable snapshot
+     */
+    public GeometrySnapshot snapshot() {
+        checkWriter();
+        return new GeometrySnapshot(this, points);
+    }
+
+    /**
+     * Notify listeners of an unspecified change to the geometry.
+     */
     public void notifyListeners() {
-        for (GeometryListener listener : listeners)
-            listener.geometryChanged();
+        notifyListeners(GeometryEvent.everything(this));
+    }
+
+    /**
+     * Notify listeners of a change.  While a batch is in progress the
+     * event is instead merged with any others pending delivery at the
+     * end of the batch.
+     *
+     * @param event
+     */
+    public void notifyListeners(GeometryEvent event) {
+        if (batchDepth > 0) {
+            batchEvent = batchEvent == null ? event : batchEvent.merge(event);
+            return;
+        }
+
+        for (GeometryListener listener : listeners) {
+            if (listener instanceof GeometryEventListener)
+                ((GeometryEventListener)listener).geometryChanged(event);
+            else
+                listener.geometryChanged();
+        }
+    }
+
+    /**
+     * Begin a batch of mutations.  Listeners receive a single merged
+     * event when the outermost batch ends, rather than one event per
+     * mutation.  Batches may be nested.
+     */
+    public void beginBatch() {
+        checkWriter();
+        batchDepth += 1;
+        history.beginGroup();
+    }
+
+    /**
+     * End a batch of mutations begun with beginBatch().
+     */
+    public void endBatch() {
+        checkWriter();
+        if (batchDepth == 0)
+            throw new IllegalStateException("No batch in progress.");
+
+        batchDepth -= 1;
+        history.endGroup();
+        if (batchDepth == 0 && batchEvent != null) {
+            GeometryEvent event = batchEvent;
+            batchEvent = null;
+            notifyListeners(event);
+        }
+    }
+
+    /**
+     * Add a complete path.  Any path currently under construction is
+     * ended first.
+     *
+     * @param xL
+     * @param yL
+     * @param xR
+     * @param yR
+     */
+    public void addPath(int[] xL, int[] yL, int[] xR, int[] yR) {
+        checkWriter();
+        beginBatch();
+        try {
+            if (pathOpen)
+                endPath();
+
+            int start = appendPath(xL, yL, xR, yR, 0, xL.length);
+            if (!replaying) {
+                int off = history.append(EditHistory.ADD_PATH, 3);
+                history.log[off] = start;
+                history.log[off+1] = xL.length;
+                history.log[off+2] = history.allocateSlot(null);
+            }
+        } finally {
+            endBatch();
+        }
     }
 
-    public void addPath(List<PointPair> path) {
-        paths.add(path);
-        notifyListeners();
+    /**
+     * Add points from (inclusive) to to (exclusive) of the given arrays
+     * as a new path.
+     *
+     * @return index of first point added
+     */
+    private int appendPath(int[] xL, int[] yL, int[] xR, int[] yR,
+            int from, int to) {
+        points.startPath();
+        int start = points.size();
+        for (int i=from; i<to; i++) {
+            int idx = points.add(xL[i], yL[i], xR[i], yR[i]);
+            indexPoint(idx);
+            markDirty(idx);
+        }
+        int p = points.getPathCount()-1;
+        notifyListeners(new GeometryEvent(this, GeometryEvent.Kind.POINTS_ADDED,
+            p, p+1, start, points.size()));
+        return start;
     }
 
     /**
      * Clear all paths and reset parameters to defaults.
      */
     public void reset() {
-        currentPath = null;
-        paths.clear();
-        notifyListeners();
+        checkWriter();
+        if (!replaying) {
+            int off = history.append(EditHistory.RESET, 1);
+            history.log[off] = history.allocateSlot(snapshot());
+        }
+
+        pathOpen = false;
+        focusedPoint = -1;
+        points.clear();
+        for (PointGrid grid : grids)
+            grid.clear();
+        clearDirty();
+        editCount += 1;
+        notifyListeners(new GeometryEvent(this, GeometryEvent.Kind.RESET,
+            0, Integer.MAX_VALUE, 0, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Replace all points and paths, as when restoring a saved session.
+     * The arrays are adopted by the point store rather than copied, and
+     * the undo history is discarded.
+     *
+     * @param xL
+     * @param yL
+     * @param xR
+     * @param yR
+     * @param size number of points
+     * @param pathOffsets index of first point of each path
+     * @param nPaths number of paths
+     * @param pathOpen true if the last path is still under construction
+     */
+    public void setPoints(int[] xL, int[] yL, int[] xR, int[] yR, int size,
+            int[] pathOffsets, int nPaths, boolean pathOpen) {
+        checkWriter();
+        history.clear();
+        originalPoints = null;
+        restorePoints(xL, yL, xR, yR, size, pathOffsets, nPaths, pathOpen);
+    }
+
+    private void restorePoints(int[] xL, int[] yL, int[] xR, int[] yR, int size,
+            int[] pathOffsets, int nPaths, boolean pathOpen) {
+        points.replace(xL, yL, xR, yR, size, pathOffsets, nPaths);
+        this.pathOpen = pathOpen && nPaths > 0;
+        focusedPoint = -1;
+        for (PointGrid grid : grids)
+            grid.rebuild();
+        clearDirty();
+        editCount += 1;
+
+        // Every 3D position must be recomputed.
+        paramsDirty = true;
+        paramVersion += 1;
+
+        notifyListeners(GeometryEvent.everything(this));
     }
 
+    /**
+     * @return the underlying point store.
+     */
+    public PointStore getPoints() {
+        return points;
+    }
+
+    /**
+     * @return list view of paths, each of which is a list view of the
+     * point pairs it contains.
+     */
     public List<List<PointPair>> getPaths() {
-        return paths;
+        return new AbstractList<List<PointPair>>() {
+            @Override
+            public List<PointPair> get(int p) {
+                return getPath(p);
+            }
+
+            @Override
+            public int size() {
+                return points.getPathCount();
+            }
+        };
+    }
+
+    /**
+     * @param p path index
+     * @return list view of the point pairs in path p.
+     */
+    public List<PointPair> getPath(int p) {
+        final int start = points.getPathStart(p);
+        final int end = points.getPathEnd(p);
+        return new AbstractList<PointPair>() {
+            @Override
+            public PointPair get(int i) {
+                if (i<0 || start+i>=end)
+                    throw new IndexOutOfBoundsException();
+                return new PointPair(start+i);
+            }
+
+            @Override
+            public int size() {
+                return end - start;
+            }
+        };
     }
 
     public List<PointPair> getCurrentPath() {
-        return currentPath;
+        if (!pathOpen)
+            return null;
+
+        return getPath(points.getPathCount()-1);
+    }
+
+    /**
+     * @return true if a path is currently under construction.
+     */
+    public boolean isPathOpen() {
+        return pathOpen;
     }
 
     public PointPair getFocusedPoint() {
+        if (focusedPoint < 0)
+            return null;
+
+        return new PointPair(focusedPoint);
+    }
+
+    /**
+     * @return index of focused point, or -1 if no point is focused.
+     */
+    public int getFocusedIndex() {
         return focusedPoint;
     }
 
     public void endPath() {
-        if (currentPath.size()<2)
-            paths.remove(currentPath);
+        checkWriter();
+        if (!pathOpen)
+            return;
+
+        int p = points.getPathCount()-1;
+        int start = points.getPathStart(p);
+        int end = points.getPathEnd(p);
+        GeometryEvent event = new GeometryEvent(this,
+            GeometryEvent.Kind.PATH_ENDED, p, p+1, start, end);
+        boolean drop = end - start < 2;
+
+        if (!replaying) {
+            // Keep dropped points so that they can be restored.
+            int n = drop ? end - start : 0;
+            int off = history.append(EditHistory.END_PATH, 1 + 4*n);
+            int[] log = history.log;
+            log[off] = n;
+            for (int k=0; k<n; k++) {
+                int i = start + k;
+                log[off+1+4*k] = points.xL[i];
+                log[off+2+4*k] = points.yL[i];
+                log[off+3+4*k] = points.xR[i];
+                log[off+4+4*k] = points.yR[i];
+            }
+        }
+
+        if (drop) {
+            GeometryEvent focusEvent = unindexFrom(start, p);
+            if (focusEvent != null)
+                event = event.merge(focusEvent);
+            points.removeLastPath();
+            editCount += 1;
+            event = event.merge(new GeometryEvent(this,
+                GeometryEvent.Kind.POINTS_REMOVED, p, p+1, start, end));
+        }
+
+        pathOpen = false;
+        notifyListeners(event);
+    }
+
+    /**
+     * Add point pair to the current path, starting a new path if none
+     * is under construction.
+     *
+     * @param xL
+     * @param yL
+     * @param xR
+     * @param yR
+     * @return index of new point.
+     */
+    public int addPoint(int xL, int yL, int xR, int yR) {
+        checkWriter();
+        boolean started = !pathOpen;
+        if (started) {
+            points.startPath();
+            pathOpen = true;
+        }
+        int i = points.add(xL, yL, xR, yR);
+        indexPoint(i);
+        markDirty(i);
+
+        if (!replaying) {
+            int off = history.append(EditHistory.ADD_POINT, 6);
+            int[] log = history.log;
+            log[off] = i;
+            log[off+1] = started ? 1 : 0;
+            log[off+2] = xL;
+            log[off+3] = yL;
+            log[off+4] = xR;
+            log[off+5] = yR;
+        }
+
+        int p = points.getPathCount()-1;
+        notifyListeners(new GeometryEvent(this, GeometryEvent.Kind.POINTS_ADDED,
+            p, p+1, i, i+1));
+
+        return i;
+    }
+
+    private void indexPoint(int i) {
+        for (PointGrid grid : grids)
+            grid.insert(i);
+    }
+
+    /**
+     * Remove points from index start onwards from the grids and
+     * unfocus them, ahead of their removal from the point store.
+     *
+     * @param start
+     * @param p path containing start
+     * @return event describing any change of focus, or null
+     */
+    private GeometryEvent unindexFrom(int start, int p) {
+        GeometryEvent event = null;
+        for (int i=start; i<points.size(); i++) {
+            for (PointGrid grid : grids)
+                grid.remove(i);
+            if (i == focusedPoint) {
+                focusedPoint = -1;
+                event = GeometryEvent.focusChanged(this, i, -1);
+            }
+        }
+        return event;
+    }
+
+    /**
+     * Move point pidx of point pair i to a new image location.
+     *
+     * @param i
+     * @param pidx
+     * @param x
+     * @param y
+     */
+    public void movePoint(int i, int pidx, int x, int y) {
+        checkWriter();
+        int oldX = points.getX(i, pidx);
+        int oldY = points.getY(i, pidx);
+        if (!replaying)
+            recordMove(i, pidx, oldX, oldY, x, y);
+
+        points.setX(i, pidx, x);
+        points.setY(i, pidx, y);
+        grids[pidx].move(i, oldX, oldY);
+        markDirty(i);
+        editCount += 1;
+        notifyListeners(GeometryEvent.pointsMoved(this, pidx,
+            points.getPathOf(i), i, i+1));
+    }
+
+    /**
+     * Record a move, extending the last record instead where this is a
+     * continued drag of the same point or a correction to a point just
+     * added.
+     */
+    private void recordMove(int i, int pidx, int oldX, int oldY, int x, int y) {
+        int[] log = history.log;
+
+        int off = history.merge(EditHistory.MOVE_POINT);
+        if (off >= 0 && log[off] == i && log[off+1] == pidx) {
+            log[off+4] = x;
+            log[off+5] = y;
+            return;
+        }
+
+        off = history.merge(EditHistory.ADD_POINT);
+        if (off >= 0 && log[off] == i) {
+            log[off+2+2*pidx] = x;
+            log[off+3+2*pidx] = y;
+            return;
+        }
+
+        off = history.append(EditHistory.MOVE_POINT, 6);
+        log = history.log;
+        log[off] = i;
+        log[off+1] = pidx;
+        log[off+2] = oldX;
+        log[off+3] = oldY;
+        log[off+4] = x;
+        log[off+5] = y;
+    }
+
+    /**
+     * @return the undo history.
+     */
+    public EditHistory getHistory() {
+        return history;
+    }
+
+    public boolean canUndo() {
+        return history.canUndo();
+    }
+
+    public boolean canRedo() {
+        return history.canRedo();
+    }
+
+    /**
+     * Mark the end of an interactive edit, such as a drag, so that
+     * further moves of the same point form a separate undo step.
+     */
+    public void closeEdit() {
+        history.seal();
+    }
+
+    /**
+     * Undo the most recent undo step.
+     *
+     * @return false if there was nothing to undo.
+     */
+    public boolean undo() {
+        checkWriter();
+        if (!history.canUndo())
+            return false;
+
+        replaying = true;
+        beginBatch();
+        try {
+            do {
+                undoRecord(history.popUndo());
+            } while (!history.atUndoStepStart());
+        } finally {
+            endBatch();
+            replaying = false;
+        }
+        return true;
+    }
+
+    /**
+     * Redo the most recently undone step.
+     *
+     * @return false if there was nothing to redo.
+     */
+    public boolean redo() {
+        checkWriter();
+        if (!history.canRedo())
+            return false;
+
+        replaying = true;
+        beginBatch();
+        try {
+            do {
+                redoRecord(history.popRedo());
+            } while (history.redoStepContinues());
+        } finally {
+            endBatch();
+            replaying = false;
+        }
+        return true;
+    }
+
+    private void undoRecord(int off) {
+        int[] log = history.log;
+        switch (history.typeAt(off)) {
+            case EditHistory.ADD_POINT:
+                removeTrailingPoints(log[off], log[off+1] != 0);
+                break;
+
+            case EditHistory.ADD_PATH:
+                history.setSnapshot(log[off+2], snapshot());
+                removeTrailingPoints(log[off], true);
+                break;
+
+            case EditHistory.MOVE_POINT:
+                movePoint(log[off], log[off+1], log[off+2], log[off+3]);
+                break;
+
+            case EditHistory.END_PATH:
+                int n = log[off];
+                if (n > 0) {
+                    int[] xL = new int[n], yL = new int[n];
+                    int[] xR = new int[n], yR = new int[n];
+                    for (int k=0; k<n; k++) {
+                        xL[k] = log[off+1+4*k];
+                        yL[k] = log[off+2+4*k];
+                        xR[k] = log[off+3+4*k];
+                        yR[k] = log[off+4+4*k];
+                    }
+                    appendPath(xL, yL, xR, yR, 0, n);
+                } else {
+                    int p = points.getPathCount()-1;
+                    notifyListeners(new GeometryEvent(this, GeometryEvent.Kind.POINTS_ADDED,
+                        p, p+1, points.getPathStart(p), points.getPathEnd(p)));
+                }
+                pathOpen = true;
+                break;
+
+            case EditHistory.RESET:
+                GeometrySnapshot s = history.getSnapshot(log[off]);
+                history.setSnapshot(log[off], null);
+                restorePoints(s.xL, s.yL, s.xR, s.yR, s.size,
+                    s.pathOffsets, s.nPaths, s.pathOpen);
+                // The restored arrays remain shared with s.
+                points.share();
+                break;
+
+            case EditHistory.RECTIFY:
+                swapRectification(off);
+                break;
+        }
+    }
 
-        currentPath = null;
-        notifyListeners();
+    private void redoRecord(int off) {
+        int[] log = history.log;
+        switch (history.typeAt(off)) {
+            case EditHistory.ADD_POINT:
+                addPoint(log[off+2], log[off+3], log[off+4], log[off+5]);
+                break;
+
+            case EditHistory.ADD_PATH:
+                GeometrySnapshot s = history.getSnapshot(log[off+2]);
+                history.setSnapshot(log[off+2], null);
+                appendPath(s.xL, s.yL, s.xR, s.yR, log[off], log[off] + log[off+1]);
+                break;
+
+            case EditHistory.MOVE_POINT:
+                movePoint(log[off], log[off+1], log[off+4], log[off+5]);
+                break;
+
+            case EditHistory.END_PATH:
+                endPath();
+                break;
+
+            case EditHistory.RESET:
+                history.setSnapshot(log[off], snapshot());
+                reset();
+                break;
+
+            case EditHistory.RECTIFY:
+                swapRectification(off);
+                break;
+        }
     }
 
-    public void addPoint(PointPair point) {
-        if (currentPath == null) {
-            currentPath = new ArrayList<>();
-            paths.add(currentPath);
+    /**
+     * Exchange the rectification and points with those held in the
+     * snapshot slot of a RECTIFY record.  Camera calibrations are not
+     * part of the edit history, so the current calibration is kept.
+     *
+     * @param off payload offset of record
+     */
+    private void swapRectification(int off) {
+        int slot = history.log[off];
+        GeometrySnapshot s = history.getSnapshot(slot);
+        history.setSnapshot(slot, snapshot());
+
+        CameraModel left = getCalibration(0), right = getCalibration(1);
+        rectification = s.rectification;
+        leftCamera = s.leftCamera;
+        rightCamera = s.rightCamera;
+        originalPoints = s.originalPoints;
+        restorePoints(s.xL, s.yL, s.xR, s.yR, s.size,
+            s.pathOffsets, s.nPaths, s.pathOpen);
+        // The restored arrays remain shared with s.
+        points.share();
+
+        if (rectification != null && (rectification.getWidth() != imageWidth
+                || rectification.getHeight() != imageHeight))
+            applyRectification(null);
+        setCameras(left, right);
+    }
+
+    /**
+     * Remove points from index start onwards, which must all belong to
+     * the last path.
+     *
+     * @param start
+     * @param removePath if true, remove the (then empty) last path too
+     */
+    private void removeTrailingPoints(int start, boolean removePath) {
+        int p = points.getPathCount()-1;
+        int end = points.size();
+        GeometryEvent event = new GeometryEvent(this,
+            GeometryEvent.Kind.POINTS_REMOVED, p, p+1, start, end);
+        GeometryEvent focusEvent = unindexFrom(start, p);
+        if (focusEvent != null)
+            event = event.merge(focusEvent);
+
+        points.truncate(start);
+        if (removePath) {
+            points.removeLastPath();
+            pathOpen = false;
         }
-        currentPath.add(point);
-        notifyListeners();
+        editCount += 1;
+        notifyListeners(event);
+    }
+
+    private void markDirty(int i) {
+        if (dirtyFlags.get(i))
+            return;
+
+        dirtyFlags.set(i);
+        if (nDirty == dirtyList.length)
+            dirtyList = Arrays.copyOf(dirtyList, 2*nDirty);
+        dirtyList[nDirty++] = i;
+    }
+
+    private void clearDirty() {
+        dirtyFlags.clear();
+        nDirty = 0;
+    }
+
+    private void markParamsDirty() {
+        checkWriter();
+        paramsDirty = true;
+        paramVersion += 1;
+        notifyListeners(new GeometryEvent(this,
+            GeometryEvent.Kind.PARAMETERS_CHANGED, 0, 0, 0, 0));
     }
 
     public void setSeparation(double separation) {
-        sep = separation;
+        if (separation != sep) {
+            sep = separation;
+            markParamsDirty();
+        }
     }
 
     public double getSeparation() {
         return sep;
     }
 
+    /**
+     * Set horizontal field of view of both cameras.
+     *
+     * @param fov
+     */
     public void setHorizontalFOV(double fov) {
-        fovH = fov;
+        CameraModel left = getCalibration(0), right = getCalibration(1);
+        setCameras(left.withFOV(fov, left.fovV), right.withFOV(fov, right.fovV));
     }
 
+    /**
+     * @return horizontal field of view of the left camera.
+     */
     public double getHorizontalFOV() {
-        return fovH;
+        return leftCamera.fovH;
     }
 
+    /**
+     * Set vertical field of view of both cameras.
+     *
+     * @param fov
+     */
     public void setVerticalFOV(double fov) {
-        fovV = fov;
+        CameraModel left = getCalibration(0), right = getCalibration(1);
+        setCameras(left.withFOV(left.fovH, fov), right.withFOV(right.fovH, fov));
     }
 
+    /**
+     * @return vertical field of view of the left camera.
+     */
     public double getVeritcalFOV() {
-        return fovV;
+        return leftCamera.fovV;
+    }
+
+    /**
+     * Set intrinsics and distortion of the left and right cameras.
+     * If the images are rectified, the rectification is rebuilt for the
+     * new calibration.
+     *
+     * @param left
+     * @param right
+     */
+    public void setCameras(CameraModel left, CameraModel right) {
+        checkWriter();
+        if (rectification != null) {
+            if (!left.equals(rectification.getCamera(0))
+                || !right.equals(rectification.getCamera(1)))
+                applyRectification(rectification.withCameras(left, right));
+            return;
+        }
+
+        if (!left.equals(leftCamera) || !right.equals(rightCamera)) {
+            leftCamera = left;
+            rightCamera = right;
+            markParamsDirty();
+        }
+    }
+
+    /**
+     * @param pidx 0 for the left camera, 1 for the right
+     * @return camera model used to triangulate points, which is the
+     * rectified camera if the images are rectified.
+     */
+    public CameraModel getCamera(int pidx) {
+        return pidx == 0 ? leftCamera : rightCamera;
+    }
+
+    /**
+     * @param pidx 0 for the left camera, 1 for the right
+     * @return calibration of the original camera.
+     */
+    public CameraModel getCalibration(int pidx) {
+        return rectification != null
+            ? rectification.getCamera(pidx)
+            : getCamera(pidx);
+    }
+
+    /**
+     * @return rectification of the image pair, or null if none.
+     */
+    public Rectification getRectification() {
+        return rectification;
+    }
+
+    /**
+     * Rectify (or with a null argument, unrectify) the image pair,
+     * mapping every point into the new image coordinates.  This forms
+     * an undo step, undoing which restores the points exactly.
+     *
+     * @param rect rectification, which must share the current image size
+     */
+    public void setRectification(Rectification rect) {
+        setRectification(rect, true);
+    }
+
+    /**
+     * Rectify or unrectify the image pair.
+     *
+     * @param rect rectification, or null for none
+     * @param mapPoints true if existing points should be mapped into the
+     * new image coordinates, false if they are already expressed in them
+     */
+    public void setRectification(Rectification rect, boolean mapPoints) {
+        checkWriter();
+        if (rect == rectification)
+            return;
+        if (rect != null && (rect.getWidth() != imageWidth
+            || rect.getHeight() != imageHeight))
+            throw new IllegalArgumentException("Rectification does not match image size.");
+
+        if (!mapPoints) {
+            CameraModel left = getCalibration(0), right = getCalibration(1);
+            rectification = rect;
+            leftCamera = rect != null ? rect.getRectifiedCamera() : left;
+            rightCamera = rect != null ? rect.getRectifiedCamera() : right;
+            originalPoints = null;
+            markParamsDirty();
+            return;
+        }
+
+        if (!replaying) {
+            int off = history.append(EditHistory.RECTIFY, 1);
+            history.log[off] = history.allocateSlot(snapshot());
+        }
+        applyRectification(rect);
+    }
+
+    /**
+     * Switch to a new rectification (or none), mapping every point from
+     * the current image coordinates into the new ones via the original
+     * image coordinates.  No undo step is recorded, so the coordinates
+     * held by history records made in the current image coordinates are
+     * mapped too.
+     */
+    private void applyRectification(Rectification rect) {
+        int n = points.size();
+        int[] xL = Arrays.copyOf(points.xL, n), yL = Arrays.copyOf(points.yL, n);
+        int[] xR = Arrays.copyOf(points.xR, n), yR = Arrays.copyOf(points.yR, n);
+        mapToOriginal(xL, yL, xR, yR, n);
+        remapHistory(rect);
+
+        CameraModel left = getCalibration(0), right = getCalibration(1);
+        rectification = rect;
+        leftCamera = rect != null ? rect.getRectifiedCamera() : left;
+        rightCamera = rect != null ? rect.getRectifiedCamera() : right;
+
+        if (rect != null) {
+            originalPoints = new int[][] {
+                Arrays.copyOf(xL, n), Arrays.copyOf(yL, n),
+                Arrays.copyOf(xR, n), Arrays.copyOf(yR, n)};
+            rect.mapPoints(xL, yL, xR, yR, n, true);
+        } else {
+            originalPoints = null;
+        }
+
+        restorePoints(xL, yL, xR, yR, n,
+            Arrays.copyOf(points.pathOffsets, points.getPathCount()),
+            points.getPathCount(), pathOpen);
+    }
+
+    /**
+     * Map point coordinates in the current (rectified) images to the
+     * original images.
+     */
+    private void mapToOriginal(int[] xL, int[] yL, int[] xR, int[] yR, int n) {
+        if (rectification == null)
+            return;
+
+        int[][] mapped = rectifiedOriginals();
+        int[] q = new int[2];
+        for (int pidx=0; pidx<2; pidx++) {
+            int[] xs = pidx == 0 ? xL : xR;
+            int[] ys = pidx == 0 ? yL : yR;
+            for (int i=0; i<n; i++) {
+                toOriginal(mapped, pidx, i, xs[i], ys[i], q);
+                xs[i] = q[0];
+                ys[i] = q[1];
+            }
+        }
+    }
+
+    /**
+     * @return original coordinates of the points present when the
+     * images were rectified, mapped into the current images.
+     */
+    private int[][] rectifiedOriginals() {
+        int[][] orig = originalPoints;
+        int m = orig != null ? orig[0].length : 0;
+        int[][] mapped = new int[4][];
+        for (int k=0; k<4; k++)
+            mapped[k] = orig != null ? Arrays.copyOf(orig[k], m) : new int[0];
+        rectification.mapPoints(mapped[0], mapped[1], mapped[2], mapped[3], m, true);
+        return mapped;
+    }
+
+    /**
+     * Map image point (x,y) of point pair i in the current (rectified)
+     * images to the original images.  A point still where the
+     * rectification put it takes its exact original coordinates; others
+     * are mapped back through the rectification and rounded.
+     *
+     * @param mapped result of rectifiedOriginals()
+     * @param pidx
+     * @param i index of point pair, or -1 if not known
+     * @param x
+     * @param y
+     * @param result original x and y
+     */
+    private void toOriginal(int[][] mapped, int pidx, int i, int x, int y,
+            int[] result) {
+        if (i >= 0 && i < mapped[0].length
+                && x == mapped[2*pidx][i] && y == mapped[2*pidx+1][i]) {
+            result[0] = originalPoints[2*pidx][i];
+            result[1] = originalPoints[2*pidx+1][i];
+        } else {
+            double[] p = new double[2];
+            rectification.fromRectified(pidx, x, y, p);
+            result[0] = (int)Math.round(p[0]);
+            result[1] = (int)Math.round(p[1]);
+        }
+    }
+
+    /**
+     * Map the point coordinates held by history records made in the
+     * current image coordinates into those of rect.  Records beyond a
+     * RECTIFY record are in the coordinates it switched between, and
+     * are mapped when it is undone or redone.
+     */
+    private void remapHistory(Rectification rect) {
+        int[][] mapped = rectification != null ? rectifiedOriginals() : null;
+        int[] log = history.log;
+        for (int off : history.currentFrameRecords()) {
+            switch (history.typeAt(off)) {
+                case EditHistory.ADD_POINT:
+                    remapLog(rect, mapped, 0, log[off], off+2);
+                    remapLog(rect, mapped, 1, log[off], off+4);
+                    break;
+
+                case EditHistory.MOVE_POINT:
+                    remapLog(rect, mapped, log[off+1], log[off], off+2);
+                    remapLog(rect, mapped, log[off+1], log[off], off+4);
+                    break;
+
+                case EditHistory.END_PATH:
+                    for (int k=0; k<log[off]; k++) {
+                        remapLog(rect, mapped, 0, -1, off+1+4*k);
+                        remapLog(rect, mapped, 1, -1, off+3+4*k);
+                    }
+                    break;
+
+                case EditHistory.ADD_PATH:
+                    remapSnapshot(rect, mapped, log[off+2]);
+                    break;
+
+                case EditHistory.RESET:
+                    remapSnapshot(rect, mapped, log[off]);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Map image point (x,y) of point pair i, or -1 if not known, from
+     * the current image coordinates into those of rect.
+     */
+    private void remapPoint(Rectification rect, int[][] mapped, int pidx,
+            int i, int x, int y, int[] result) {
+        if (rectification != null) {
+            toOriginal(mapped, pidx, i, x, y, result);
+        } else {
+            result[0] = x;
+            result[1] = y;
+        }
+
+        if (rect != null) {
+            double[] p = new double[2];
+            rect.toRectified(pidx, result[0], result[1], p);
+            result[0] = (int)Math.round(p[0]);
+            result[1] = (int)Math.round(p[1]);
+        }
+    }
+
+    /**
+     * Map the image point held at offset off of the history log.
+     */
+    private void remapLog(Rectification rect, int[][] mapped, int pidx,
+            int i, int off) {
+        int[] log = history.log;
+        int[] q = new int[2];
+        remapPoint(rect, mapped, pidx, i, log[off], log[off+1], q);
+        log[off] = q[0];
+        log[off+1] = q[1];
+    }
+
+    /**
+     * Map the points of the snapshot in a history slot, if any.
+     */
+    private void remapSnapshot(Rectification rect, int[][] mapped, int slot) {
+        GeometrySnapshot s = history.getSnapshot(slot);
+        if (s == null)
+            return;
+
+        int[] xL = new int[s.size], yL = new int[s.size];
+        int[] xR = new int[s.size], yR = new int[s.size];
+        int[] q = new int[2];
+        for (int i=0; i<s.size; i++) {
+            remapPoint(rect, mapped, 0, i, s.xL[i], s.yL[i], q);
+            xL[i] = q[0];
+            yL[i] = q[1];
+            remapPoint(rect, mapped, 1, i, s.xR[i], s.yR[i], q);
+            xR[i] = q[0];
+            yR[i] = q[1];
+        }
+        history.setSnapshot(slot, new GeometrySnapshot(s, xL, yL, xR, yR));
+    }
+
+    /**
+     * Estimate a rectification from the current correspondences and
+     * apply it.  If the images are already rectified, the estimate is
+     * made afresh from the original point coordinates.
+     *
+     * @return the new rectification
+     * @throws IllegalStateException if the image size is unknown or
+     * there are too few points
+     */
+    public Rectification rectify() {
+        checkWriter();
+        if (!canTriangulate())
+            throw new IllegalStateException("Image size is unknown.");
+        if (points.size() < Rectification.MIN_CORRESPONDENCES)
+            throw new IllegalStateException("At least "
+                + Rectification.MIN_CORRESPONDENCES
+                + " points are needed for rectification.");
+
+        int n = points.size();
+        int[] xL = Arrays.copyOf(points.xL, n), yL = Arrays.copyOf(points.yL, n);
+        int[] xR = Arrays.copyOf(points.xR, n), yR = Arrays.copyOf(points.yR, n);
+        mapToOriginal(xL, yL, xR, yR, n);
+
+        Rectification rect = Rectification.estimate(getCalibration(0),
+            getCalibration(1), imageWidth, imageHeight, xL, yL, xR, yR, n);
+        setRectification(rect);
+        return rect;
+    }
+
+    /**
+     * Set dimensions of the (identically sized) left and right images.
+     *
+     * @param width
+     * @param height
+     */
+    public void setImageSize(int width, int height) {
+        if (width != imageWidth || height != imageHeight) {
+            // A rectification only applies to images of its own size.
+            if (rectification != null)
+                applyRectification(null);
+
+            imageWidth = width;
+            imageHeight = height;
+            markParamsDirty();
+        }
+    }
+
+    public int getImageWidth() {
+        return imageWidth;
+    }
+
+    public int getImageHeight() {
+        return imageHeight;
+    }
+
+    /**
+     * @return true if the image size is known, so that 3D positions can
+     * be computed.
+     */
+    public boolean canTriangulate() {
+        return imageWidth > 0 && imageHeight > 0;
+    }
+
+    /**
+     * @return number of edits other than point additions (i.e. moves
+     * and removals) made to the geometry so far.
+     */
+    public int getEditCount() {
+        return editCount;
+    }
+
+    /**
+     * @return true if a parameter change has invalidated the 3D
+     * positions of all points.
+     */
+    public boolean isParamsDirty() {
+        return paramsDirty;
+    }
+
+    /**
+     * @return true if every point's 3D position is up to date.
+     */
+    public boolean isTriangulated() {
+        return !paramsDirty && nDirty == 0;
     }
 
     /**
@@ -140,26 +1265,28 @@ public class Geometry {
      * @return 
      */
     public double euDist(int x, int y, int pidx, PointPair pair) {
-        double res = Math.sqrt(Math.pow(x-pair.x[pidx],2) + Math.pow(y-pair.y[pidx],2));
+        double res = Math.sqrt(Math.pow(x-pair.getX(pidx),2) + Math.pow(y-pair.getY(pidx),2));
         return res;
     }
 
+    /**
+     * Focus the point closest to image location (x,y) in image pidx,
+     * provided it lies within FOCUS_RADIUS.
+     *
+     * @param x
+     * @param y
+     * @param pidx
+     */
     public void updateFocusedPoint(int x, int y, int pidx) {
-        PointPair newFP = null;
-        for (List<PointPair> path : getPaths()) {
-            for (PointPair pair : path) {
-                if (euDist(x,y,pidx, pair)<50) {
-                    if (newFP == null
-                            || (euDist(x,y,pidx, pair) < euDist(x,y,pidx, newFP))) {
-                            newFP = pair;
-                    }
-                }
-            }
-        }
+        checkWriter();
+        long t0 = Metrics.start();
+        int newFP = grids[pidx].findNearest(x, y);
+        Metrics.stop(Metrics.Probe.FOCUS_HIT_TEST, t0);
 
         if (newFP != focusedPoint) {
+            int oldFP = focusedPoint;
             focusedPoint = newFP;
-            notifyListeners();
+            notifyListeners(GeometryEvent.focusChanged(this, oldFP, newFP));
         }
     }
 
@@ -170,28 +1297,157 @@ public class Geometry {
      * @param imageHeight
      */
     public void triangulate(int imageWidth, int imageHeight) {
-        double thetaFactor = fovH/(2*imageWidth)*Math.PI/180;
-        double phiFactor = fovV/(2*imageHeight)*Math.PI/180;
-        for (List<PointPair> path : getPaths()) {
-            for (PointPair pair : path) {
-                double tantheta0 = Math.tan((pair.x[0]-0.5*imageWidth)*thetaFactor);
-                double tantheta1 = Math.tan((pair.x[1]-0.5*imageWidth)*thetaFactor);
-                double tanphi = Math.tan((pair.y[0]-0.5*imageHeight)*phiFactor);
-
-                pair.trueX = sep/(tantheta1 - tantheta0) + 0.5*sep;
-                pair.trueY = pair.trueX*tantheta1;
-                pair.trueZ = pair.trueY*tanphi;
-            }
+        checkWriter();
+        setImageSize(imageWidth, imageHeight);
+        long t0 = Metrics.start();
+        engine.triangulate(points, leftCamera, rightCamera, sep,
+            imageWidth, imageHeight);
+        Metrics.stop(Metrics.Probe.TRIANGULATE, t0);
+        paramsDirty = false;
+        clearDirty();
+        notifyListeners(new GeometryEvent(this,
+            GeometryEvent.Kind.TRIANGULATION_UPDATED,
+            0, points.getPathCount(), 0, points.size()));
+    }
+
+    /**
+     * Bring 3D positions up to date, recomputing every point following
+     * a parameter change but otherwise only those points which have
+     * been added or moved since they were last triangulated.
+     */
+    public void updateTriangulation() {
+        if (!canTriangulate())
+            return;
+
+        if (paramsDirty)
+            triangulate(imageWidth, imageHeight);
+        else
+            updateDirtyPoints();
+    }
+
+    /**
+     * Recompute 3D positions of only those points which have been added
+     * or moved since they were last triangulated.  Positions of the
+     * remaining points are left stale if a parameter change is pending.
+     */
+    public void updateDirtyPoints() {
+        checkWriter();
+        if (!canTriangulate())
+            return;
+
+        TriangulationEngine.RayTable[] t = getRayTables();
+        for (int j=0; j<nDirty; j++) {
+            int i = dirtyList[j];
+            if (i < points.size())
+                TriangulationEngine.triangulateRange(points.xL, points.yL,
+                    points.xR, points.yR, points.X, points.Y, points.Z,
+                    i, i+1, sep, t[0], t[1]);
         }
+        clearDirty();
+    }
+
+    /**
+     * Compute the 3D position of point i using the current parameters,
+     * regardless of the state of the remaining points.
+     *
+     * @param i
+     */
+    public void updateTriangulation(int i) {
+        checkWriter();
+        if (!canTriangulate())
+            return;
+
+        TriangulationEngine.RayTable[] t = getRayTables();
+        TriangulationEngine.triangulateRange(points.xL, points.yL,
+            points.xR, points.yR, points.X, points.Y, points.Z,
+            i, i+1, sep, t[0], t[1]);
+    }
+
+    private TriangulationEngine.RayTable[] getRayTables() {
+        return engine.getRayTables(leftCamera, rightCamera,
+            imageWidth, imageHeight);
+    }
+
+    /**
+     * Recompute all 3D positions following a parameter change on the
+     * worker executor.  The results are applied (and listeners
+     * notified) via the publisher executor, which should run tasks on
+     * the thread that owns this geometry.  Results which have been
+     * overtaken by further parameter changes are discarded, and the
+     * computation is repeated if points were edited in the meantime.
+     *
+     * @param worker executor used to perform computation
+     * @param publisher executor used to apply results
+     */
+    public void triangulateAsync(final Executor worker, final Executor publisher) {
+        checkWriter();
+        if (!paramsDirty || !canTriangulate())
+            return;
+
+        final GeometrySnapshot snapshot = snapshot();
+        final int n = snapshot.size();
+
+        worker.execute(new Runnable() {
+            @Override
+            public void run() {
+                final double[] X = new double[n];
+                final double[] Y = new double[n];
+                final double[] Z = new double[n];
+                snapshot.triangulate(X, Y, Z);
+
+                publisher.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (snapshot.getParamVersion() != paramVersion)
+                            return;
+
+                        if (snapshot.getEditCount() != editCount || n > points.size()) {
+                            triangulateAsync(worker, publisher);
+                            return;
+                        }
+
+                        System.arraycopy(X, 0, points.X, 0, n);
+                        System.arraycopy(Y, 0, points.Y, 0, n);
+                        System.arraycopy(Z, 0, points.Z, 0, n);
+                        paramsDirty = false;
+                        updateDirtyPoints();
+                        notifyListeners(new GeometryEvent(Geometry.this,
+                            GeometryEvent.Kind.TRIANGULATION_UPDATED,
+                            0, points.getPathCount(), 0, points.size()));
+                    }
+                });
+            }
+        });
     }
 
     public void export3DGeometry(PrintStream pstream) {
+        long t0 = Metrics.start();
         pstream.println("x y z path");
-        for (int i=0; i<paths.size(); i++) {
-            for (PointPair pair : paths.get(i)) {
+        for (int p=0; p<points.getPathCount(); p++) {
+            for (int i=points.getPathStart(p); i<points.getPathEnd(p); i++) {
                 pstream.format("%g %g %g %d\n",
-                    pair.trueX, pair.trueY, pair.trueZ, i);
+                    points.X[i], points.Y[i], points.Z[i], p);
+            }
+        }
+        Metrics.stop(Metrics.Probe.EXPORT, t0);
+    }
+
+    /**
+     * Write 3D positions of all points to file using the given exporter.
+     *
+     * @param exporter
+     * @param file
+     * @throws IOException
+     */
+    public void export3DGeometry(GeometryExporter exporter, File file)
+            throws IOException {
+        long t0 = Metrics.start();
+        try (GeometryExporter.PointWriter writer = exporter.open(file)) {
+            for (int p=0; p<points.getPathCount(); p++) {
+                writer.write(points.X, points.Y, points.Z,
+                    points.getPathStart(p), points.getPathEnd(p), p);
             }
         }
+        Metrics.stop(Metrics.Probe.EXPORT, t0);
     }
 }
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Description of a change to a Geometry.  Each event carries the kinds
+ * of change it represents together with the (half-open) ranges of
+ * paths and points which were affected.  A change of focus affects no
+ * range; instead the previously and newly focused points are given.
+ * Events describing several changes, such as those produced by batched
+ * mutations, are formed by merging the events for the individual
+ * changes.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class GeometryEvent {
+
+    public enum Kind {
+        POINTS_ADDED,
+        POINTS_REMOVED,
+        POINTS_MOVED,
+        PATH_ENDED,
+        RESET,
+        FOCUS_CHANGED,
+        PARAMETERS_CHANGED,
+        TRIANGULATION_UPDATED
+    }
+
+    final Geometry source;
+    final Set<Kind> kinds;
+    final int pathFrom, pathTo;
+    final int pointFrom, pointTo;
+    final int movedSides;
+    final int oldFocus, newFocus;
+
+    GeometryEvent(Geometry source, Set<Kind> kinds,
+            int pathFrom, int pathTo, int pointFrom, int pointTo,
+            int movedSides, int oldFocus, int newFocus) {
+        this.source = source;
+        this.kinds = kinds;
+        this.pathFrom = pathFrom;
+        this.pathTo = pathTo;
+        this.pointFrom = pointFrom;
+        this.pointTo = pointTo;
+        this.movedSides = movedSides;
+        this.oldFocus = oldFocus;
+        this.newFocus = newFocus;
+    }
+
+    public GeometryEvent(Geometry source, Kind kind,
+            int pathFrom, int pathTo, int pointFrom, int pointTo) {
+        this(source, EnumSet.of(kind), pathFrom, pathTo, pointFrom, pointTo,
+            0, -1, -1);
+    }
+
+    /**
+     * Create event describing a change of focused point.
+     *
+     * @param source
+     * @param oldFocus index of previously focused point, or -1 for none
+     * @param newFocus index of newly focused point, or -1 for none
+     * @return new event
+     */
+    public static GeometryEvent focusChanged(Geometry source,
+            int oldFocus, int newFocus) {
+        return new GeometryEvent(source, EnumSet.of(Kind.FOCUS_CHANGED),
+            0, 0, 0, 0, 0, oldFocus, newFocus);
+    }
+
+    /**
+     * Create event describing a change to image pidx of points from
+     * (inclusive) to to (exclusive).
+     *
+     * @param source
+     * @param pidx
+     * @param path
+     * @param from
+     * @param to
+     * @return new event
+     */
+    public static GeometryEvent pointsMoved(Geometry source, int pidx,
+            int path, int from, int to) {
+        return new GeometryEvent(source, EnumSet.of(Kind.POINTS_MOVED),
+            path, path+1, from, to, 1 << pidx, -1, -1);
+    }
+
+    /**
+     * Create event describing an unspecified change to any part of the
+     * geometry.
+     *
+     * @param source
+     * @return new event
+     */
+    public static GeometryEvent everything(Geometry source) {
+        return new GeometryEvent(source, EnumSet.allOf(Kind.class),
+            0, Integer.MAX_VALUE, 0, Integer.MAX_VALUE, 3, -1, -1);
+    }
+
+    /**
+     * @param other
+     * @return event describing both this change and other.
+     */
+    public GeometryEvent merge(GeometryEvent other) {
+        EnumSet<Kind> mergedKinds = EnumSet.copyOf(kinds);
+        mergedKinds.addAll(other.kinds);
+
+        int mergedPathFrom, mergedPathTo;
+        if (other.pathFrom >= other.pathTo) {
+            mergedPathFrom = pathFrom;
+            mergedPathTo = pathTo;
+        } else if (pathFrom >= pathTo) {
+            mergedPathFrom = other.pathFrom;
+            mergedPathTo = other.pathTo;
+        } else {
+            mergedPathFrom = Math.min(pathFrom, other.pathFrom);
+            mergedPathTo = Math.max(pathTo, other.pathTo);
+        }
+
+        int mergedPointFrom, mergedPointTo;
+        if (other.pointFrom >= other.pointTo) {
+            mergedPointFrom = pointFrom;
+            mergedPointTo = pointTo;
+        } else if (pointFrom >= pointTo) {
+            mergedPointFrom = other.pointFrom;
+            mergedPointTo = other.pointTo;
+        } else {
+            mergedPointFrom = Math.min(pointFrom, other.pointFrom);
+            mergedPointTo = Math.max(pointTo, other.pointTo);
+        }
+
+        // Focus moves from where it was before this change to where it
+        // is after the other.
+        boolean focus = hasKind(Kind.FOCUS_CHANGED);
+        boolean otherFocus = other.hasKind(Kind.FOCUS_CHANGED);
+        int mergedOldFocus = focus ? oldFocus : other.oldFocus;
+        int mergedNewFocus = otherFocus ? other.newFocus : newFocus;
+
+        return new GeometryEvent(source, mergedKinds,
+            mergedPathFrom, mergedPathTo, mergedPointFrom, mergedPointTo,
+            movedSides | other.movedSides, mergedOldFocus, mergedNewFocus);
+    }
+
+    public Geometry getSource() {
+        return source;
+    }
+
+    public Set<Kind> getKinds() {
+        return kinds;
+    }
+
+    public boolean hasKind(Kind kind) {
+        return kinds.contains(kind);
+    }
+
+    /**
+     * @return true if this event involves only the given kinds of
+     * change.
+     */
+    public boolean isOnly(Kind... allowed) {
+        for (Kind kind : kinds) {
+            boolean found = false;
+            for (Kind a : allowed) {
+                if (kind == a) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the coordinates of points in image pidx may have
+     * been moved.
+     */
+    public boolean isMoved(int pidx) {
+        return (movedSides & (1 << pidx)) != 0;
+    }
+
+    /**
+     * @return index of first affected path.
+     */
+    public int getPathFrom() {
+        return pathFrom;
+    }
+
+    /**
+     * @return one past the index of the last affected path.
+     */
+    public int getPathTo() {
+        return pathTo;
+    }
+
+    /**
+     * @return index of first affected point.
+     */
+    public int getPointFrom() {
+        return pointFrom;
+    }
+
+    /**
+     * @return one past the index of the last affected point.
+     */
+    public int getPointTo() {
+        return pointTo;
+    }
+
+    /**
+     * @return index of the point focused before a change of focus, or
+     * -1 if there was none or the focus did not change.
+     */
+    public int getOldFocus() {
+        return oldFocus;
+    }
+
+    /**
+     * @return index of the point focused after a change of focus, or -1
+     * if there is none or the focus did not change.
+     */
+    public int getNewFocus() {
+        return newFocus;
+    }
+
+    @Override
+    public String toString() {
+        String s = "GeometryEvent" + kinds
+            + " paths [" + pathFrom + "," + pathTo + ")"
+            + " points [" + pointFrom + "," + pointTo + ")";
+        if (hasKind(Kind.FOCUS_CHANGED))
+            s += " focus " + oldFocus + "->" + newFocus;
+        return s;
+    }
+}
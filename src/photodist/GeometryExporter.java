@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Interface for writers of triangulated 3D geometry.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public interface GeometryExporter {
+
+    /**
+     * Sink for blocks of 3D points.
+     */
+    public interface PointWriter extends Closeable {
+
+        /**
+         * Write points from (inclusive) to to (exclusive) of the given
+         * coordinate arrays, all of which belong to the given path.
+         *
+         * @param X
+         * @param Y
+         * @param Z
+         * @param from
+         * @param to
+         * @param path
+         * @throws IOException
+         */
+        public abstract void write(double[] X, double[] Y, double[] Z,
+            int from, int to, int path) throws IOException;
+    }
+
+    /**
+     * @return short name used to select this format.
+     */
+    public abstract String getName();
+
+    /**
+     * @return human-readable description of format.
+     */
+    public abstract String getDescription();
+
+    /**
+     * @return default file name extension for format.
+     */
+    public abstract String getExtension();
+
+    /**
+     * Open file for writing.  Points need not be known in advance.
+     *
+     * @param file
+     * @return writer
+     * @throws IOException
+     */
+    public abstract PointWriter open(File file) throws IOException;
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Immutable view of the points, paths and parameters of a Geometry at
+ * the time the snapshot was taken.  Snapshots share their arrays with
+ * the geometry, which copies them before modifying anything a snapshot
+ * covers, so taking one is cheap.  A snapshot may be read from any
+ * thread while the geometry continues to be edited.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class GeometrySnapshot {
+
+    final int[] xL, yL, xR, yR;
+    final int size;
+    final int[] pathOffsets;
+    final int nPaths;
+    final boolean pathOpen;
+
+    final CameraModel leftCamera, rightCamera;
+    final Rectification rectification;
+    final int[][] originalPoints;
+    final double sep;
+    final int imageWidth, imageHeight;
+    final int editCount, paramVersion;
+
+    final TriangulationEngine engine;
+
+    GeometrySnapshot(Geometry geom, PointStore points) {
+        points.share();
+        xL = points.xL;
+        yL = points.yL;
+        xR = points.xR;
+        yR = points.yR;
+        size = points.size();
+        pathOffsets = points.pathOffsets;
+        nPaths = points.getPathCount();
+        pathOpen = geom.pathOpen;
+
+        leftCamera = geom.leftCamera;
+        rightCamera = geom.rightCamera;
+        rectification = geom.rectification;
+        originalPoints = geom.originalPoints;
+        sep = geom.sep;
+        imageWidth = geom.imageWidth;
+        imageHeight = geom.imageHeight;
+        editCount = geom.editCount;
+        paramVersion = geom.paramVersion;
+
+        engine = geom.engine;
+    }
+
+    /**
+     * Copy of s with its point coordinates replaced.
+     */
+    GeometrySnapshot(GeometrySnapshot s, int[] xL, int[] yL, int[] xR, int[] yR) {
+        this.xL = xL;
+        this.yL = yL;
+        this.xR = xR;
+        this.yR = yR;
+        size = s.size;
+        pathOffsets = s.pathOffsets;
+        nPaths = s.nPaths;
+        pathOpen = s.pathOpen;
+
+        leftCamera = s.leftCamera;
+        rightCamera = s.rightCamera;
+        rectification = s.rectification;
+        originalPoints = s.originalPoints;
+        sep = s.sep;
+        imageWidth = s.imageWidth;
+        imageHeight = s.imageHeight;
+        editCount = s.editCount;
+        paramVersion = s.paramVersion;
+
+        engine = s.engine;
+    }
+
+    /**
+     * @return total number of points.
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getPathCount() {
+        return nPaths;
+    }
+
+    public int getPathStart(int p) {
+        return pathOffsets[p];
+    }
+
+    public int getPathEnd(int p) {
+        return p+1 < nPaths ? pathOffsets[p+1] : size;
+    }
+
+    /**
+     * @return true if the last path was still under construction.
+     */
+    public boolean isPathOpen() {
+        return pathOpen;
+    }
+
+    public int getX(int i, int pidx) {
+        return pidx == 0 ? xL[i] : xR[i];
+    }
+
+    public int getY(int i, int pidx) {
+        return pidx == 0 ? yL[i] : yR[i];
+    }
+
+    public double getHorizontalFOV() {
+        return leftCamera.fovH;
+    }
+
+    public double getVerticalFOV() {
+        return leftCamera.fovV;
+    }
+
+    /**
+     * @param pidx 0 for the left camera, 1 for the right
+     * @return camera model used for triangulation
+     */
+    public CameraModel getCamera(int pidx) {
+        return pidx == 0 ? leftCamera : rightCamera;
+    }
+
+    /**
+     * @param pidx 0 for the left camera, 1 for the right
+     * @return calibration of the original camera
+     */
+    public CameraModel getCalibration(int pidx) {
+        return rectification != null
+            ? rectification.getCamera(pidx)
+            : getCamera(pidx);
+    }
+
+    /**
+     * @return rectification in effect, or null if none.
+     */
+    public Rectification getRectification() {
+        return rectification;
+    }
+
+    public double getSeparation() {
+        return sep;
+    }
+
+    public int getImageWidth() {
+        return imageWidth;
+    }
+
+    public int getImageHeight() {
+        return imageHeight;
+    }
+
+    /**
+     * @return edit count of the geometry when the snapshot was taken.
+     */
+    public int getEditCount() {
+        return editCount;
+    }
+
+    /**
+     * @return parameter version of the geometry when the snapshot was
+     * taken.
+     */
+    public int getParamVersion() {
+        return paramVersion;
+    }
+
+    /**
+     * @return true if the image size is known.
+     */
+    public boolean canTriangulate() {
+        return imageWidth > 0 && imageHeight > 0;
+    }
+
+    /**
+     * Compute 3D positions of every point.
+     *
+     * @param X array of at least size() elements
+     * @param Y array of at least size() elements
+     * @param Z array of at least size() elements
+     */
+    public void triangulate(double[] X, double[] Y, double[] Z) {
+        long t0 = Metrics.start();
+        TriangulationEngine.RayTable[] t = engine.getRayTables(
+            leftCamera, rightCamera, imageWidth, imageHeight);
+        engine.triangulate(xL, yL, xR, yR, X, Y, Z, 0, size, sep, t[0], t[1]);
+        Metrics.stop(Metrics.Probe.TRIANGULATE, t0);
+    }
+
+    /**
+     * Triangulate every point and write the 3D positions to file using
+     * the given exporter.
+     *
+     * @param exporter
+     * @param file
+     * @throws IOException
+     */
+    public void export3DGeometry(GeometryExporter exporter, File file)
+            throws IOException {
+        double[] X = new double[size];
+        double[] Y = new double[size];
+        double[] Z = new double[size];
+        triangulate(X, Y, Z);
+
+        long t0 = Metrics.start();
+        try (GeometryExporter.PointWriter writer = exporter.open(file)) {
+            for (int p=0; p<nPaths; p++)
+                writer.write(X, Y, Z, getPathStart(p), getPathEnd(p), p);
+        }
+        Metrics.stop(Metrics.Probe.EXPORT, t0);
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.SwingWorker;
+
+/**
+ * Background image decoder.  A subsampled preview no smaller than the
+ * requested preview size is decoded and published first, followed by
+ * the image at full resolution.  Decoding progress (0-100) is reported
+ * through the "progress" property, and cancelling the worker aborts
+ * the decode in progress.
+ *
+ * Images whose decoded size would exceed the tiling threshold (by
+ * default an eighth of the maximum heap size, or the value of the
+ * photodist.tileThreshold property) are not decoded in full, but are
+ * instead backed by a TiledImageSource.  The tile cache is bounded by
+ * the same amount, and the photodist.tileCacheDir property names a
+ * directory in which to keep a raster cache file for evicted tiles.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public abstract class ImageLoader extends SwingWorker<ImageSource, ImageLoader.Preview> {
+
+    /**
+     * Subsampled copy of an image, along with the dimensions of the
+     * full resolution image.
+     */
+    public static class Preview {
+        final BufferedImage image;
+        final int width, height;
+
+        public Preview(BufferedImage image, int width, int height) {
+            this.image = image;
+            this.width = width;
+            this.height = height;
+        }
+
+        public BufferedImage getImage() {
+            return image;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+    }
+
+    final File file;
+    final int previewWidth, previewHeight;
+
+    final long tileThreshold = Long.getLong("photodist.tileThreshold",
+        Runtime.getRuntime().maxMemory()/8);
+    final String tileCacheDir = System.getProperty("photodist.tileCacheDir");
+
+    /*
+     * Fraction of the total progress allotted to the preview, the
+     * remainder being allotted to the full resolution decode.
+     */
+    private float progressStart, progressScale;
+
+    /**
+     * @param file image file to load
+     * @param previewWidth minimum preview width
+     * @param previewHeight minimum preview height
+     */
+    public ImageLoader(File file, int previewWidth, int previewHeight) {
+        this.file = file;
+        this.previewWidth = Math.max(previewWidth, 1);
+        this.previewHeight = Math.max(previewHeight, 1);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Called on the EDT when the preview is available.
+     *
+     * @param preview
+     */
+    protected abstract void previewLoaded(Preview preview);
+
+    /**
+     * Called on the EDT once loading has finished, failed or been
+     * cancelled.  Use get() to retrieve the full resolution image source.
+     */
+    @Override
+    protected abstract void done();
+
+    @Override
+    protected ImageSource doInBackground() throws IOException {
+        long t0 = Metrics.start();
+
+        try (ImageInputStream iis = ImageIO.createImageInputStream(file)) {
+            if (iis == null)
+                throw new IOException("Cannot open " + file.getName());
+
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext())
+                throw new IOException("Unsupported image format: " + file.getName());
+
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                reader.addIIOReadProgressListener(new ProgressListener(reader));
+
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                int subsampling = Math.max(1,
+                    Math.min(width/previewWidth, height/previewHeight));
+                boolean tiled = 4L*width*height > tileThreshold;
+
+                BufferedImage preview = null;
+                if (subsampling > 1) {
+                    progressStart = 0;
+                    progressScale = tiled ? 1f : 1f/(subsampling*subsampling + 1);
+
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                    preview = reader.read(0, param);
+                    if (preview == null || isCancelled())
+                        return null;
+                    publish(new Preview(preview, width, height));
+                }
+
+                if (tiled) {
+                    TiledImageSource source = new TiledImageSource(file,
+                        tileThreshold, tileCacheDir != null
+                            ? new File(tileCacheDir) : null);
+                    source.setOverview(preview);
+                    if (isCancelled()) {
+                        source.dispose();
+                        return null;
+                    }
+                    Metrics.stop(Metrics.Probe.IMAGE_LOAD, t0);
+                    return source;
+                }
+
+                progressStart = 100*progressScale;
+                progressScale = 1 - progressScale;
+                BufferedImage image = reader.read(0);
+                if (image == null || isCancelled())
+                    return null;
+
+                Metrics.stop(Metrics.Probe.IMAGE_LOAD, t0);
+                return new BufferedImageSource(image);
+
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    @Override
+    protected void process(List<Preview> chunks) {
+        if (!isCancelled())
+            previewLoaded(chunks.get(chunks.size()-1));
+    }
+
+    /**
+     * Forwards decoder progress to the worker and aborts the decode
+     * once the worker is cancelled.
+     */
+    private class ProgressListener implements IIOReadProgressListener {
+        final ImageReader reader;
+
+        ProgressListener(ImageReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public void imageProgress(ImageReader source, float percentageDone) {
+            if (isCancelled()) {
+                reader.abort();
+                return;
+            }
+            setProgress(Math.min(100,
+                (int)(progressStart + progressScale*percentageDone)));
+        }
+
+        @Override
+        public void imageStarted(ImageReader source, int imageIndex) { }
+
+        @Override
+        public void imageComplete(ImageReader source) { }
+
+        @Override
+        public void sequenceStarted(ImageReader source, int minIndex) { }
+
+        @Override
+        public void sequenceComplete(ImageReader source) { }
+
+        @Override
+        public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) { }
+
+        @Override
+        public void thumbnailProgress(ImageReader source, float percentageDone) { }
+
+        @Override
+        public void thumbnailComplete(ImageReader source) { }
+
+        @Override
+        public void readAborted(ImageReader source) { }
+    }
+}
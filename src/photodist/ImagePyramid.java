@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cache of downscaled copies of an image.  Holds a mipmap pyramid, in
+ * which each level is half the size of the one before, along with a
+ * copy of the image scaled to the size at which it was last drawn.
+ * Levels and scaled copies are only created when first requested.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class ImagePyramid {
+
+    final BufferedImage source;
+    final List<BufferedImage> levels;
+
+    BufferedImage scaled;
+
+    public ImagePyramid(BufferedImage source) {
+        this.source = source;
+        levels = new ArrayList<>();
+        levels.add(source);
+    }
+
+    public BufferedImage getSource() {
+        return source;
+    }
+
+    /**
+     * Create an image with the given dimensions suited for fast drawing
+     * to the given graphics configuration.
+     *
+     * @param width
+     * @param height
+     * @param gc graphics configuration, may be null
+     * @return new image
+     */
+    BufferedImage createImage(int width, int height, GraphicsConfiguration gc) {
+        boolean opaque = source.getTransparency() == Transparency.OPAQUE;
+        if (gc != null)
+            return gc.createCompatibleImage(width, height,
+                opaque ? Transparency.OPAQUE : Transparency.TRANSLUCENT);
+        else
+            return new BufferedImage(width, height, opaque
+                ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+    }
+
+    private BufferedImage scale(BufferedImage image, int width, int height,
+            GraphicsConfiguration gc) {
+        BufferedImage res = createImage(width, height, gc);
+        Graphics2D g2d = res.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+            RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2d.drawImage(image, 0, 0, width, height, null);
+        g2d.dispose();
+        return res;
+    }
+
+    /**
+     * Retrieve pyramid level k, which has the dimensions of the source
+     * image divided by 2^k (rounded up).
+     *
+     * @param k
+     * @param gc
+     * @return image at level k
+     */
+    public BufferedImage getLevel(int k, GraphicsConfiguration gc) {
+        k = Math.min(k, getLevelCount()-1);
+        while (levels.size() <= k) {
+            BufferedImage prev = levels.get(levels.size()-1);
+            levels.add(scale(prev, (prev.getWidth()+1)/2,
+                (prev.getHeight()+1)/2, gc));
+        }
+        return levels.get(k);
+    }
+
+    /**
+     * @return number of levels, down to a single pixel in the smaller
+     * dimension.
+     */
+    public int getLevelCount() {
+        int minDim = Math.min(source.getWidth(), source.getHeight());
+        return 32 - Integer.numberOfLeadingZeros(minDim);
+    }
+
+    /**
+     * @param scale ratio of displayed size to source size
+     * @return index of the smallest level which is at least as large as
+     * the source scaled by the given factor.
+     */
+    public int getLevelFor(double scale) {
+        int k = 0;
+        while (k+1 < getLevelCount() && scale <= 1.0/(1 << (k+1)))
+            k += 1;
+        return k;
+    }
+
+    /**
+     * Retrieve copy of the image scaled to the given size.  The copy is
+     * cached, so repeated requests for the same size are free.
+     *
+     * @param width
+     * @param height
+     * @param gc
+     * @return scaled image
+     */
+    public BufferedImage getScaledImage(int width, int height,
+            GraphicsConfiguration gc) {
+        width = Math.max(width, 1);
+        height = Math.max(height, 1);
+        if (scaled == null
+            || scaled.getWidth() != width || scaled.getHeight() != height) {
+            double scale = Math.max((double)width/source.getWidth(),
+                (double)height/source.getHeight());
+            scaled = scale(getLevel(getLevelFor(scale), gc), width, height, gc);
+        }
+        return scaled;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import java.awt.Graphics2D;
+
+/**
+ * Source of image pixels.  Implementations may hold the whole image in
+ * memory or decode regions of it on demand, so callers should only
+ * request the pixels they need.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public interface ImageSource {
+
+    /**
+     * @return width of image in pixels.
+     */
+    public int getWidth();
+
+    /**
+     * @return height of image in pixels.
+     */
+    public int getHeight();
+
+    /**
+     * Read ARGB pixels of the given region, which must lie within the
+     * image, into out in row-major order.
+     *
+     * @param x0
+     * @param y0
+     * @param width
+     * @param height
+     * @param out array of at least width*height elements
+     * @throws java.io.UncheckedIOException if pixels cannot be decoded
+     */
+    public void getRGB(int x0, int y0, int width, int height, int[] out);
+
+    /**
+     * Draw the image so that the pixel at (x,y) appears at
+     * ((x-x0)*scaleX, (y-y0)*scaleY).  Only the region from the origin
+     * to (width,height) need be covered.
+     *
+     * @param g2d
+     * @param width
+     * @param height
+     * @param x0
+     * @param y0
+     * @param scaleX
+     * @param scaleY
+     */
+    public void draw(Graphics2D g2d, int width, int height,
+            double x0, double y0, double scaleX, double scaleY);
+
+    /**
+     * Release any resources held by this source.
+     */
+    public void dispose();
+}
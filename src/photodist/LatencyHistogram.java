@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent latency histogram with HDR-style log-linear buckets.  Each
+ * power-of-two range of values is split into SUB_BUCKETS/2 equal
+ * buckets, so recorded values are resolved to within about 3% over the whole
+ * range from 1 ns to several hours.  Recording is wait-free and never
+ * allocates.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class LatencyHistogram {
+
+    static final int SUB_BUCKET_BITS = 6;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    final AtomicLongArray counts;
+    final LongAdder total, sum;
+    final AtomicLongArray max;
+
+    public LatencyHistogram() {
+        counts = new AtomicLongArray(bucketOf(Long.MAX_VALUE)+1);
+        total = new LongAdder();
+        sum = new LongAdder();
+        max = new AtomicLongArray(1);
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int)Math.max(value, 0);
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+        int sub = (int)(value >>> exponent) - SUB_BUCKETS/2;
+        return exponent*SUB_BUCKETS/2 + SUB_BUCKETS/2 + sub;
+    }
+
+    /**
+     * @return lower bound of values falling in bucket b.
+     */
+    static long lowerBoundOf(int b) {
+        if (b < SUB_BUCKETS)
+            return b;
+
+        int exponent = (b - SUB_BUCKETS/2)/(SUB_BUCKETS/2);
+        int sub = (b - SUB_BUCKETS/2) % (SUB_BUCKETS/2);
+        return (long)(sub + SUB_BUCKETS/2) << exponent;
+    }
+
+    /**
+     * Record a value.
+     *
+     * @param value latency in nanoseconds
+     */
+    public void record(long value) {
+        counts.incrementAndGet(bucketOf(value));
+        total.increment();
+        sum.add(value);
+
+        long prev;
+        while (value > (prev = max.get(0))) {
+            if (max.compareAndSet(0, prev, value))
+                break;
+        }
+    }
+
+    public long getCount() {
+        return total.sum();
+    }
+
+    public long getMax() {
+        return max.get(0);
+    }
+
+    public double getMean() {
+        long n = total.sum();
+        return n > 0 ? (double)sum.sum()/n : 0.0;
+    }
+
+    /**
+     * @param q quantile between 0 and 1
+     * @return lower bound of the bucket containing the given quantile.
+     */
+    public long getQuantile(double q) {
+        long n = 0;
+        for (int b=0; b<counts.length(); b++)
+            n += counts.get(b);
+        if (n == 0)
+            return 0;
+
+        long rank = (long)Math.ceil(q*n);
+        long seen = 0;
+        for (int b=0; b<counts.length(); b++) {
+            seen += counts.get(b);
+            if (seen >= rank && seen > 0)
+                return lowerBoundOf(b);
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (int b=0; b<counts.length(); b++)
+            counts.set(b, 0);
+        total.reset();
+        sum.reset();
+        max.set(0, 0);
+    }
+
+    /**
+     * @return one-line summary with latencies in milliseconds.
+     */
+    public String summary() {
+        return String.format(Locale.ROOT,
+            "n=%d mean=%.3f p50=%.3f p90=%.3f p99=%.3f max=%.3f",
+            getCount(), getMean()*1e-6, getQuantile(0.5)*1e-6,
+            getQuantile(0.9)*1e-6, getQuantile(0.99)*1e-6, getMax()*1e-6);
+    }
+}
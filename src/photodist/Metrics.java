@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.Date;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Low-overhead instrumentation of interactive hot paths.  Each probe
+ * has a call counter and a latency histogram, and completed calls are
+ * also emitted as JDK Flight Recorder events when a recording is
+ * active.  When metrics are disabled and no recording is running, the
+ * cost of a probe is two volatile reads.
+ *
+ * Usage:
+ *
+ *   long t0 = Metrics.start();
+ *   ...
+ *   Metrics.stop(Metrics.Probe.PAINT, t0);
+ *
+ * Metrics are enabled at startup by setting the photodist.metrics
+ * system property to true.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public final class Metrics {
+
+    public enum Probe {
+        FOCUS_HIT_TEST("Focused point hit test"),
+        TRIANGULATE("Triangulation"),
+        EXPORT("3D geometry export"),
+        PAINT("Photo panel repaint"),
+        IMAGE_LOAD("Image loading"),
+        PREVIEW("3D preview render");
+
+        final String description;
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        Probe(String description) {
+            this.description = description;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public LatencyHistogram getHistogram() {
+            return histogram;
+        }
+    }
+
+    /**
+     * Flight Recorder event emitted on completion of a probed call.
+     */
+    @Name("photodist.HotPath")
+    @Label("PhotoDist Hot Path")
+    @Category("PhotoDist")
+    @Description("Duration of an instrumented PhotoDist operation")
+    static class HotPathEvent extends Event {
+        @Label("Probe")
+        String probe;
+
+        @Label("Latency")
+        @Timespan(Timespan.NANOSECONDS)
+        long latency;
+    }
+
+    static final EventType HOT_PATH_EVENT_TYPE =
+        EventType.getEventType(HotPathEvent.class);
+
+    static volatile boolean enabled = Boolean.getBoolean("photodist.metrics");
+
+    private Metrics() { }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        Metrics.enabled = enabled;
+    }
+
+    /**
+     * Begin timing a probed call.
+     *
+     * @return start time, or 0 if nothing is being recorded.
+     */
+    public static long start() {
+        if (enabled || HOT_PATH_EVENT_TYPE.isEnabled())
+            return System.nanoTime();
+        else
+            return 0;
+    }
+
+    /**
+     * Finish timing a probed call.
+     *
+     * @param probe
+     * @param startTime value returned by start()
+     */
+    public static void stop(Probe probe, long startTime) {
+        if (startTime == 0)
+            return;
+
+        long duration = System.nanoTime() - startTime;
+        if (enabled)
+            probe.histogram.record(duration);
+
+        if (HOT_PATH_EVENT_TYPE.isEnabled()) {
+            HotPathEvent event = new HotPathEvent();
+            event.probe = probe.name();
+            event.latency = duration;
+            event.commit();
+        }
+    }
+
+    /**
+     * Discard all recorded measurements.
+     */
+    public static void reset() {
+        for (Probe probe : Probe.values())
+            probe.histogram.reset();
+    }
+
+    /**
+     * @return human-readable summary of all probes, with latencies in
+     * milliseconds.
+     */
+    public static String getSnapshot() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("PhotoDist metrics at ").append(new Date())
+            .append(enabled ? "" : " (disabled)").append("\n\n");
+        for (Probe probe : Probe.values()) {
+            sb.append(String.format("%-26s %s\n", probe.getDescription(),
+                probe.histogram.summary()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Write snapshot to file.
+     *
+     * @param file
+     * @throws FileNotFoundException
+     */
+    public static void dump(File file) throws FileNotFoundException {
+        try (PrintStream pstream = new PrintStream(file)) {
+            pstream.print(getSnapshot());
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Exporter for binary little-endian PLY files.  Each vertex carries
+ * double precision x, y and z coordinates and an integer path index.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class PLYExporter implements GeometryExporter {
+
+    /**
+     * Width of the vertex count field in the header.  The count is not
+     * known until all points are written, so the header is written with
+     * a zero-padded placeholder which is overwritten on close.
+     */
+    static final int COUNT_DIGITS = 12;
+
+    @Override
+    public String getName() {
+        return "ply";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Binary PLY";
+    }
+
+    @Override
+    public String getExtension() {
+        return "ply";
+    }
+
+    static byte[] getHeader(long vertexCount) {
+        String header = "ply\n"
+            + "format binary_little_endian 1.0\n"
+            + "comment generated by PhotoDist\n"
+            + "element vertex " + String.format("%0" + COUNT_DIGITS + "d", vertexCount) + "\n"
+            + "property double x\n"
+            + "property double y\n"
+            + "property double z\n"
+            + "property int path\n"
+            + "end_header\n";
+        return header.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public PointWriter open(File file) throws IOException {
+        return new BinaryPointWriter(file) {
+            {
+                buffer.put(getHeader(0));
+            }
+
+            @Override
+            protected int getRecordSize() {
+                return 3*8 + 4;
+            }
+
+            @Override
+            protected void putPoint(double[] X, double[] Y, double[] Z,
+                    int i, int path) {
+                buffer.putDouble(X[i]).putDouble(Y[i]).putDouble(Z[i]).putInt(path);
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    flush();
+                    ByteBuffer header = ByteBuffer.wrap(getHeader(getPointCount()));
+                    long pos = 0;
+                    while (header.hasRemaining())
+                        pos += channel.write(header, pos);
+                } finally {
+                    channel.close();
+                }
+            }
+        };
+    }
+}
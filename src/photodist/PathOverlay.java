@@ -0,0 +1,419 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Rectangle;
+import java.awt.Stroke;
+import java.awt.Transparency;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Cached rendering of the committed paths shown in a PhotoPanel.  Points
+ * appended to the geometry are drawn onto the existing overlay image;
+ * the overlay is only redrawn from scratch following removals, resets,
+ * moves of points in the panel's own image or a change in panel size
+ * or viewport.
+ *
+ * Redrawing only visits paths whose bounds intersect the viewport.  The
+ * lines of each such path are simplified to within LOD_TOLERANCE panel
+ * pixels using Douglas-Peucker significances computed once per path,
+ * and points falling on the same screen pixel are drawn once, so the
+ * drawing cost depends on what is visible rather than on the size of
+ * the geometry.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class PathOverlay {
+
+    static final Stroke THICK_STROKE = new BasicStroke(3);
+    static final Stroke THIN_STROKE = new BasicStroke(1);
+
+    /**
+     * Radius of unfocused points.
+     */
+    static final int POINT_RADIUS = 3;
+
+    /**
+     * Maximum distance in panel pixels between a drawn path and the
+     * points omitted from it.
+     */
+    static final double LOD_TOLERANCE = 1.0;
+
+    final PhotoPanel panel;
+    final Geometry geom;
+
+    BufferedImage image;
+    int renderedCount;
+    double renderedViewX, renderedViewY, renderedScaleX, renderedScaleY;
+
+    /*
+     * Per-path image-space bounds and per-point Douglas-Peucker
+     * significance, valid for path p while it contains cachedLength[p]
+     * points.
+     */
+    int[] cachedLength = new int[0];
+    int[] minX, minY, maxX, maxY;
+    float[] significance = new float[0];
+
+    public PathOverlay(PhotoPanel panel, Geometry geom) {
+        this.panel = panel;
+        this.geom = geom;
+    }
+
+    /**
+     * Mark overlay for complete redraw.
+     */
+    public void invalidate() {
+        image = null;
+    }
+
+    /**
+     * Invalidate overlay if the given change cannot be applied
+     * incrementally.
+     *
+     * @param event
+     */
+    public void geometryChanged(GeometryEvent event) {
+        if (event.hasKind(GeometryEvent.Kind.RESET)
+            || event.hasKind(GeometryEvent.Kind.POINTS_REMOVED)) {
+            Arrays.fill(cachedLength, -1);
+            invalidate();
+        } else if (event.isMoved(panel.pidx)) {
+            int to = Math.min(event.getPathTo(), cachedLength.length);
+            for (int p=Math.max(event.getPathFrom(), 0); p<to; p++)
+                cachedLength[p] = -1;
+            invalidate();
+        }
+    }
+
+    /**
+     * @return true if overlay must be redrawn from scratch before use.
+     */
+    public boolean isInvalid() {
+        return image == null
+            || image.getWidth() != panel.getWidth()
+            || image.getHeight() != panel.getHeight()
+            || renderedViewX != panel.getViewX()
+            || renderedViewY != panel.getViewY()
+            || renderedScaleX != panel.getScaleX()
+            || renderedScaleY != panel.getScaleY()
+            || renderedCount > geom.getPoints().size();
+    }
+
+    /**
+     * Bring overlay up to date with geometry.
+     *
+     * @return panel region affected by an incremental update, or null
+     * if no points were added or the overlay was redrawn from scratch.
+     */
+    public Rectangle update() {
+        if (isInvalid()) {
+            redraw();
+            return null;
+        }
+
+        Rectangle dirty = null;
+        PointStore points = geom.getPoints();
+        if (renderedCount < points.size()) {
+            Graphics2D g2d = image.createGraphics();
+            for (int i=renderedCount; i<points.size(); i++) {
+                int p = points.getPathOf(i);
+                int start = Math.max(points.getPathStart(p), i-1);
+                drawSegments(g2d, points, start, i+1);
+                drawPoints(g2d, points, start, i+1);
+
+                Rectangle bounds = getBounds(points, start, i+1);
+                dirty = dirty == null ? bounds : dirty.union(bounds);
+            }
+            g2d.dispose();
+            renderedCount = points.size();
+        }
+
+        return dirty;
+    }
+
+    private void redraw() {
+        GraphicsConfiguration gc = panel.getGraphicsConfiguration();
+        int width = Math.max(panel.getWidth(), 1);
+        int height = Math.max(panel.getHeight(), 1);
+        if (gc != null)
+            image = gc.createCompatibleImage(width, height, Transparency.TRANSLUCENT);
+        else
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+
+        renderedViewX = panel.getViewX();
+        renderedViewY = panel.getViewY();
+        renderedScaleX = panel.getScaleX();
+        renderedScaleY = panel.getScaleY();
+
+        // Viewport in image coordinates, widened by the point radius.
+        int margin = POINT_RADIUS + 2;
+        double vx0 = panel.getImageX(-margin), vx1 = panel.getImageX(width + margin);
+        double vy0 = panel.getImageY(-margin), vy1 = panel.getImageY(height + margin);
+        double tolerance = LOD_TOLERANCE/Math.max(renderedScaleX, renderedScaleY);
+
+        Graphics2D g2d = image.createGraphics();
+        PointStore points = geom.getPoints();
+        ensureCapacity(points);
+        for (int p=0; p<points.getPathCount(); p++) {
+            if (points.getPathLength(p) == 0)
+                continue;
+
+            updatePathCache(points, p);
+            if (maxX[p] < vx0 || minX[p] > vx1 || maxY[p] < vy0 || minY[p] > vy1)
+                continue;
+
+            drawPath(g2d, points, p, vx0, vy0, vx1, vy1, tolerance);
+        }
+        g2d.dispose();
+
+        renderedCount = points.size();
+    }
+
+    private void ensureCapacity(PointStore points) {
+        int nPaths = points.getPathCount();
+        if (cachedLength.length < nPaths) {
+            int n = Math.max(nPaths, 2*cachedLength.length);
+            int old = cachedLength.length;
+            cachedLength = Arrays.copyOf(cachedLength, n);
+            Arrays.fill(cachedLength, old, n, -1);
+            minX = minX == null ? new int[n] : Arrays.copyOf(minX, n);
+            minY = minY == null ? new int[n] : Arrays.copyOf(minY, n);
+            maxX = maxX == null ? new int[n] : Arrays.copyOf(maxX, n);
+            maxY = maxY == null ? new int[n] : Arrays.copyOf(maxY, n);
+        }
+        if (significance.length < points.size())
+            significance = Arrays.copyOf(significance,
+                Math.max(points.size(), 2*significance.length));
+    }
+
+    /**
+     * Recompute bounds and point significances of path p if it has
+     * changed since they were last computed.
+     */
+    private void updatePathCache(PointStore points, int p) {
+        int from = points.getPathStart(p);
+        int to = points.getPathEnd(p);
+        if (cachedLength[p] == to - from)
+            return;
+
+        int pidx = panel.pidx;
+        int x0 = Integer.MAX_VALUE, y0 = Integer.MAX_VALUE;
+        int x1 = Integer.MIN_VALUE, y1 = Integer.MIN_VALUE;
+        for (int i=from; i<to; i++) {
+            int x = points.getX(i, pidx), y = points.getY(i, pidx);
+            x0 = Math.min(x0, x);
+            y0 = Math.min(y0, y);
+            x1 = Math.max(x1, x);
+            y1 = Math.max(y1, y);
+        }
+        minX[p] = x0;
+        minY[p] = y0;
+        maxX[p] = x1;
+        maxY[p] = y1;
+
+        computeSignificance(points, from, to);
+        cachedLength[p] = to - from;
+    }
+
+    /**
+     * Assign each point from (inclusive) to to (exclusive) the largest
+     * tolerance at which Douglas-Peucker simplification retains it.  A
+     * point's significance never exceeds that of the point which split
+     * the span containing it, so the points with significance above a
+     * given tolerance are exactly those Douglas-Peucker would keep.
+     */
+    private void computeSignificance(PointStore points, int from, int to) {
+        int pidx = panel.pidx;
+        significance[from] = Float.POSITIVE_INFINITY;
+        significance[to-1] = Float.POSITIVE_INFINITY;
+
+        // Explicit stack of spans (a, b, parent significance).
+        int[] spans = new int[64];
+        float[] limits = new float[32];
+        spans[0] = from;
+        spans[1] = to-1;
+        limits[0] = Float.POSITIVE_INFINITY;
+        int top = 1;
+
+        while (top > 0) {
+            top -= 1;
+            int a = spans[2*top], b = spans[2*top+1];
+            float limit = limits[top];
+            if (b - a < 2)
+                continue;
+
+            double ax = points.getX(a, pidx), ay = points.getY(a, pidx);
+            double dx = points.getX(b, pidx) - ax, dy = points.getY(b, pidx) - ay;
+            double len = Math.sqrt(dx*dx + dy*dy);
+
+            int best = a+1;
+            double bestDist = -1;
+            for (int i=a+1; i<b; i++) {
+                double px = points.getX(i, pidx) - ax, py = points.getY(i, pidx) - ay;
+                double dist = len > 0
+                    ? Math.abs(px*dy - py*dx)/len
+                    : Math.sqrt(px*px + py*py);
+                if (dist > bestDist) {
+                    bestDist = dist;
+                    best = i;
+                }
+            }
+
+            float sig = (float)Math.min(bestDist, limit);
+            significance[best] = sig;
+
+            if (2*(top+2) > spans.length) {
+                spans = Arrays.copyOf(spans, 2*spans.length);
+                limits = Arrays.copyOf(limits, 2*limits.length);
+            }
+            spans[2*top] = a;
+            spans[2*top+1] = best;
+            limits[top++] = sig;
+            spans[2*top] = best;
+            spans[2*top+1] = b;
+            limits[top++] = sig;
+        }
+    }
+
+    /**
+     * Draw the simplified form of path p, omitting segments lying
+     * entirely to one side of the viewport.
+     */
+    private void drawPath(Graphics2D g2d, PointStore points, int p,
+            double vx0, double vy0, double vx1, double vy1, double tolerance) {
+        int pidx = panel.pidx;
+        int from = points.getPathStart(p);
+        int to = points.getPathEnd(p);
+
+        Path2D.Double path = new Path2D.Double();
+        Path2D.Double dots = new Path2D.Double();
+        Ellipse2D.Double ellipse = new Ellipse2D.Double();
+        double lastDotX = Double.NaN, lastDotY = Double.NaN;
+        int prev = -1;
+        boolean penDown = false;
+
+        for (int i=from; i<to; i++) {
+            int x = points.getX(i, pidx), y = points.getY(i, pidx);
+
+            // Dots are drawn for every visible point, less those
+            // coinciding with the previous dot on screen.
+            if (x >= vx0 && x <= vx1 && y >= vy0 && y <= vy1) {
+                double dotX = panel.getPanelX(x), dotY = panel.getPanelY(y);
+                if (!(Math.abs(dotX - lastDotX) < 1 && Math.abs(dotY - lastDotY) < 1)) {
+                    ellipse.setFrame(dotX - POINT_RADIUS, dotY - POINT_RADIUS,
+                        2*POINT_RADIUS, 2*POINT_RADIUS);
+                    dots.append(ellipse, false);
+                    lastDotX = dotX;
+                    lastDotY = dotY;
+                }
+            }
+
+            if (significance[i] <= tolerance)
+                continue;
+
+            if (prev >= 0) {
+                int px = points.getX(prev, pidx), py = points.getY(prev, pidx);
+                boolean culled = (x < vx0 && px < vx0) || (x > vx1 && px > vx1)
+                    || (y < vy0 && py < vy0) || (y > vy1 && py > vy1);
+                if (culled) {
+                    penDown = false;
+                } else {
+                    if (!penDown)
+                        path.moveTo(panel.getPanelX(px), panel.getPanelY(py));
+                    path.lineTo(panel.getPanelX(x), panel.getPanelY(y));
+                    penDown = true;
+                }
+            }
+            prev = i;
+        }
+
+        g2d.setStroke(THICK_STROKE);
+        g2d.setColor(Color.WHITE);
+        g2d.draw(path);
+        g2d.setStroke(THIN_STROKE);
+        g2d.setColor(Color.BLUE);
+        g2d.draw(path);
+        g2d.fill(dots);
+    }
+
+    private void drawSegments(Graphics2D g2d, PointStore points, int from, int to) {
+        int pidx = panel.pidx;
+
+        Path2D.Double path = new Path2D.Double();
+        path.moveTo(panel.getPanelX(points.getX(from, pidx)),
+            panel.getPanelY(points.getY(from, pidx)));
+        for (int i=from+1; i<to; i++) {
+            path.lineTo(panel.getPanelX(points.getX(i, pidx)),
+                panel.getPanelY(points.getY(i, pidx)));
+        }
+
+        g2d.setStroke(THICK_STROKE);
+        g2d.setColor(Color.WHITE);
+        g2d.draw(path);
+
+        g2d.setStroke(THIN_STROKE);
+        g2d.setColor(Color.BLUE);
+        g2d.draw(path);
+    }
+
+    private void drawPoints(Graphics2D g2d, PointStore points, int from, int to) {
+        int pidx = panel.pidx;
+
+        g2d.setColor(Color.BLUE);
+        Ellipse2D.Double ellipse = new Ellipse2D.Double();
+        for (int i=from; i<to; i++) {
+            ellipse.setFrame(panel.getPanelX(points.getX(i, pidx)) - POINT_RADIUS,
+                    panel.getPanelY(points.getY(i, pidx)) - POINT_RADIUS,
+                    2*POINT_RADIUS, 2*POINT_RADIUS);
+            g2d.fill(ellipse);
+        }
+    }
+
+    /**
+     * @return panel region covered by points from (inclusive) to to
+     * (exclusive) and the segments joining them.
+     */
+    private Rectangle getBounds(PointStore points, int from, int to) {
+        int pidx = panel.pidx;
+        Rectangle bounds = null;
+        for (int i=from; i<to; i++) {
+            Rectangle r = panel.getPointBounds(points.getX(i, pidx),
+                points.getY(i, pidx), POINT_RADIUS + 1);
+            bounds = bounds == null ? r : bounds.union(r);
+        }
+        return bounds;
+    }
+
+    /**
+     * Draw overlay onto panel graphics context.
+     *
+     * @param g2d
+     */
+    public void paint(Graphics2D g2d) {
+        update();
+
+        g2d.drawImage(image, 0, 0, null);
+    }
+}
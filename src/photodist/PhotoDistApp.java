@@ -19,20 +19,29 @@ package photodist;
 import java.awt.BorderLayout;
 import java.awt.Container;
 import java.awt.Dimension;
+import java.awt.Font;
 import java.awt.GridLayout;
 import java.awt.HeadlessException;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.awt.image.BufferedImage;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.imageio.ImageIO;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -41,9 +50,14 @@ import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.JScrollPane;
 import javax.swing.JSpinner;
+import javax.swing.JTextArea;
+import javax.swing.KeyStroke;
 import javax.swing.SpinnerNumberModel;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.border.TitledBorder;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
@@ -55,10 +69,63 @@ import javax.swing.filechooser.FileNameExtensionFilter;
 public class PhotoDistApp extends JFrame {
 
     final PhotoPanel leftPhotoPanel, rightPhotoPanel;
-    final JMenuItem fileSave;
+    final LoadButtonActionListener leftLoadListener, rightLoadListener;
+    final JMenuItem fileSave, fileSaveDense;
+    final JMenuItem editUndo, editRedo;
+    final JSpinner hFOVspinner, vFOVspinner, distSpinner;
 
     final Geometry geom = new Geometry();
 
+    /**
+     * Delay following the last parameter change before 3D positions
+     * are recomputed.
+     */
+    static final int TRIANGULATION_DELAY_MS = 250;
+
+    /**
+     * Executor for short tasks the user is waiting on, such as matching
+     * clicked points and recomputing 3D positions.
+     */
+    final ExecutorService worker = Executors.newSingleThreadExecutor(
+        new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "PhotoDist worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /**
+     * Executor for long jobs such as exports and session files, which
+     * must not hold up the worker.
+     */
+    final ExecutorService jobWorker = Executors.newSingleThreadExecutor(
+        new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "PhotoDist jobs");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    final Executor edt = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            SwingUtilities.invokeLater(command);
+        }
+    };
+
+    final Timer triangulationTimer;
+    final JLabel readoutLabel;
+
+    final StereoMatcher matcher = new StereoMatcher();
+
+    // Export filtering settings, see CloudFilter.
+    boolean exportFiltering;
+    double exportMinDisparity = 1.0, exportVoxelSize = 0.0, exportOutlierRatio = 2.0;
+
     public PhotoDistApp() throws HeadlessException {
         setTitle("PhotoDist");
         setDefaultCloseOperation(EXIT_ON_CLOSE);
@@ -69,36 +136,73 @@ public class PhotoDistApp extends JFrame {
         JMenu fileMenu = new JMenu("File");
         fileMenu.setMnemonic('f');
 
+        JMenuItem fileOpenSession = new JMenuItem("Open session...", 'o');
+        fileOpenSession.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                JFileChooser fc = new JFileChooser();
+                fc.setFileFilter(new FileNameExtensionFilter(
+                    "PhotoDist sessions", Session.EXTENSION));
+                if (fc.showOpenDialog(rootPane) == JFileChooser.APPROVE_OPTION)
+                    openSession(fc.getSelectedFile());
+            }
+        });
+        fileMenu.add(fileOpenSession);
+
+        JMenuItem fileSaveSession = new JMenuItem("Save session...", 'v');
+        fileSaveSession.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                JFileChooser fc = new JFileChooser();
+                fc.setFileFilter(new FileNameExtensionFilter(
+                    "PhotoDist sessions", Session.EXTENSION));
+                fc.setSelectedFile(new File("session." + Session.EXTENSION));
+                if (fc.showSaveDialog(rootPane) != JFileChooser.APPROVE_OPTION)
+                    return;
+
+                File file = fc.getSelectedFile();
+                if (!file.getName().contains("."))
+                    file = new File(file.getPath() + "." + Session.EXTENSION);
+                saveSession(file);
+            }
+        });
+        fileMenu.add(fileSaveSession);
+
+        fileMenu.addSeparator();
+
         fileSave = new JMenuItem("Save geometry...", 's');
         fileSave.setEnabled(false);
         fileSave.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                if (leftPhotoPanel.getImage().getWidth() != rightPhotoPanel.getImage().getWidth()
-                    || leftPhotoPanel.getImage().getHeight() != rightPhotoPanel.getImage().getHeight()) {
-                    JOptionPane.showMessageDialog(rootPane,
-                        "Left and right image dimensions are different!",
-                        "Error", JOptionPane.ERROR_MESSAGE);
+                if (!checkImageDimensions())
                     return;
-                }
 
-                JFileChooser fc = new JFileChooser();
-                fc.setSelectedFile(new File("geometry.txt"));
-                if (fc.showSaveDialog(rootPane) == JFileChooser.APPROVE_OPTION) {
-                    geom.triangulate(leftPhotoPanel.getImage().getWidth(),
-                        leftPhotoPanel.getImage().getHeight());
-                    try {
-                        geom.export3DGeometry(new PrintStream(fc.getSelectedFile()));
-                    } catch (FileNotFoundException ex) {
-                        JOptionPane.showMessageDialog(rootPane,
-                            "Error writing to selected file.", "Error",
-                            JOptionPane.ERROR_MESSAGE);
-                    }
+                ExportTarget target = chooseExportTarget("geometry");
+                if (target != null) {
+                    geom.setImageSize(leftPhotoPanel.getImageWidth(),
+                        leftPhotoPanel.getImageHeight());
+                    saveGeometry(target);
                 }
             }
         });
         fileMenu.add(fileSave);
 
+        fileSaveDense = new JMenuItem("Save dense point cloud...", 'd');
+        fileSaveDense.setEnabled(false);
+        fileSaveDense.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (!checkImageDimensions())
+                    return;
+
+                ExportTarget target = chooseExportTarget("pointcloud");
+                if (target != null)
+                    saveDensePointCloud(target);
+            }
+        });
+        fileMenu.add(fileSaveDense);
+
         fileMenu.addSeparator();
 
         JMenuItem fileReset = new JMenuItem("Clear geometry", 'c');
@@ -122,6 +226,127 @@ public class PhotoDistApp extends JFrame {
         fileMenu.add(fileExit);
 
         menuBar.add(fileMenu);
+
+        JMenu editMenu = new JMenu("Edit");
+        editMenu.setMnemonic('e');
+
+        editUndo = new JMenuItem("Undo", 'u');
+        editUndo.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z,
+            InputEvent.CTRL_DOWN_MASK));
+        editUndo.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                geom.undo();
+            }
+        });
+        editMenu.add(editUndo);
+
+        editRedo = new JMenuItem("Redo", 'r');
+        editRedo.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y,
+            InputEvent.CTRL_DOWN_MASK));
+        editRedo.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                geom.redo();
+            }
+        });
+        editMenu.add(editRedo);
+
+        menuBar.add(editMenu);
+
+        JMenu toolsMenu = new JMenu("Tools");
+        toolsMenu.setMnemonic('t');
+
+        JMenuItem toolsCalibration = new JMenuItem("Camera calibration...", 'c');
+        toolsCalibration.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                showCalibrationDialog();
+            }
+        });
+        toolsMenu.add(toolsCalibration);
+
+        JMenuItem toolsFilter = new JMenuItem("Export filtering...", 'f');
+        toolsFilter.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                showExportFilterDialog();
+            }
+        });
+        toolsMenu.add(toolsFilter);
+
+        JMenuItem toolsRectify = new JMenuItem("Rectify images", 'i');
+        toolsRectify.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                rectifyImages();
+            }
+        });
+        toolsMenu.add(toolsRectify);
+
+        JMenuItem toolsUnrectify = new JMenuItem("Remove rectification", 'u');
+        toolsUnrectify.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                geom.setRectification(null);
+                triangulationTimer.restart();
+            }
+        });
+        toolsMenu.add(toolsUnrectify);
+        toolsMenu.addSeparator();
+
+        final JCheckBoxMenuItem toolsMetricsEnable =
+            new JCheckBoxMenuItem("Record metrics", Metrics.isEnabled());
+        toolsMetricsEnable.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                Metrics.setEnabled(toolsMetricsEnable.isSelected());
+            }
+        });
+        toolsMenu.add(toolsMetricsEnable);
+
+        JMenuItem toolsMetricsShow = new JMenuItem("Show metrics...", 'm');
+        toolsMetricsShow.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                JTextArea textArea = new JTextArea(Metrics.getSnapshot());
+                textArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+                textArea.setEditable(false);
+                JOptionPane.showMessageDialog(rootPane, new JScrollPane(textArea),
+                    "Metrics", JOptionPane.PLAIN_MESSAGE);
+            }
+        });
+        toolsMenu.add(toolsMetricsShow);
+
+        JMenuItem toolsMetricsDump = new JMenuItem("Dump metrics...", 'd');
+        toolsMetricsDump.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                JFileChooser fc = new JFileChooser();
+                fc.setSelectedFile(new File("metrics.txt"));
+                if (fc.showSaveDialog(rootPane) == JFileChooser.APPROVE_OPTION) {
+                    try {
+                        Metrics.dump(fc.getSelectedFile());
+                    } catch (FileNotFoundException ex) {
+                        JOptionPane.showMessageDialog(rootPane,
+                            "Error writing to selected file.", "Error",
+                            JOptionPane.ERROR_MESSAGE);
+                    }
+                }
+            }
+        });
+        toolsMenu.add(toolsMetricsDump);
+
+        JMenuItem toolsMetricsReset = new JMenuItem("Reset metrics", 'r');
+        toolsMetricsReset.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                Metrics.reset();
+            }
+        });
+        toolsMenu.add(toolsMetricsReset);
+
+        menuBar.add(toolsMenu);
         setJMenuBar(menuBar);
         
         final JPanel leftPanel = new JPanel(new BorderLayout());
@@ -130,8 +355,13 @@ public class PhotoDistApp extends JFrame {
         leftPanel.add(leftPhotoPanel, BorderLayout.CENTER);
         JPanel leftButtonPanel = new JPanel();
         JButton leftLoadButton = new JButton("Choose left image...");
-        leftLoadButton.addActionListener(new LoadButtonActionListener(leftPhotoPanel));
+        JProgressBar leftProgressBar = new JProgressBar();
+        leftProgressBar.setVisible(false);
+        leftLoadListener = new LoadButtonActionListener(
+            leftPhotoPanel, leftLoadButton, leftProgressBar);
+        leftLoadButton.addActionListener(leftLoadListener);
         leftButtonPanel.add(leftLoadButton);
+        leftButtonPanel.add(leftProgressBar);
         leftPanel.add(leftButtonPanel, BorderLayout.PAGE_END);
         leftPanel.setPreferredSize(new Dimension(320, 480));
 
@@ -141,58 +371,531 @@ public class PhotoDistApp extends JFrame {
         rightPanel.add(rightPhotoPanel, BorderLayout.CENTER);
         JPanel rightButtonPanel = new JPanel();
         JButton rightLoadButton = new JButton("Choose right image...");
-        rightLoadButton.addActionListener(new LoadButtonActionListener(rightPhotoPanel));
+        JProgressBar rightProgressBar = new JProgressBar();
+        rightProgressBar.setVisible(false);
+        rightLoadListener = new LoadButtonActionListener(
+            rightPhotoPanel, rightLoadButton, rightProgressBar);
+        rightLoadButton.addActionListener(rightLoadListener);
         rightButtonPanel.add(rightLoadButton);
+        rightButtonPanel.add(rightProgressBar);
         rightPanel.add(rightButtonPanel, BorderLayout.PAGE_END);
         leftPanel.setPreferredSize(new Dimension(320, 480));
 
-        JPanel mainPanel = new JPanel(new GridLayout(1, 2));
+        final JPanel previewPanel = new JPanel(new BorderLayout());
+        previewPanel.setBorder(new TitledBorder("3D preview"));
+        previewPanel.add(new PreviewPanel(geom), BorderLayout.CENTER);
+
+        JPanel mainPanel = new JPanel(new GridLayout(1, 3));
         mainPanel.add(leftPanel);
         mainPanel.add(rightPanel);
+        mainPanel.add(previewPanel);
         cp.add(mainPanel, BorderLayout.CENTER);
 
+        triangulationTimer = new Timer(TRIANGULATION_DELAY_MS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                geom.triangulateAsync(worker, edt);
+            }
+        });
+        triangulationTimer.setRepeats(false);
+
         JPanel paramPanel = new JPanel();
         paramPanel.add(new JLabel("Horiz. FOV (deg):"));
-        JSpinner hFOVspinner = new JSpinner(
+        hFOVspinner = new JSpinner(
                 new SpinnerNumberModel(geom.getHorizontalFOV(), 1, 90, 1));
         hFOVspinner.addChangeListener(new ChangeListener() {
             @Override
             public void stateChanged(ChangeEvent e) {
                 JSpinner spinner = (JSpinner) e.getSource();
                 geom.setHorizontalFOV((double)spinner.getValue());
+                triangulationTimer.restart();
             }
         });
         paramPanel.add(hFOVspinner);
 
         paramPanel.add(new JLabel("  Vert. FOV (deg):"));
-        JSpinner vFOVspinner = new JSpinner(
+        vFOVspinner = new JSpinner(
                 new SpinnerNumberModel(geom.getVeritcalFOV(), 1, 90, 1));
         vFOVspinner.addChangeListener(new ChangeListener() {
             @Override
             public void stateChanged(ChangeEvent e) {
                 JSpinner spinner = (JSpinner) e.getSource();
                 geom.setVerticalFOV((double)spinner.getValue());
+                triangulationTimer.restart();
             }
         });
         paramPanel.add(vFOVspinner);
 
         paramPanel.add(new JLabel("  Sep. (m):"));
-        JSpinner distSpinner = new JSpinner(
+        distSpinner = new JSpinner(
                 new SpinnerNumberModel(geom.getSeparation(), 0.05, 10, 0.1));
         distSpinner.addChangeListener(new ChangeListener() {
             @Override
             public void stateChanged(ChangeEvent e) {
                 JSpinner spinner = (JSpinner) e.getSource();
                 geom.setSeparation((double)spinner.getValue());
+                triangulationTimer.restart();
             }
         });
         paramPanel.add(distSpinner);
+
+        final JCheckBox autoMatchBox = new JCheckBox("Auto-match", true);
+        autoMatchBox.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                setAutoMatch(autoMatchBox.isSelected());
+            }
+        });
+        paramPanel.add(autoMatchBox);
+        setAutoMatch(autoMatchBox.isSelected());
+
+        paramPanel.add(new JLabel("Max. disp. (px):"));
+        JSpinner dispSpinner = new JSpinner(
+                new SpinnerNumberModel(matcher.getMaxDisparity(), 1, 10000, 10));
+        dispSpinner.addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                JSpinner spinner = (JSpinner) e.getSource();
+                int maxDisp = (int)spinner.getValue();
+                matcher.setDisparityRange(-maxDisp, maxDisp);
+            }
+        });
+        paramPanel.add(dispSpinner);
+
+        readoutLabel = new JLabel();
+        paramPanel.add(readoutLabel);
+        geom.addListener(new SwingEventCoalescer(new GeometryListener() {
+            @Override
+            public void geometryChanged() {
+                updateReadout();
+                updateUndoEnabled();
+            }
+        }));
+        updateReadout();
+        updateUndoEnabled();
         cp.add(paramPanel, BorderLayout.PAGE_END);
 
         pack();
         
     }
 
+    /**
+     * Destination chosen for an export.
+     */
+    private static class ExportTarget {
+        final GeometryExporter exporter;
+        final File file;
+
+        ExportTarget(GeometryExporter exporter, File file) {
+            this.exporter = exporter;
+            this.file = file;
+        }
+    }
+
+    /**
+     * Ask user for an export file and format.
+     *
+     * @param defaultName default file name, without extension
+     * @return chosen target, or null if the user cancelled.
+     */
+    private ExportTarget chooseExportTarget(String defaultName) {
+        JFileChooser fc = new JFileChooser();
+        fc.setAcceptAllFileFilterUsed(false);
+        for (GeometryExporter exporter : Exporters.getAll()) {
+            fc.addChoosableFileFilter(new FileNameExtensionFilter(
+                exporter.getDescription(), exporter.getExtension()));
+        }
+        fc.setFileFilter(fc.getChoosableFileFilters()[0]);
+        fc.setSelectedFile(new File(defaultName + "."
+            + Exporters.getAll().get(0).getExtension()));
+        if (fc.showSaveDialog(rootPane) != JFileChooser.APPROVE_OPTION)
+            return null;
+
+        GeometryExporter exporter = Exporters.getAll().get(
+            Arrays.asList(fc.getChoosableFileFilters())
+                .indexOf(fc.getFileFilter()));
+
+        File file = fc.getSelectedFile();
+        if (!file.getName().contains("."))
+            file = new File(file.getPath() + "." + exporter.getExtension());
+
+        if (exportFiltering) {
+            double maxDepth = geom.canTriangulate()
+                ? CloudFilter.getMaxDepth(geom.getCamera(0), geom.getSeparation(),
+                    geom.getImageWidth(), geom.getImageHeight(), exportMinDisparity)
+                : Double.POSITIVE_INFINITY;
+            exporter = CloudFilter.wrap(exporter, maxDepth, exportVoxelSize,
+                exportOutlierRatio);
+        }
+
+        return new ExportTarget(exporter, file);
+    }
+
+    /**
+     * @return true if the loaded images have identical dimensions,
+     * otherwise displays an error and returns false.
+     */
+    private boolean checkImageDimensions() {
+        if (leftPhotoPanel.getImageWidth() != rightPhotoPanel.getImageWidth()
+            || leftPhotoPanel.getImageHeight() != rightPhotoPanel.getImageHeight()) {
+            JOptionPane.showMessageDialog(rootPane,
+                "Left and right image dimensions are different!",
+                "Error", JOptionPane.ERROR_MESSAGE);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compute dense disparity map of the loaded image pair on the job
+     * thread, writing the triangulated point cloud to the target.
+     *
+     * @param target
+     */
+    private void saveDensePointCloud(final ExportTarget target) {
+        final ImageSource left = leftPhotoPanel.getMatchSource();
+        final ImageSource right = rightPhotoPanel.getMatchSource();
+        if (left == null || right == null) {
+            JOptionPane.showMessageDialog(rootPane,
+                "Rectified images are not available yet.",
+                "Dense point cloud", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        final CameraModel leftCamera = geom.getCamera(0);
+        final CameraModel rightCamera = geom.getCamera(1);
+        final double sep = geom.getSeparation();
+        final int maxDisp = matcher.getMaxDisparity();
+
+        fileSaveDense.setEnabled(false);
+        jobWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                String message;
+                int messageType;
+                try {
+                    long count;
+                    CloudFilter filter = null;
+                    try (GeometryExporter.PointWriter writer = target.exporter.open(target.file)) {
+                        DenseStereo stereo = new DenseStereo();
+                        stereo.setDisparityRange(-maxDisp, maxDisp);
+                        DenseStereo.PointCloudWriter cloudWriter =
+                            new DenseStereo.PointCloudWriter(writer, leftCamera,
+                                rightCamera, sep, left.getWidth(), left.getHeight());
+                        stereo.compute(left, right, cloudWriter);
+                        count = cloudWriter.getPointCount();
+                        if (writer instanceof CloudFilter)
+                            filter = (CloudFilter)writer;
+                    }
+                    // Filtered point count is only known once closed.
+                    if (filter != null)
+                        count = filter.getOutputCount();
+                    message = "Wrote " + count
+                        + " points to " + target.file.getName() + ".";
+                    messageType = JOptionPane.INFORMATION_MESSAGE;
+                } catch (IOException ex) {
+                    message = "Error writing to selected file.";
+                    messageType = JOptionPane.ERROR_MESSAGE;
+                }
+
+                final String finalMessage = message;
+                final int finalMessageType = messageType;
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        fileSaveDense.setEnabled(true);
+                        JOptionPane.showMessageDialog(rootPane, finalMessage,
+                            "Dense point cloud", finalMessageType);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Triangulate and export a snapshot of the geometry on the job
+     * thread, so that editing may continue meanwhile.
+     *
+     * @param target
+     */
+    private void saveGeometry(final ExportTarget target) {
+        final GeometrySnapshot snapshot = geom.snapshot();
+        jobWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    snapshot.export3DGeometry(target.exporter, target.file);
+                } catch (IOException ex) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            JOptionPane.showMessageDialog(rootPane,
+                                "Error writing to selected file.", "Error",
+                                JOptionPane.ERROR_MESSAGE);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Write the current session to file on the job thread.
+     *
+     * @param file
+     */
+    private void saveSession(final File file) {
+        final Session session = Session.capture(geom.snapshot(),
+            leftLoadListener.getImageFile(), rightLoadListener.getImageFile());
+        jobWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    session.write(file);
+                } catch (IOException ex) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            JOptionPane.showMessageDialog(rootPane,
+                                "Error writing to selected file.", "Error",
+                                JOptionPane.ERROR_MESSAGE);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Read a session on the job thread, then restore its parameters
+     * and points and load any images it refers to.
+     *
+     * @param file
+     */
+    private void openSession(final File file) {
+        jobWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Session session;
+                try {
+                    session = Session.read(file);
+                } catch (final IOException ex) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            JOptionPane.showMessageDialog(rootPane,
+                                "Error reading session: " + ex.getMessage(),
+                                "Error", JOptionPane.ERROR_MESSAGE);
+                        }
+                    });
+                    return;
+                }
+
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        hFOVspinner.setValue(session.getHorizontalFOV());
+                        vFOVspinner.setValue(session.getVerticalFOV());
+                        distSpinner.setValue(session.getSeparation());
+                        session.applyTo(geom);
+                        triangulationTimer.restart();
+
+                        File dir = file.getAbsoluteFile().getParentFile();
+                        leftLoadListener.load(findImage(session.getLeftImage(), dir));
+                        rightLoadListener.load(findImage(session.getRightImage(), dir));
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Locate an image referenced by a session, looking for a file of the
+     * same name in the session's directory if it is not at its original
+     * location.
+     *
+     * @return image file, or null if it cannot be found
+     */
+    private static File findImage(File image, File sessionDir) {
+        if (image == null || image.exists())
+            return image;
+
+        File moved = new File(sessionDir, image.getName());
+        return moved.exists() ? moved : null;
+    }
+
+    private void setAutoMatch(boolean enabled) {
+        leftPhotoPanel.setAutoMatch(enabled ? matcher : null, rightPhotoPanel, worker);
+        rightPhotoPanel.setAutoMatch(enabled ? matcher : null, leftPhotoPanel, worker);
+    }
+
+    /**
+     * Let the user edit the intrinsics and distortion coefficients of
+     * the left and right cameras.
+     */
+    private void showCalibrationDialog() {
+        String[] names = {"Horiz. FOV (deg)", "Vert. FOV (deg)",
+            "Principal x (px)", "Principal y (px)", "k1", "k2", "p1", "p2"};
+        double[] mins = {1, 1, -10000, -10000, -10, -10, -1, -1};
+        double[] maxs = {90, 90, 10000, 10000, 10, 10, 1, 1};
+        double[] steps = {1, 1, 1, 1, 0.01, 0.01, 0.001, 0.001};
+
+        JPanel panel = new JPanel(new GridLayout(names.length+1, 3, 5, 2));
+        panel.add(new JLabel());
+        panel.add(new JLabel("Left"));
+        panel.add(new JLabel("Right"));
+
+        JSpinner[][] spinners = new JSpinner[2][names.length];
+        for (int k=0; k<names.length; k++) {
+            panel.add(new JLabel(names[k] + ":"));
+            for (int pidx=0; pidx<2; pidx++) {
+                double[] values = getCameraValues(geom.getCalibration(pidx));
+                spinners[pidx][k] = new JSpinner(new SpinnerNumberModel(
+                    values[k], mins[k], maxs[k], steps[k]));
+                spinners[pidx][k].setEditor(
+                    new JSpinner.NumberEditor(spinners[pidx][k], "0.######"));
+                panel.add(spinners[pidx][k]);
+            }
+        }
+
+        if (JOptionPane.showConfirmDialog(rootPane, panel, "Camera calibration",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE)
+                != JOptionPane.OK_OPTION)
+            return;
+
+        CameraModel[] cameras = new CameraModel[2];
+        for (int pidx=0; pidx<2; pidx++) {
+            double[] v = new double[names.length];
+            for (int k=0; k<names.length; k++)
+                v[k] = ((Number)spinners[pidx][k].getValue()).doubleValue();
+            cameras[pidx] = new CameraModel(v[0], v[1], v[2], v[3],
+                v[4], v[5], v[6], v[7]);
+        }
+
+        // The spinners set both cameras, so must be updated first.
+        hFOVspinner.setValue(cameras[0].getHorizontalFOV());
+        vFOVspinner.setValue(cameras[0].getVerticalFOV());
+        geom.setCameras(cameras[0], cameras[1]);
+        triangulationTimer.restart();
+    }
+
+    /**
+     * Estimate rectification from the current correspondences and apply
+     * it to the geometry, whose listeners then rectify the images.
+     */
+    private void rectifyImages() {
+        if (!checkImageDimensions())
+            return;
+
+        Rectification rect;
+        try {
+            rect = geom.rectify();
+        } catch (IllegalStateException ex) {
+            JOptionPane.showMessageDialog(rootPane, ex.getMessage(),
+                "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        triangulationTimer.restart();
+
+        JOptionPane.showMessageDialog(rootPane, String.format(
+            "Rectified using %d of %d points.\n"
+                + "Residual vertical disparity: %.2f px.",
+            rect.getInlierCount(), geom.getPoints().size(), rect.getResidual()),
+            "Rectify images", JOptionPane.INFORMATION_MESSAGE);
+    }
+
+    private void showExportFilterDialog() {
+        JCheckBox enableBox = new JCheckBox("Filter exported points", exportFiltering);
+        JSpinner dispSpinner = new JSpinner(new SpinnerNumberModel(
+            exportMinDisparity, 0.0, 100.0, 0.5));
+        JSpinner voxelSpinner = new JSpinner(new SpinnerNumberModel(
+            exportVoxelSize, 0.0, 100.0, 0.01));
+        JSpinner outlierSpinner = new JSpinner(new SpinnerNumberModel(
+            exportOutlierRatio, 0.0, 10.0, 0.5));
+
+        JPanel panel = new JPanel(new GridLayout(4, 2, 5, 2));
+        panel.add(enableBox);
+        panel.add(new JLabel());
+        panel.add(new JLabel("Min. disparity (px):"));
+        panel.add(dispSpinner);
+        panel.add(new JLabel("Voxel size (m, 0 = off):"));
+        panel.add(voxelSpinner);
+        panel.add(new JLabel("Outlier threshold (SD, 0 = off):"));
+        panel.add(outlierSpinner);
+
+        if (JOptionPane.showConfirmDialog(rootPane, panel, "Export filtering",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE)
+                != JOptionPane.OK_OPTION)
+            return;
+
+        exportFiltering = enableBox.isSelected();
+        exportMinDisparity = ((Number)dispSpinner.getValue()).doubleValue();
+        exportVoxelSize = ((Number)voxelSpinner.getValue()).doubleValue();
+        exportOutlierRatio = ((Number)outlierSpinner.getValue()).doubleValue();
+    }
+
+    private static double[] getCameraValues(CameraModel camera) {
+        return new double[] {camera.getHorizontalFOV(), camera.getVerticalFOV(),
+            camera.getPrincipalX(), camera.getPrincipalY(),
+            camera.getK1(), camera.getK2(), camera.getP1(), camera.getP2()};
+    }
+
+    /**
+     * Display 3D position of the focused point and its distance from
+     * the midpoint between the cameras.
+     */
+    private void updateReadout() {
+        int i = geom.getFocusedIndex();
+        if (i < 0 || !geom.canTriangulate()) {
+            readoutLabel.setText("  Focus: -");
+            return;
+        }
+
+        geom.updateDirtyPoints();
+        if (geom.isParamsDirty())
+            geom.updateTriangulation(i);
+
+        PointStore points = geom.getPoints();
+        double x = points.getTrueX(i);
+        double y = points.getTrueY(i);
+        double z = points.getTrueZ(i);
+        readoutLabel.setText(String.format(
+            "  Focus: (%.2f, %.2f, %.2f) m, dist. %.2f m",
+            x, y, z, Math.sqrt(x*x + y*y + z*z)));
+    }
+
+    /**
+     * Inform geometry of the image size once both images are loaded
+     * and have identical dimensions.
+     */
+    private void updateImageSize() {
+        int width = leftPhotoPanel.getImageWidth();
+        int height = leftPhotoPanel.getImageHeight();
+        if (width > 0 && height > 0
+            && width == rightPhotoPanel.getImageWidth()
+            && height == rightPhotoPanel.getImageHeight()) {
+            geom.setImageSize(width, height);
+            triangulationTimer.restart();
+        }
+    }
+
+    /**
+     * Enable menu items requiring both full resolution images.
+     */
+    private void updateSaveEnabled() {
+        boolean loaded = leftPhotoPanel.getImageSource() != null
+            && rightPhotoPanel.getImageSource() != null;
+        fileSave.setEnabled(loaded);
+        fileSaveDense.setEnabled(loaded);
+    }
+
+    /**
+     * Enable undo and redo menu items according to the history.
+     */
+    private void updateUndoEnabled() {
+        editUndo.setEnabled(geom.canUndo());
+        editRedo.setEnabled(geom.canRedo());
+    }
+
     public static void main(String[] args) {
 
         SwingUtilities.invokeLater(new Runnable() {
@@ -203,37 +906,118 @@ public class PhotoDistApp extends JFrame {
         });
     }
 
+    /**
+     * Loads the chosen image on a background worker, displaying a
+     * preview while the full resolution image is decoded.  Pressing
+     * the button while loading cancels the load.
+     */
     private class LoadButtonActionListener implements ActionListener {
 
-        PhotoPanel photoPanel;
+        final PhotoPanel photoPanel;
+        final JButton button;
+        final JProgressBar progressBar;
+        final String buttonText;
+
+        ImageLoader loader;
+        File imageFile;
 
-        public LoadButtonActionListener(PhotoPanel photoPanel) {
+        public LoadButtonActionListener(PhotoPanel photoPanel,
+                JButton button, JProgressBar progressBar) {
             this.photoPanel = photoPanel;
+            this.button = button;
+            this.progressBar = progressBar;
+            this.buttonText = button.getText();
         }
 
         @Override
         public void actionPerformed(ActionEvent e) {
+            if (loader != null) {
+                loader.cancel(true);
+                return;
+            }
+
             JFileChooser fc = new JFileChooser();
             fc.setAcceptAllFileFilterUsed(false);
             fc.addChoosableFileFilter(new FileNameExtensionFilter("Image files",
                 "jpeg", "jpg", "png", "gif", "tiff"));
-            if (fc.showOpenDialog(getContentPane()) == JFileChooser.APPROVE_OPTION) {
-                try {
-                    BufferedImage image = ImageIO.read(fc.getSelectedFile());
-                    photoPanel.setImage(image);
+            if (fc.showOpenDialog(getContentPane()) == JFileChooser.APPROVE_OPTION)
+                load(fc.getSelectedFile());
+        }
+
+        /**
+         * @return file from which the displayed image was loaded.
+         */
+        public File getImageFile() {
+            return imageFile;
+        }
+
+        /**
+         * Load image from file in the background, cancelling any load
+         * already in progress.  Nothing is done if the image is already
+         * displayed.
+         *
+         * @param file image file, may be null
+         */
+        public void load(File file) {
+            if (file == null || (loader == null && file.equals(imageFile)))
+                return;
+
+            if (loader != null)
+                loader.cancel(true);
+
+            final ImageSource previousSource = photoPanel.getImageSource();
+            loader = new ImageLoader(file,
+                    photoPanel.getWidth(), photoPanel.getHeight()) {
+                @Override
+                protected void previewLoaded(ImageLoader.Preview preview) {
+                    photoPanel.setPreview(preview.getImage(),
+                        preview.getWidth(), preview.getHeight());
                     photoPanel.repaint();
+                    updateImageSize();
+                    updateSaveEnabled();
+                }
 
-                    if (leftPhotoPanel.getImage() != null
-                        && rightPhotoPanel.getImage() != null)
-                        fileSave.setEnabled(true);
+                @Override
+                protected void done() {
+                    if (loader == this) {
+                        loader = null;
+                        button.setText(buttonText);
+                        progressBar.setVisible(false);
+                    }
 
-                } catch (IOException ex) {
-                    JOptionPane.showMessageDialog(getContentPane(),
-                        "Error loading image from file `"
-                            + fc.getSelectedFile().getName(),
-                        "Error", JOptionPane.ERROR_MESSAGE);
+                    ImageSource source = previousSource;
+                    if (!isCancelled()) {
+                        try {
+                            source = get();
+                            imageFile = getFile();
+                            if (previousSource != null)
+                                previousSource.dispose();
+                        } catch (InterruptedException | ExecutionException ex) {
+                            JOptionPane.showMessageDialog(getContentPane(),
+                                "Error loading image from file `"
+                                    + getFile().getName(),
+                                "Error", JOptionPane.ERROR_MESSAGE);
+                        }
+                    }
+
+                    photoPanel.setImageSource(source);
+                    photoPanel.repaint();
+                    updateImageSize();
+                    updateSaveEnabled();
                 }
-            }
+            };
+            loader.addPropertyChangeListener(new PropertyChangeListener() {
+                @Override
+                public void propertyChange(PropertyChangeEvent evt) {
+                    if ("progress".equals(evt.getPropertyName()))
+                        progressBar.setValue((Integer)evt.getNewValue());
+                }
+            });
+
+            button.setText("Cancel");
+            progressBar.setValue(0);
+            progressBar.setVisible(true);
+            loader.execute();
         }
 
     }
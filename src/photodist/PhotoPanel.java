@@ -16,20 +16,28 @@
  */
 package photodist;
 
-import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionAdapter;
+import java.awt.event.MouseWheelEvent;
+import java.awt.event.MouseWheelListener;
 import java.awt.geom.Ellipse2D;
 import java.awt.geom.Line2D;
 import java.awt.image.BufferedImage;
-import java.util.List;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 
 /**
  *
@@ -37,46 +45,149 @@ import javax.swing.JPanel;
  */
 public class PhotoPanel extends JPanel {
 
-    BufferedImage image;
+    /**
+     * Radius of the focused point highlight.
+     */
+    static final int FOCUS_RADIUS = 5;
+
+    /**
+     * Change in zoom per mouse wheel notch.
+     */
+    static final double ZOOM_STEP = 1.25;
+
+    /**
+     * Largest number of panel pixels per image pixel.
+     */
+    static final double MAX_PIXEL_SCALE = 32;
+
+    /*
+     * Full resolution image source, which is null while only a preview
+     * has been loaded, and its dimensions.  The displayed source is
+     * either this or the preview.
+     */
+    ImageSource source;
+    int imageWidth, imageHeight;
+    ImageSource display;
+
+    /*
+     * Rectified version of source, computed in the background whenever
+     * the source or the geometry's rectification changes, and the
+     * rectification it was computed for.  While the geometry is
+     * rectified this is displayed and matched against in place of the
+     * source, so rectification adds nothing to the cost of a repaint.
+     */
+    ImageSource rectified;
+    Rectification rectifiedFor;
+    SwingWorker<ImageSource, Void> rectifier;
+
+    /*
+     * Viewport: image location shown at the panel origin, and
+     * magnification relative to the whole image fitted to the panel.
+     */
+    double viewX, viewY;
+    double zoom = 1;
+    Point dragPoint;
 
     final Geometry geom;
     final int pidx, opidx;
 
+    final PathOverlay overlay;
+
+    /*
+     * Automatic matching of clicked points in the partner panel's image,
+     * performed on the match executor.  Disabled if matcher is null.
+     */
+    StereoMatcher matcher;
+    PhotoPanel partner;
+    Executor matchExecutor;
+
+    /*
+     * Transient state drawn on top of the overlay: the location of the
+     * mouse (used to draw the line to the last point of the current
+     * path), the panel region occupied by that line, and the point
+     * highlighted when last painted.
+     */
+    Point mousePoint;
+    Rectangle rubberBandBounds;
+    int paintedFocus = -1;
+
     public PhotoPanel(Geometry geometry, int panelIdx) {
         this.geom = geometry;
         this.pidx = panelIdx;
         this.opidx = 1-pidx;
 
-        geometry.addListener(new GeometryListener() {
+        overlay = new PathOverlay(this, geom);
+
+        geometry.addListener(new SwingEventCoalescer(new GeometryEventListener() {
+            @Override
+            public void geometryChanged(GeometryEvent event) {
+                if (event.hasKind(GeometryEvent.Kind.PARAMETERS_CHANGED))
+                    updateRectification();
+
+                if (!hasImage())
+                    return;
+
+                overlay.geometryChanged(event);
+                if (overlay.isInvalid()) {
+                    repaint();
+                    return;
+                }
+
+                Rectangle dirty = overlay.update();
+                if (paintedFocus != geom.getFocusedIndex()) {
+                    dirty = union(dirty, getFocusBounds(paintedFocus));
+                    dirty = union(dirty, getFocusBounds(geom.getFocusedIndex()));
+                }
+                if (event.hasKind(GeometryEvent.Kind.POINTS_ADDED)
+                    || event.hasKind(GeometryEvent.Kind.PATH_ENDED)) {
+                    dirty = union(dirty, rubberBandBounds);
+                    dirty = union(dirty, getRubberBandBounds());
+                }
+
+                if (dirty != null)
+                    repaint(dirty);
+            }
+
             @Override
             public void geometryChanged() {
-                repaint();
+                geometryChanged(GeometryEvent.everything(geom));
             }
-        });
+        }));
 
         addMouseListener(new MouseAdapter() {
             @Override
             public void mouseClicked(MouseEvent e) {
-                if (getImage() == null)
+                if (!hasImage())
                     return;
 
-                if (geom.getCurrentPath() != null &&
+                if (geom.isPathOpen() &&
                         e.getButton() == MouseEvent.BUTTON3) {
                     geom.endPath();
                     return;
                 }
 
-                Geometry.PointPair newPointPair = new Geometry.PointPair();
-                newPointPair.x[pidx] = getImageX(e.getX());
-                newPointPair.x[opidx] = newPointPair.x[pidx];
-                newPointPair.y[pidx] = getImageY(e.getY());
-                newPointPair.y[opidx] = newPointPair.y[pidx];
-                geom.addPoint(newPointPair);
+                int x = (int)Math.round(getImageX(e.getX()));
+                int y = (int)Math.round(getImageY(e.getY()));
+                int i = geom.addPoint(x, y, x, y);
+                requestMatch(i, x, y);
+            }
+
+            @Override
+            public void mousePressed(MouseEvent e) {
+                dragPoint = e.getPoint();
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                dragPoint = null;
+                geom.closeEdit();
             }
 
             @Override
             public void mouseExited(MouseEvent e) {
-                repaint();
+                mousePoint = null;
+                if (rubberBandBounds != null)
+                    repaint(rubberBandBounds);
             }
         });
 
@@ -84,31 +195,214 @@ public class PhotoPanel extends JPanel {
 
             @Override
             public void mouseDragged(MouseEvent e) {
-                if (getImage() == null || geom.getCurrentPath() != null)
+                if (!hasImage())
                     return;
 
+                // Ctrl-drags move the focused point along its row, or
+                // freely with shift also held, as is needed to mark
+                // correspondences between unrectified images.
                 int mask = MouseEvent.CTRL_DOWN_MASK | MouseEvent.BUTTON1_DOWN_MASK;
                 if ((e.getModifiersEx() & mask) == mask) {
-                    geom.focusedPoint.x[pidx] = getImageX(e.getX());
-                    //geom.focusedPoint.y[pidx] = getImageY(e.getY());
-                    repaint();
+                    int i = geom.getFocusedIndex();
+                    if (i >= 0 && !geom.isPathOpen()) {
+                        int y = (e.getModifiersEx() & MouseEvent.SHIFT_DOWN_MASK) != 0
+                            ? (int)Math.round(getImageY(e.getY()))
+                            : geom.getPoints().getY(i, pidx);
+                        geom.movePoint(i, pidx, (int)Math.round(getImageX(e.getX())), y);
+                    }
+                    return;
+                }
+
+                // Plain drags pan the view.
+                if (dragPoint != null) {
+                    pan(e.getX() - dragPoint.x, e.getY() - dragPoint.y);
+                    dragPoint = e.getPoint();
                 }
             }
 
             @Override
             public void mouseMoved(MouseEvent e) {
 
-                if (getImage() == null)
+                if (!hasImage())
                     return;
 
-                geom.updateFocusedPoint(getImageX(e.getX()), getImageY(e.getY()), pidx);
+                mousePoint = e.getPoint();
 
-                if (geom.getCurrentPath() != null)
-                    repaint();
+                geom.updateFocusedPoint((int)Math.round(getImageX(e.getX())),
+                    (int)Math.round(getImageY(e.getY())), pidx);
+
+                if (geom.isPathOpen()) {
+                    Rectangle dirty = union(rubberBandBounds, getRubberBandBounds());
+                    if (dirty != null)
+                        repaint(dirty);
+                }
+            }
+        });
+
+        addMouseWheelListener(new MouseWheelListener() {
+            @Override
+            public void mouseWheelMoved(MouseWheelEvent e) {
+                if (hasImage())
+                    zoomAbout(e.getX(), e.getY(),
+                        Math.pow(ZOOM_STEP, -e.getPreciseWheelRotation()));
+            }
+        });
+    }
+
+    /**
+     * Scale zoom by the given factor, keeping the image location under
+     * the given panel location fixed.
+     *
+     * @param panelX
+     * @param panelY
+     * @param factor
+     */
+    public void zoomAbout(double panelX, double panelY, double factor) {
+        double imageX = getImageX(panelX);
+        double imageY = getImageY(panelY);
+
+        double maxZoom = Math.max(1, MAX_PIXEL_SCALE/Math.min(
+            (double)getWidth()/imageWidth, (double)getHeight()/imageHeight));
+        zoom = Math.max(1, Math.min(maxZoom, zoom*factor));
+
+        viewX = imageX + 0.5 - panelX/getScaleX();
+        viewY = imageY + 0.5 - panelY/getScaleY();
+        clampView();
+        repaint();
+    }
+
+    /**
+     * Move the view by the given panel offset.
+     *
+     * @param dx
+     * @param dy
+     */
+    public void pan(double dx, double dy) {
+        viewX -= dx/getScaleX();
+        viewY -= dy/getScaleY();
+        clampView();
+        repaint();
+    }
+
+    /**
+     * Show the whole image.
+     */
+    public void resetView() {
+        zoom = 1;
+        viewX = 0;
+        viewY = 0;
+        repaint();
+    }
+
+    /**
+     * Keep the viewport within the image.
+     */
+    private void clampView() {
+        viewX = Math.max(0, Math.min(imageWidth*(1 - 1/zoom), viewX));
+        viewY = Math.max(0, Math.min(imageHeight*(1 - 1/zoom), viewY));
+    }
+
+    /**
+     * Enable automatic matching of points clicked in this panel with
+     * locations in the partner panel's image.
+     *
+     * @param matcher matcher to use, or null to disable matching
+     * @param partner panel displaying the other image
+     * @param executor executor on which to perform matching
+     */
+    public void setAutoMatch(StereoMatcher matcher, PhotoPanel partner,
+            Executor executor) {
+        this.matcher = matcher;
+        this.partner = partner;
+        this.matchExecutor = executor;
+    }
+
+    /**
+     * Search for the partner of point i, clicked at (x,y), in the other
+     * image and move it there.  The move is skipped if the point has
+     * been edited or removed in the meantime.
+     */
+    private void requestMatch(final int i, final int x, final int y) {
+        final ImageSource from = getMatchSource();
+        final ImageSource to = partner != null ? partner.getMatchSource() : null;
+        if (matcher == null || from == null || to == null)
+            return;
+
+        final StereoMatcher m = matcher;
+        matchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final StereoMatcher.Match match;
+                try {
+                    match = m.match(from, to, x, y);
+                } catch (UncheckedIOException ex) {
+                    return;
+                }
+                if (match == null)
+                    return;
+
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        PointStore points = geom.getPoints();
+                        if (i >= points.size()
+                            || points.getX(i, pidx) != x || points.getY(i, pidx) != y
+                            || points.getX(i, opidx) != x || points.getY(i, opidx) != y)
+                            return;
+
+                        geom.movePoint(i, opidx, (int)Math.round(match.getX()), y);
+                    }
+                });
             }
         });
     }
 
+    private static Rectangle union(Rectangle a, Rectangle b) {
+        if (a == null)
+            return b;
+        if (b == null)
+            return a;
+        return a.union(b);
+    }
+
+    /**
+     * @param imageX
+     * @param imageY
+     * @param rad
+     * @return panel region covering a disk of radius rad about the
+     * given image location.
+     */
+    Rectangle getPointBounds(int imageX, int imageY, int rad) {
+        return new Rectangle((int)Math.floor(getPanelX(imageX)) - rad,
+            (int)Math.floor(getPanelY(imageY)) - rad, 2*rad + 2, 2*rad + 2);
+    }
+
+    private Rectangle getFocusBounds(int i) {
+        PointStore points = geom.getPoints();
+        if (i < 0 || i >= points.size())
+            return null;
+
+        return getPointBounds(points.getX(i, pidx), points.getY(i, pidx),
+            FOCUS_RADIUS + 1);
+    }
+
+    /**
+     * @return panel region occupied by the line joining the mouse to the
+     * last point of the current path, or null if no such line is drawn.
+     */
+    private Rectangle getRubberBandBounds() {
+        PointStore points = geom.getPoints();
+        if (!geom.isPathOpen() || mousePoint == null || points.size() == 0)
+            return null;
+
+        int last = points.size()-1;
+        Rectangle bounds = new Rectangle(mousePoint);
+        bounds.add((int)Math.floor(getPanelX(points.getX(last, pidx))),
+            (int)Math.floor(getPanelY(points.getY(last, pidx))));
+        bounds.grow(4, 4);
+        return bounds;
+    }
+
     @Override
     protected void paintComponent(Graphics g) {
         Graphics2D g2d = (Graphics2D)g;
@@ -116,82 +410,250 @@ public class PhotoPanel extends JPanel {
                 RenderingHints.KEY_ANTIALIASING,
                 RenderingHints.VALUE_ANTIALIAS_ON);
 
-        if (image == null) {
+        if (!hasImage()) {
             super.paintComponent(g);
             return;
         }
 
-        g2d.drawImage(image, 0, 0, getWidth(), getHeight(), null);
-
-        g2d.setStroke(new BasicStroke(3));
-        g2d.setColor(Color.YELLOW);
-        Point mousePosition = getMousePosition();
-        if (geom.getCurrentPath() != null
-            && geom.getCurrentPath().size()>0
-            && mousePosition != null
-            && mousePosition.x>=0 && mousePosition.x<getWidth()
-            && mousePosition.y>=0 && mousePosition.y<getHeight()) {
-            Geometry.PointPair lastPair = geom.getCurrentPath().get(geom.getCurrentPath().size()-1);
-            g2d.draw(new Line2D.Double(mousePosition.x, mousePosition.y,
-                getPanelX(lastPair.x[pidx]),
-                getPanelY(lastPair.y[pidx])));
+        long t0 = Metrics.start();
+        clampView();
+        double fx = (double)display.getWidth()/imageWidth;
+        double fy = (double)display.getHeight()/imageHeight;
+        display.draw(g2d, getWidth(), getHeight(), viewX*fx, viewY*fy,
+            getScaleX()/fx, getScaleY()/fy);
+
+        PointStore points = geom.getPoints();
+        rubberBandBounds = getRubberBandBounds();
+        if (rubberBandBounds != null) {
+            int last = points.size()-1;
+            g2d.setStroke(PathOverlay.THICK_STROKE);
+            g2d.setColor(Color.YELLOW);
+            g2d.draw(new Line2D.Double(mousePoint.x, mousePoint.y,
+                getPanelX(points.getX(last, pidx)),
+                getPanelY(points.getY(last, pidx))));
         }
 
-        for (List<Geometry.PointPair> path : geom.getPaths()) {
-            for (int i=1; i<path.size(); i++) {
-                g2d.setStroke(new BasicStroke(3));
-                g2d.setColor(Color.WHITE);
-                g2d.drawLine(getPanelX(path.get(i-1).x[pidx]),
-                        getPanelY(path.get(i-1).y[pidx]),
-                        getPanelX(path.get(i).x[pidx]),
-                        getPanelY(path.get(i).y[pidx]));
-                g2d.setStroke(new BasicStroke(1));
-                g2d.setColor(Color.BLUE);
-                g2d.drawLine(getPanelX(path.get(i-1).x[pidx]),
-                        getPanelY(path.get(i-1).y[pidx]),
-                        getPanelX(path.get(i).x[pidx]),
-                        getPanelY(path.get(i).y[pidx]));
+        overlay.paint(g2d);
 
+        paintedFocus = geom.getFocusedIndex();
+        if (paintedFocus >= 0) {
+            g2d.setColor(Color.CYAN);
+            g2d.fill(new Ellipse2D.Double(
+                    getPanelX(points.getX(paintedFocus, pidx)) - FOCUS_RADIUS,
+                    getPanelY(points.getY(paintedFocus, pidx)) - FOCUS_RADIUS,
+                    2*FOCUS_RADIUS, 2*FOCUS_RADIUS));
+        }
+        Metrics.stop(Metrics.Probe.PAINT, t0);
+    }
+
+    /**
+     * @return full resolution image source, or null if this has not
+     * (yet) been loaded.
+     */
+    public ImageSource getImageSource() {
+        return source;
+    }
+
+    /**
+     * @return full resolution image in the coordinates used by the
+     * geometry (rectified if the geometry is rectified), or null if this
+     * is not (yet) available.
+     */
+    public ImageSource getMatchSource() {
+        Rectification rect = geom.getRectification();
+        if (rect == null)
+            return source;
+        return rect == rectifiedFor ? rectified : null;
+    }
+
+    /**
+     * Bring the rectified image up to date with the geometry's
+     * rectification, starting a background rectification if needed.
+     * The unrectified image is displayed meanwhile.
+     */
+    void updateRectification() {
+        Rectification rect = geom.getRectification();
+        if (rect == rectifiedFor)
+            return;
+
+        discardRectified();
+        rectifiedFor = rect;
+        if (rect == null || source == null
+            || rect.getWidth() != imageWidth || rect.getHeight() != imageHeight)
+            return;
+
+        final Rectification r = rect;
+        final ImageSource from = source;
+        rectifier = new SwingWorker<ImageSource, Void>() {
+            @Override
+            protected ImageSource doInBackground() {
+                return r.rectify(from, pidx);
             }
-            for (Geometry.PointPair pair : path) {
-                int rad;
-                if (pair == geom.getFocusedPoint())  {
-                    g2d.setColor(Color.CYAN);
-                    rad = 5;
-                } else {
-                    g2d.setColor(Color.BLUE);
-                    rad = 3;
-                }
 
-                g2d.fill(new Ellipse2D.Double(getPanelX(pair.x[pidx]) - rad,
-                        getPanelY(pair.y[pidx]) - rad, 2*rad, 2*rad));
+            @Override
+            protected void done() {
+                if (rectifier != this)
+                    return;
+
+                rectifier = null;
+                try {
+                    rectified = get();
+                    repaintOnTiles(rectified);
+                    display = rectified;
+                } catch (InterruptedException | CancellationException ex) {
+                    rectified = null;
+                } catch (ExecutionException ex) {
+                    // Retried on the next change of parameters.
+                    rectified = null;
+                    rectifiedFor = null;
+                    JOptionPane.showMessageDialog(PhotoPanel.this,
+                        "Error rectifying image: " + ex.getCause(),
+                        "Error", JOptionPane.ERROR_MESSAGE);
+                }
+                overlay.invalidate();
+                repaint();
             }
+        };
+        rectifier.execute();
+    }
+
+    /**
+     * Repaint as tiles missing from a tiled source become available.
+     */
+    private void repaintOnTiles(ImageSource source) {
+        if (source instanceof TiledImageSource) {
+            ((TiledImageSource)source).setTileListener(new Runnable() {
+                @Override
+                public void run() {
+                    repaint();
+                }
+            });
+        }
+    }
+
+    /**
+     * Cancel any rectification in progress and revert to displaying the
+     * unrectified image.
+     */
+    private void discardRectified() {
+        if (rectifier != null) {
+            rectifier.cancel(false);
+            rectifier = null;
+        }
+        if (rectified != null && rectified != source)
+            rectified.dispose();
+        if (rectified != null && display == rectified) {
+            display = source;
+            overlay.invalidate();
+            repaint();
+        }
+        rectified = null;
+        rectifiedFor = null;
+    }
+
+    /**
+     * @return true if an image or a preview of one is displayed.
+     */
+    public boolean hasImage() {
+        return display != null;
+    }
+
+    /**
+     * @return width of the full resolution image.
+     */
+    public int getImageWidth() {
+        return imageWidth;
+    }
+
+    /**
+     * @return height of the full resolution image.
+     */
+    public int getImageHeight() {
+        return imageHeight;
+    }
+
+    public void setImageSource(ImageSource source) {
+        if (source == null || source.getWidth() != imageWidth
+            || source.getHeight() != imageHeight)
+            resetView();
+
+        discardRectified();
+        this.source = source;
+        this.display = source;
+        repaintOnTiles(source);
+        if (source != null) {
+            imageWidth = source.getWidth();
+            imageHeight = source.getHeight();
+        } else {
+            imageWidth = 0;
+            imageHeight = 0;
         }
+        overlay.invalidate();
+        updateRectification();
+    }
+
+    /**
+     * Display a preview in place of an image whose full resolution
+     * version is still loading.  Points are positioned in full
+     * resolution image coordinates throughout.
+     *
+     * @param preview subsampled image
+     * @param width width of full resolution image
+     * @param height height of full resolution image
+     */
+    public void setPreview(BufferedImage preview, int width, int height) {
+        if (width != imageWidth || height != imageHeight)
+            resetView();
+
+        discardRectified();
+        this.source = null;
+        this.display = new BufferedImageSource(preview);
+        imageWidth = width;
+        imageHeight = height;
+        overlay.invalidate();
+    }
 
+    public double getViewX() {
+        return viewX;
     }
 
-    public BufferedImage getImage() {
-        return image;
+    public double getViewY() {
+        return viewY;
     }
 
-    public void setImage(BufferedImage image) {
-        this.image = image;
+    /**
+     * @return panel pixels per image pixel horizontally.
+     */
+    public double getScaleX() {
+        return zoom*getWidth()/imageWidth;
     }
 
-    public int getImageX(int panelX) {
-        return panelX*image.getWidth()/getWidth();
+    /**
+     * @return panel pixels per image pixel vertically.
+     */
+    public double getScaleY() {
+        return zoom*getHeight()/imageHeight;
+    }
+
+    /*
+     * Integer image coordinates refer to pixel centres, so image pixel
+     * x covers the range x-0.5 to x+0.5.
+     */
+
+    public double getImageX(double panelX) {
+        return viewX + panelX/getScaleX() - 0.5;
     }
 
-    public int getPanelX(int imageX) {
-        return imageX*getWidth()/image.getWidth();
+    public double getPanelX(double imageX) {
+        return (imageX + 0.5 - viewX)*getScaleX();
     }
 
-    public int getImageY(int panelY) {
-        return panelY*image.getHeight()/getHeight();
+    public double getImageY(double panelY) {
+        return viewY + panelY/getScaleY() - 0.5;
     }
 
-    public int getPanelY(int imageY) {
-        return imageY*getHeight()/image.getHeight();
+    public double getPanelY(double imageY) {
+        return (imageY + 0.5 - viewY)*getScaleY();
     }
 
 }
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import java.util.Arrays;
+
+/**
+ * Spatial hash over the image coordinates of one side (pidx) of the
+ * points in a PointStore.  Points are bucketed into square cells of
+ * side cellSize, so a nearest-point query within cellSize only needs to
+ * look at the 3x3 block of cells surrounding the query location.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class PointGrid {
+
+    final PointStore points;
+    final int pidx;
+    final int cellSize;
+
+    int[][] buckets;
+    int[] bucketSizes;
+    int size;
+
+    public PointGrid(PointStore points, int pidx, int cellSize) {
+        this.points = points;
+        this.pidx = pidx;
+        this.cellSize = cellSize;
+        allocate(64);
+    }
+
+    private void allocate(int nBuckets) {
+        buckets = new int[nBuckets][];
+        bucketSizes = new int[nBuckets];
+    }
+
+    private int cellOf(int coord) {
+        return Math.floorDiv(coord, cellSize);
+    }
+
+    private int bucketOf(int cx, int cy) {
+        int h = cx*73856093 ^ cy*19349663;
+        return (h ^ (h >>> 16)) & (buckets.length-1);
+    }
+
+    private int bucketOf(int i) {
+        return bucketOf(cellOf(points.getX(i, pidx)), cellOf(points.getY(i, pidx)));
+    }
+
+    private void insertIntoBucket(int b, int i) {
+        if (buckets[b] == null)
+            buckets[b] = new int[4];
+        else if (bucketSizes[b] == buckets[b].length)
+            buckets[b] = Arrays.copyOf(buckets[b], 2*bucketSizes[b]);
+        buckets[b][bucketSizes[b]++] = i;
+    }
+
+    private void rehash() {
+        int[][] oldBuckets = buckets;
+        int[] oldSizes = bucketSizes;
+        allocate(2*oldBuckets.length);
+        for (int b=0; b<oldBuckets.length; b++) {
+            for (int j=0; j<oldSizes[b]; j++)
+                insertIntoBucket(bucketOf(oldBuckets[b][j]), oldBuckets[b][j]);
+        }
+    }
+
+    /**
+     * Add point i to index.  Must be called with the point's current
+     * coordinates.
+     *
+     * @param i
+     */
+    public void insert(int i) {
+        if (size >= 2*buckets.length)
+            rehash();
+
+        insertIntoBucket(bucketOf(i), i);
+        size += 1;
+    }
+
+    /**
+     * Remove point i from index.  Must be called before the point's
+     * coordinates are modified.
+     *
+     * @param i
+     */
+    public void remove(int i) {
+        removeFromBucket(bucketOf(i), i);
+    }
+
+    private void removeFromBucket(int b, int i) {
+        int[] bucket = buckets[b];
+        for (int j=0; j<bucketSizes[b]; j++) {
+            if (bucket[j] == i) {
+                bucket[j] = bucket[--bucketSizes[b]];
+                size -= 1;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Update index following a change of point i's coordinates from
+     * (oldX, oldY).
+     *
+     * @param i
+     * @param oldX
+     * @param oldY
+     */
+    public void move(int i, int oldX, int oldY) {
+        int oldBucket = bucketOf(cellOf(oldX), cellOf(oldY));
+        int newBucket = bucketOf(i);
+        if (oldBucket != newBucket) {
+            removeFromBucket(oldBucket, i);
+            insertIntoBucket(newBucket, i);
+            size += 1;
+        }
+    }
+
+    /**
+     * Rebuild index from scratch using every point in the store.
+     */
+    public void rebuild() {
+        int nBuckets = 64;
+        while (points.size() >= 2*nBuckets)
+            nBuckets *= 2;
+        allocate(nBuckets);
+        size = 0;
+        for (int i=0; i<points.size(); i++)
+            insert(i);
+    }
+
+    public void clear() {
+        allocate(64);
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Find the point closest to (x,y) which lies strictly within
+     * cellSize of it.
+     *
+     * @param x
+     * @param y
+     * @return index of closest point or -1 if none lies within range.
+     */
+    public int findNearest(int x, int y) {
+        int nearest = -1;
+        long bestDist2 = (long)cellSize*cellSize;
+
+        int cx0 = cellOf(x), cy0 = cellOf(y);
+        for (int cx=cx0-1; cx<=cx0+1; cx++) {
+            for (int cy=cy0-1; cy<=cy0+1; cy++) {
+                int b = bucketOf(cx, cy);
+                int[] bucket = buckets[b];
+                for (int j=0; j<bucketSizes[b]; j++) {
+                    int i = bucket[j];
+                    long dx = x - points.getX(i, pidx);
+                    long dy = y - points.getY(i, pidx);
+                    long dist2 = dx*dx + dy*dy;
+                    if (dist2 < bestDist2) {
+                        bestDist2 = dist2;
+                        nearest = i;
+                    }
+                }
+            }
+        }
+
+        return nearest;
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import java.util.Arrays;
+
+/**
+ * Compact storage for point correspondences.  Points are held in
+ * parallel primitive arrays and paths are contiguous runs of points,
+ * with path p occupying indices pathOffsets[p] to pathOffsets[p+1]-1.
+ *
+ * The image coordinate and path offset arrays are copy-on-write with
+ * respect to snapshots: once a snapshot has been taken, modifying any
+ * point or path it covers first replaces the arrays with copies, while
+ * appending points leaves them shared.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class PointStore {
+
+    int[] xL, yL, xR, yR;
+    double[] X, Y, Z;
+    int size;
+
+    int[] pathOffsets;
+    int nPaths;
+
+    /*
+     * Number of leading points and paths whose arrays are shared with
+     * a snapshot.
+     */
+    int sharedSize, sharedPaths;
+
+    public PointStore() {
+        this(16);
+    }
+
+    public PointStore(int capacity) {
+        capacity = Math.max(capacity, 1);
+        xL = new int[capacity];
+        yL = new int[capacity];
+        xR = new int[capacity];
+        yR = new int[capacity];
+        X = new double[capacity];
+        Y = new double[capacity];
+        Z = new double[capacity];
+
+        pathOffsets = new int[8];
+    }
+
+    private void ensurePointCapacity(int capacity) {
+        if (capacity <= xL.length)
+            return;
+
+        int newCapacity = Math.max(capacity, xL.length + (xL.length >> 1));
+        xL = Arrays.copyOf(xL, newCapacity);
+        yL = Arrays.copyOf(yL, newCapacity);
+        xR = Arrays.copyOf(xR, newCapacity);
+        yR = Arrays.copyOf(yR, newCapacity);
+        X = Arrays.copyOf(X, newCapacity);
+        Y = Arrays.copyOf(Y, newCapacity);
+        Z = Arrays.copyOf(Z, newCapacity);
+        sharedSize = 0;
+    }
+
+    /**
+     * Replace coordinate arrays with private copies if point i is
+     * shared with a snapshot.
+     */
+    private void unsharePoint(int i) {
+        if (i >= sharedSize)
+            return;
+
+        xL = xL.clone();
+        yL = yL.clone();
+        xR = xR.clone();
+        yR = yR.clone();
+        sharedSize = 0;
+    }
+
+    /**
+     * Replace path offset array with a private copy if path p is shared
+     * with a snapshot.
+     */
+    private void unsharePath(int p) {
+        if (p >= sharedPaths)
+            return;
+
+        pathOffsets = pathOffsets.clone();
+        sharedPaths = 0;
+    }
+
+    /**
+     * Mark the current points and paths as shared, so that subsequent
+     * modifications leave the current arrays untouched.
+     */
+    void share() {
+        sharedSize = size;
+        sharedPaths = nPaths;
+    }
+
+    /**
+     * @return total number of points in store.
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getPathCount() {
+        return nPaths;
+    }
+
+    public int getPathStart(int p) {
+        return pathOffsets[p];
+    }
+
+    public int getPathEnd(int p) {
+        return p+1 < nPaths ? pathOffsets[p+1] : size;
+    }
+
+    public int getPathLength(int p) {
+        return getPathEnd(p) - getPathStart(p);
+    }
+
+    /**
+     * @param i point index
+     * @return index of path containing point i.
+     */
+    public int getPathOf(int i) {
+        int p = Arrays.binarySearch(pathOffsets, 0, nPaths, i);
+        if (p < 0)
+            return -p - 2;
+
+        // Skip over any empty paths sharing this offset.
+        while (p+1 < nPaths && pathOffsets[p+1] == i)
+            p += 1;
+        return p;
+    }
+
+    public int getX(int i, int pidx) {
+        return pidx == 0 ? xL[i] : xR[i];
+    }
+
+    public int getY(int i, int pidx) {
+        return pidx == 0 ? yL[i] : yR[i];
+    }
+
+    public void setX(int i, int pidx, int x) {
+        unsharePoint(i);
+        if (pidx == 0)
+            xL[i] = x;
+        else
+            xR[i] = x;
+    }
+
+    public void setY(int i, int pidx, int y) {
+        unsharePoint(i);
+        if (pidx == 0)
+            yL[i] = y;
+        else
+            yR[i] = y;
+    }
+
+    public double getTrueX(int i) {
+        return X[i];
+    }
+
+    public double getTrueY(int i) {
+        return Y[i];
+    }
+
+    public double getTrueZ(int i) {
+        return Z[i];
+    }
+
+    /**
+     * Begin a new, empty path.  Subsequently added points belong to it.
+     */
+    public void startPath() {
+        unsharePath(nPaths);
+        if (nPaths == pathOffsets.length) {
+            pathOffsets = Arrays.copyOf(pathOffsets, 2*nPaths);
+            sharedPaths = 0;
+        }
+        pathOffsets[nPaths++] = size;
+    }
+
+    /**
+     * Append a point to the last path.
+     *
+     * @param xLeft
+     * @param yLeft
+     * @param xRight
+     * @param yRight
+     * @return index of new point.
+     */
+    public int add(int xLeft, int yLeft, int xRight, int yRight) {
+        if (nPaths == 0)
+            startPath();
+
+        ensurePointCapacity(size+1);
+        unsharePoint(size);
+        xL[size] = xLeft;
+        yL[size] = yLeft;
+        xR[size] = xRight;
+        yR[size] = yRight;
+        X[size] = 0.0;
+        Y[size] = 0.0;
+        Z[size] = 0.0;
+        return size++;
+    }
+
+    /**
+     * Remove the last path along with all of its points.
+     */
+    public void removeLastPath() {
+        if (nPaths == 0)
+            return;
+
+        size = pathOffsets[--nPaths];
+    }
+
+    /**
+     * Remove every point from index newSize onwards.  Paths are left
+     * untouched, so the points removed should all belong to the last
+     * path.
+     *
+     * @param newSize
+     */
+    public void truncate(int newSize) {
+        size = Math.min(size, newSize);
+    }
+
+    public void clear() {
+        size = 0;
+        nPaths = 0;
+    }
+
+    /**
+     * Replace the contents of the store.  The point arrays are adopted
+     * rather than copied, and triangulated positions are zeroed.
+     *
+     * @param xL
+     * @param yL
+     * @param xR
+     * @param yR
+     * @param size number of points
+     * @param pathOffsets index of first point of each path
+     * @param nPaths number of paths
+     */
+    public void replace(int[] xL, int[] yL, int[] xR, int[] yR, int size,
+            int[] pathOffsets, int nPaths) {
+        int capacity = Math.max(size, 1);
+        this.xL = xL.length >= capacity ? xL : Arrays.copyOf(xL, capacity);
+        this.yL = yL.length >= capacity ? yL : Arrays.copyOf(yL, capacity);
+        this.xR = xR.length >= capacity ? xR : Arrays.copyOf(xR, capacity);
+        this.yR = yR.length >= capacity ? yR : Arrays.copyOf(yR, capacity);
+        X = new double[this.xL.length];
+        Y = new double[this.xL.length];
+        Z = new double[this.xL.length];
+        this.size = size;
+
+        this.pathOffsets = pathOffsets.length >= Math.max(nPaths, 8)
+            ? pathOffsets : Arrays.copyOf(pathOffsets, Math.max(nPaths, 8));
+        this.nPaths = nPaths;
+        sharedSize = 0;
+        sharedPaths = 0;
+    }
+}
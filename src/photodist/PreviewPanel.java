@@ -0,0 +1,527 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import javax.swing.JPanel;
+import javax.swing.Timer;
+
+/**
+ * Panel displaying the triangulated paths in 3D.  The view orbits a
+ * centre chosen to fit the points: dragging rotates, the mouse wheel
+ * zooms and a double click re-fits the view.
+ *
+ * Rendering is done in software into an int raster with an accompanying
+ * depth buffer, both of which are reused between frames.  While the view
+ * is being manipulated, large point sets are thinned to at most
+ * INTERACTIVE_POINT_BUDGET points and drawn without path segments; the
+ * full set is drawn once the view has been left alone for
+ * REFINE_DELAY_MS.  Points appended to the geometry are drawn into the
+ * existing raster rather than triggering a full redraw.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class PreviewPanel extends JPanel {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Maximum number of points drawn per frame while the view is changing.
+     */
+    public static final int INTERACTIVE_POINT_BUDGET = 1 << 18;
+
+    /**
+     * Delay after the last view change before drawing every point.
+     */
+    public static final int REFINE_DELAY_MS = 200;
+
+    static final int BACKGROUND = 0x202020;
+    static final int[] PATH_COLORS = {
+        0x4fc3f7, 0xffb74d, 0x81c784, 0xe57373, 0xba68c8, 0xfff176
+    };
+    static final int SHADE_LEVELS = 32;
+    static final int[][] SHADED_COLORS = new int[PATH_COLORS.length][SHADE_LEVELS];
+    static {
+        // Depth cueing: far points are drawn at 35% of full brightness.
+        for (int c=0; c<PATH_COLORS.length; c++) {
+            for (int l=0; l<SHADE_LEVELS; l++)
+                SHADED_COLORS[c][l] = scale(PATH_COLORS[c],
+                    0.35f + 0.65f*l/(SHADE_LEVELS-1));
+        }
+    }
+
+    static final double FOV = Math.toRadians(50);
+    static final int FOCUS_RADIUS = 5;
+
+    Geometry geom;
+
+    BufferedImage image;
+    int[] raster;
+    float[] depth;
+    int width, height;
+
+    double yaw, pitch;
+    double distance = 1.0;
+    double centreX, centreY, centreZ;
+    double radius = 1.0;
+    boolean fitted;
+
+    // Current view transform (rows are depth, screen x and screen y axes).
+    double m00, m01, m02, m10, m11, m12, m20, m21, m22;
+    double focal, near;
+
+    boolean invalid = true;
+    boolean fullDetail;
+    int renderedCount;
+
+    final Timer refineTimer;
+    final float[] projected = new float[3];
+
+    public PreviewPanel(Geometry geometry) {
+        this.geom = geometry;
+        setPreferredSize(new Dimension(320, 480));
+
+        refineTimer = new Timer(REFINE_DELAY_MS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                fullDetail = true;
+                invalid = true;
+                repaint();
+            }
+        });
+        refineTimer.setRepeats(false);
+
+        geometry.addListener(new SwingEventCoalescer(new GeometryEventListener() {
+            @Override
+            public void geometryChanged(GeometryEvent event) {
+                if (event.hasKind(GeometryEvent.Kind.RESET))
+                    fitted = false;
+
+                if (event.isOnly(GeometryEvent.Kind.FOCUS_CHANGED)) {
+                    repaint();
+                    return;
+                }
+
+                if (!invalid && fitted
+                    && event.isOnly(GeometryEvent.Kind.POINTS_ADDED,
+                        GeometryEvent.Kind.PATH_ENDED,
+                        GeometryEvent.Kind.FOCUS_CHANGED)
+                    && event.getPointFrom() >= renderedCount) {
+                    drawAppended();
+                    repaint();
+                    return;
+                }
+
+                invalidate3D();
+            }
+
+            @Override
+            public void geometryChanged() {
+                invalidate3D();
+            }
+        }));
+
+        MouseAdapter mouseAdapter = new MouseAdapter() {
+            int lastX, lastY;
+
+            @Override
+            public void mousePressed(MouseEvent e) {
+                lastX = e.getX();
+                lastY = e.getY();
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                yaw += 0.01*(e.getX()-lastX);
+                pitch += 0.01*(e.getY()-lastY);
+                pitch = Math.max(-0.5*Math.PI, Math.min(0.5*Math.PI, pitch));
+                lastX = e.getX();
+                lastY = e.getY();
+                invalidate3D();
+            }
+
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2) {
+                    fitted = false;
+                    invalidate3D();
+                }
+            }
+
+            @Override
+            public void mouseWheelMoved(MouseWheelEvent e) {
+                distance *= Math.pow(1.1, e.getPreciseWheelRotation());
+                distance = Math.max(distance, 1e-3*radius);
+                invalidate3D();
+            }
+        };
+        addMouseListener(mouseAdapter);
+        addMouseMotionListener(mouseAdapter);
+        addMouseWheelListener(mouseAdapter);
+    }
+
+    /**
+     * Schedule a redraw from scratch, initially at reduced detail.
+     */
+    void invalidate3D() {
+        fullDetail = false;
+        invalid = true;
+        repaint();
+    }
+
+    /**
+     * @return true if the geometry has 3D positions worth displaying.
+     */
+    boolean hasPoints() {
+        return geom.canTriangulate() && geom.getPoints().size() > 0;
+    }
+
+    /**
+     * Choose view centre and distance so that the bulk of the points are
+     * visible.  Bounds are taken from the 5th and 95th percentiles of a
+     * sample of the points so that stray mismatches do not shrink the
+     * rest of the cloud to a dot.
+     */
+    void fitView() {
+        PointStore points = geom.getPoints();
+        int n = points.size();
+        int stride = Math.max(1, n/4096);
+        double[][] c = new double[3][(n+stride-1)/stride];
+        int m = 0;
+        for (int i=0; i<n; i+=stride) {
+            double x = points.getTrueX(i);
+            double y = points.getTrueY(i);
+            double z = points.getTrueZ(i);
+            if (!isFinite(x) || !isFinite(y) || !isFinite(z))
+                continue;
+            c[0][m] = x;
+            c[1][m] = y;
+            c[2][m] = z;
+            m += 1;
+        }
+        if (m == 0)
+            return;
+
+        double[] centre = new double[3];
+        double[] half = new double[3];
+        for (int k=0; k<3; k++) {
+            Arrays.sort(c[k], 0, m);
+            double lo = c[k][(int)(0.05*(m-1))];
+            double hi = c[k][(int)(0.95*(m-1))];
+            centre[k] = 0.5*(lo + hi);
+            half[k] = 0.5*(hi - lo);
+        }
+        centreX = centre[0];
+        centreY = centre[1];
+        centreZ = centre[2];
+
+        // Depth (X) extent usually dwarfs the lateral extent, so frame the
+        // latter and step back far enough to keep the nearest points in view.
+        double lateral = 1.1*Math.max(half[1], half[2]);
+        radius = Math.sqrt(half[0]*half[0] + half[1]*half[1] + half[2]*half[2]);
+        if (radius == 0.0)
+            radius = lateral = 1.0;
+        distance = half[0] + lateral/Math.tan(0.5*FOV);
+        yaw = 0.0;
+        pitch = 0.0;
+        fitted = true;
+    }
+
+    /**
+     * Recompute view transform.  At zero yaw and pitch the view looks
+     * along the X axis, matching the cameras which took the photos.
+     */
+    void updateTransform() {
+        double cy = Math.cos(yaw), sy = Math.sin(yaw);
+        double cp = Math.cos(pitch), sp = Math.sin(pitch);
+
+        // Yaw about the Z axis followed by pitch about the screen x axis.
+        m00 = cp*cy;  m01 = cp*sy;  m02 = -sp;
+        m10 = -sy;    m11 = cy;     m12 = 0.0;
+        m20 = sp*cy;  m21 = sp*sy;  m22 = cp;
+
+        focal = 0.5*Math.min(width, height)/Math.tan(0.5*FOV);
+        near = 1e-3*distance;
+    }
+
+    /**
+     * Project point i into panel coordinates, leaving the result in
+     * projected[] as (x, y, depth).
+     *
+     * @return false if point has no finite position or lies behind the
+     * near plane.
+     */
+    boolean project(PointStore points, int i) {
+        double x = points.getTrueX(i) - centreX;
+        double y = points.getTrueY(i) - centreY;
+        double z = points.getTrueZ(i) - centreZ;
+
+        double d = m00*x + m01*y + m02*z + distance;
+        if (!(d > near) || Double.isInfinite(d))
+            return false;
+
+        double s = focal/d;
+        projected[0] = (float)(0.5*width + s*(m10*x + m11*y + m12*z));
+        projected[1] = (float)(0.5*height + s*(m20*x + m21*y + m22*z));
+        projected[2] = (float)d;
+        return true;
+    }
+
+    /**
+     * Allocate raster and depth buffer if absent or the panel has been
+     * resized.
+     */
+    void ensureRaster() {
+        if (image != null && width == getWidth() && height == getHeight())
+            return;
+
+        width = Math.max(getWidth(), 1);
+        height = Math.max(getHeight(), 1);
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        raster = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        depth = new float[width*height];
+        invalid = true;
+    }
+
+    /**
+     * Redraw every path from scratch, subsampling if more than budget
+     * points are present.
+     *
+     * @param budget
+     */
+    void render(int budget) {
+        long t0 = Metrics.start();
+        Arrays.fill(raster, BACKGROUND);
+        Arrays.fill(depth, Float.POSITIVE_INFINITY);
+
+        renderedCount = 0;
+        if (!hasPoints()) {
+            Metrics.stop(Metrics.Probe.PREVIEW, t0);
+            return;
+        }
+
+        if (!geom.isParamsDirty())
+            geom.updateDirtyPoints();
+        if (!fitted)
+            fitView();
+        updateTransform();
+
+        PointStore points = geom.getPoints();
+        int n = points.size();
+        int stride = (int)Math.max(1, (n + (long)budget - 1)/budget);
+        drawRange(points, 0, n, stride);
+        renderedCount = n;
+
+        if (stride > 1 && !fullDetail)
+            refineTimer.restart();
+        Metrics.stop(Metrics.Probe.PREVIEW, t0);
+    }
+
+    /**
+     * Draw points appended since the last render into the existing
+     * raster.
+     */
+    void drawAppended() {
+        PointStore points = geom.getPoints();
+        if (!geom.isParamsDirty())
+            geom.updateDirtyPoints();
+
+        long t0 = Metrics.start();
+        drawRange(points, renderedCount, points.size(), 1);
+        renderedCount = points.size();
+        Metrics.stop(Metrics.Probe.PREVIEW, t0);
+    }
+
+    /**
+     * Draw every stride'th point with index in [from, to), together with
+     * the final point of each path.  When drawing at full detail the
+     * path segments joining the points, including the segment leading
+     * into the first point of the range, are drawn too.
+     */
+    void drawRange(PointStore points, int from, int to, int stride) {
+        if (from >= to)
+            return;
+
+        // Shade level falls linearly from the front of the fitted sphere
+        // and bottoms out a little before the back.
+        float shadeScale = (float)((SHADE_LEVELS-1)/(1.3*radius));
+        float shadeOffset = (float)(SHADE_LEVELS-1 + 0.3*(SHADE_LEVELS-1)
+            + shadeScale*(distance - radius));
+
+        for (int p=points.getPathOf(from); p<points.getPathCount(); p++) {
+            int start = points.getPathStart(p);
+            int end = Math.min(points.getPathEnd(p), to);
+            if (start >= to)
+                break;
+
+            int[] shades = SHADED_COLORS[p % PATH_COLORS.length];
+            int first = Math.max(start, from - 1);
+            boolean prevValid = false;
+            float px = 0, py = 0, pd = 0;
+            for (int i=first; i<end; ) {
+                if (project(points, i)) {
+                    float x = projected[0], y = projected[1], d = projected[2];
+                    int level = (int)(shadeOffset - shadeScale*d);
+                    int rgb = shades[Math.max(0, Math.min(SHADE_LEVELS-1, level))];
+                    if (i >= from)
+                        drawPoint(x, y, d, rgb);
+                    if (prevValid && stride == 1)
+                        drawLine(px, py, pd, x, y, d, rgb);
+                    px = x;
+                    py = y;
+                    pd = d;
+                    prevValid = true;
+                } else
+                    prevValid = false;
+
+                if (i < from)
+                    i = from;
+                else
+                    i = i == end-1 ? end : Math.min(i + stride, end-1);
+            }
+        }
+    }
+
+    /**
+     * Draw a 2x2 pixel point, subject to the depth test.
+     */
+    void drawPoint(float x, float y, float d, int rgb) {
+        if (!(x >= -1 && y >= -1 && x < width && y < height))
+            return;
+
+        int ix = (int)(x + 1) - 1, iy = (int)(y + 1) - 1;
+        if (ix >= 0 && iy >= 0 && ix < width-1 && iy < height-1) {
+            int idx = iy*width + ix;
+            plot(idx, d, rgb);
+            plot(idx+1, d, rgb);
+            plot(idx+width, d, rgb);
+            plot(idx+width+1, d, rgb);
+            return;
+        }
+
+        // Point straddles the raster edge.
+        for (int yy=Math.max(iy, 0); yy<=Math.min(iy+1, height-1); yy++) {
+            for (int xx=Math.max(ix, 0); xx<=Math.min(ix+1, width-1); xx++)
+                plot(yy*width + xx, d, rgb);
+        }
+    }
+
+    private void plot(int idx, float d, int rgb) {
+        if (d < depth[idx]) {
+            depth[idx] = d;
+            raster[idx] = rgb;
+        }
+    }
+
+    /**
+     * Draw a depth-tested line segment, clipped to the raster bounds
+     * using the Liang-Barsky algorithm.
+     */
+    void drawLine(float x0, float y0, float d0, float x1, float y1, float d1,
+            int rgb) {
+        float dx = x1 - x0, dy = y1 - y0;
+        if (Math.abs(dx) < 2 && Math.abs(dy) < 2)
+            return; // Gap already covered by the 2x2 end points.
+
+        float[] t = {0.0f, 1.0f};
+        if (!clip(-dx, x0, t) || !clip(dx, width - 1 - x0, t)
+            || !clip(-dy, y0, t) || !clip(dy, height - 1 - y0, t))
+            return;
+
+        float sx = x0 + t[0]*dx, sy = y0 + t[0]*dy;
+        float ex = x0 + t[1]*dx, ey = y0 + t[1]*dy;
+        float sd = d0 + t[0]*(d1-d0), ed = d0 + t[1]*(d1-d0);
+
+        int steps = (int)Math.ceil(Math.max(Math.abs(ex-sx), Math.abs(ey-sy)));
+        if (steps == 0)
+            return;
+
+        float incX = (ex-sx)/steps, incY = (ey-sy)/steps, incD = (ed-sd)/steps;
+        for (int s=0; s<=steps; s++) {
+            int ix = (int)(sx + 0.5f), iy = (int)(sy + 0.5f);
+            if (ix >= 0 && iy >= 0 && ix < width && iy < height) {
+                plot(iy*width + ix, sd, rgb);
+            }
+            sx += incX;
+            sy += incY;
+            sd += incD;
+        }
+    }
+
+    private static boolean clip(float p, float q, float[] t) {
+        if (p == 0)
+            return q >= 0;
+
+        float r = q/p;
+        if (p < 0) {
+            if (r > t[1])
+                return false;
+            t[0] = Math.max(t[0], r);
+        } else {
+            if (r < t[0])
+                return false;
+            t[1] = Math.min(t[1], r);
+        }
+        return true;
+    }
+
+    private static int scale(int rgb, float f) {
+        int r = (int)(((rgb >> 16) & 0xff)*f);
+        int g = (int)(((rgb >> 8) & 0xff)*f);
+        int b = (int)((rgb & 0xff)*f);
+        return (r << 16) | (g << 8) | b;
+    }
+
+    private static boolean isFinite(double x) {
+        return !Double.isNaN(x) && !Double.isInfinite(x);
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        ensureRaster();
+        if (invalid) {
+            render(fullDetail ? Integer.MAX_VALUE : INTERACTIVE_POINT_BUDGET);
+            invalid = false;
+        }
+
+        Graphics2D g2d = (Graphics2D)g;
+        g2d.drawImage(image, 0, 0, null);
+
+        int i = geom.getFocusedIndex();
+        if (i >= 0 && i < renderedCount && project(geom.getPoints(), i)) {
+            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                RenderingHints.VALUE_ANTIALIAS_ON);
+            g2d.setColor(Color.CYAN);
+            g2d.draw(new Ellipse2D.Double(
+                projected[0] - FOCUS_RADIUS, projected[1] - FOCUS_RADIUS,
+                2*FOCUS_RADIUS, 2*FOCUS_RADIUS));
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Exporter for headerless little-endian blocks of interleaved x, y, z
+ * coordinates in either single or double precision.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class RawExporter implements GeometryExporter {
+
+    final boolean doublePrecision;
+
+    public RawExporter(boolean doublePrecision) {
+        this.doublePrecision = doublePrecision;
+    }
+
+    @Override
+    public String getName() {
+        return doublePrecision ? "raw64" : "raw32";
+    }
+
+    @Override
+    public String getDescription() {
+        return doublePrecision
+            ? "Raw little-endian doubles (x y z)"
+            : "Raw little-endian floats (x y z)";
+    }
+
+    @Override
+    public String getExtension() {
+        return doublePrecision ? "f64" : "f32";
+    }
+
+    @Override
+    public PointWriter open(File file) throws IOException {
+        if (doublePrecision) {
+            return new BinaryPointWriter(file) {
+                @Override
+                protected int getRecordSize() {
+                    return 3*8;
+                }
+
+                @Override
+                protected void putPoint(double[] X, double[] Y, double[] Z,
+                        int i, int path) {
+                    buffer.putDouble(X[i]).putDouble(Y[i]).putDouble(Z[i]);
+                }
+            };
+        } else {
+            return new BinaryPointWriter(file) {
+                @Override
+                protected int getRecordSize() {
+                    return 3*4;
+                }
+
+                @Override
+                protected void putPoint(double[] X, double[] Y, double[] Z,
+                        int i, int path) {
+                    buffer.putFloat((float)X[i]).putFloat((float)Y[i]).putFloat((float)Z[i]);
+                }
+            };
+        }
+    }
+}
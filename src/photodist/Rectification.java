@@ -0,0 +1,612 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Stereo rectification of an image pair.  Both images are resampled
+ * onto a common distortion-free camera, whose rows are aligned by
+ * rotating the right camera's rays.  A point's rows in the two
+ * rectified images then agree, as assumed by triangulation and by
+ * row-based matching.
+ *
+ * The rotation is estimated from point correspondences by minimising
+ * the vertical disparity between them.  Only pitch and roll are
+ * estimated: yaw shifts points along rows and so is indistinguishable
+ * from a change of depth.
+ *
+ * Remap tables giving the source location of every rectified pixel are
+ * built on first use and retained, so rectifying a new image with the
+ * same calibration costs only the resampling.  Tiled images are instead
+ * rectified lazily, a tile at a time, with source locations computed
+ * per tile, so that memory use stays bounded by the tile caches.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class Rectification {
+
+    /**
+     * Minimum number of correspondences needed by estimate().
+     */
+    public static final int MIN_CORRESPONDENCES = 3;
+
+    static final int ITERATIONS = 10;
+    static final int BAND_HEIGHT = 64;
+
+    final CameraModel left, right, rectified;
+    final int width, height;
+
+    /*
+     * Row-major rotation taking rays of the right camera to rays of the
+     * rectified right camera.
+     */
+    final double[] rotation;
+
+    double residual = Double.NaN;
+    int inlierCount;
+
+    private final RemapTable[] remapTables = new RemapTable[2];
+
+    /**
+     * @param left left camera calibration
+     * @param right right camera calibration
+     * @param width image width
+     * @param height image height
+     * @param rotation row-major 3x3 rotation applied to right camera rays
+     */
+    public Rectification(CameraModel left, CameraModel right,
+            int width, int height, double[] rotation) {
+        if (rotation.length != 9)
+            throw new IllegalArgumentException("Rotation must have 9 elements.");
+
+        this.left = left;
+        this.right = right;
+        this.rectified = new CameraModel(left.fovH, left.fovV);
+        this.width = width;
+        this.height = height;
+        this.rotation = rotation.clone();
+    }
+
+    /**
+     * @param left
+     * @param right
+     * @return rectification using the same rotation but new camera
+     * calibrations.
+     */
+    public Rectification withCameras(CameraModel left, CameraModel right) {
+        return new Rectification(left, right, width, height, rotation);
+    }
+
+    /**
+     * Estimate rectification from point correspondences given in
+     * original image coordinates.  Correspondences whose vertical
+     * disparity is inconsistent with the rest are ignored.
+     *
+     * @param left left camera calibration
+     * @param right right camera calibration
+     * @param width image width
+     * @param height image height
+     * @param xL
+     * @param yL
+     * @param xR
+     * @param yR
+     * @param n number of correspondences
+     * @return rectification
+     * @throws IllegalArgumentException if fewer than MIN_CORRESPONDENCES
+     * are given
+     */
+    public static Rectification estimate(CameraModel left, CameraModel right,
+            int width, int height, int[] xL, int[] yL, int[] xR, int[] yR, int n) {
+        if (n < MIN_CORRESPONDENCES)
+            throw new IllegalArgumentException("At least " + MIN_CORRESPONDENCES
+                + " correspondences are needed for rectification.");
+
+        Rectification rect = new Rectification(left, right, width, height,
+            new double[] {1, 0, 0, 0, 1, 0, 0, 0, 1});
+
+        // Undistorted rays of each correspondence.
+        double[] vL = new double[n];
+        double[] uR = new double[n], vR = new double[n];
+        double[] ray = new double[2];
+        for (int i=0; i<n; i++) {
+            rect.getRay(0, xL[i], yL[i], ray);
+            vL[i] = ray[1];
+            rect.getRay(1, xR[i], yR[i], ray);
+            uR[i] = ray[0];
+            vR[i] = ray[1];
+        }
+
+        // Gauss-Newton iterations, each finding the small pitch (about x)
+        // and roll (about z) which best align the rotated right rays with
+        // the left rows.  Correspondences with residuals far beyond the
+        // median absolute residual are excluded.
+        double[] R = rect.rotation;
+        double[] u = new double[n], v = new double[n], e = new double[n];
+        double cutoff = Double.POSITIVE_INFINITY;
+        for (int it=0; it<ITERATIONS; it++) {
+            double a00 = 0, a01 = 0, a11 = 0, b0 = 0, b1 = 0;
+            for (int i=0; i<n; i++) {
+                rotate(R, uR[i], vR[i], ray);
+                u[i] = ray[0];
+                v[i] = ray[1];
+                e[i] = vL[i] - v[i];
+                if (!(Math.abs(e[i]) <= cutoff))
+                    continue;
+
+                double jx = -(1 + v[i]*v[i]);
+                double jz = u[i];
+                a00 += jx*jx;
+                a01 += jx*jz;
+                a11 += jz*jz;
+                b0 += jx*e[i];
+                b1 += jz*e[i];
+            }
+
+            // A little damping keeps roll finite when the points lie in
+            // a single column.
+            double damping = 1e-9*(a00 + a11);
+            a00 += damping;
+            a11 += damping;
+            double det = a00*a11 - a01*a01;
+            if (!(det > 0))
+                break;
+
+            double wx = (a11*b0 - a01*b1)/det;
+            double wz = (a00*b1 - a01*b0)/det;
+            multiply(axisAngle(wx, 0, wz), R, R);
+
+            double[] absE = new double[n];
+            for (int i=0; i<n; i++)
+                absE[i] = Math.abs(vL[i] - rotatedV(R, uR[i], vR[i]));
+            Arrays.sort(absE);
+            double mad = absE[n/2];
+            double pixel = rect.rectified.fovV/(2*height)*Math.PI/180;
+            cutoff = Math.max(3*1.4826*mad, 0.5*pixel);
+        }
+
+        // Residual vertical disparity of inliers, in rectified pixels.
+        double sumSq = 0;
+        int inliers = 0;
+        for (int i=0; i<n; i++) {
+            double r = vL[i] - rotatedV(R, uR[i], vR[i]);
+            if (Math.abs(r) <= cutoff) {
+                sumSq += r*r;
+                inliers += 1;
+            }
+        }
+        double pixel = rect.rectified.fovV/(2*height)*Math.PI/180;
+        rect.residual = inliers > 0 ? Math.sqrt(sumSq/inliers)/pixel : Double.NaN;
+        rect.inlierCount = inliers;
+
+        return rect;
+    }
+
+    /**
+     * @param pidx 0 for the left camera, 1 for the right
+     * @return calibration of original camera.
+     */
+    public CameraModel getCamera(int pidx) {
+        return pidx == 0 ? left : right;
+    }
+
+    /**
+     * @return distortion-free camera model shared by both rectified
+     * images.
+     */
+    public CameraModel getRectifiedCamera() {
+        return rectified;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return copy of row-major rotation applied to right camera rays.
+     */
+    public double[] getRotation() {
+        return rotation.clone();
+    }
+
+    /**
+     * @return RMS vertical disparity in rectified pixels of the
+     * correspondences used in estimation, or NaN if not estimated.
+     */
+    public double getResidual() {
+        return residual;
+    }
+
+    /**
+     * @return number of correspondences used in estimation.
+     */
+    public int getInlierCount() {
+        return inlierCount;
+    }
+
+    /**
+     * Undistorted ray tangents through pixel (x,y) of original image pidx.
+     */
+    void getRay(int pidx, double x, double y, double[] result) {
+        CameraModel camera = getCamera(pidx);
+        double tf = camera.fovH/(2*width)*Math.PI/180;
+        double pf = camera.fovV/(2*height)*Math.PI/180;
+        camera.undistort(Math.tan((x - 0.5*width - camera.cx)*tf),
+            Math.tan((y - 0.5*height - camera.cy)*pf), result);
+    }
+
+    /**
+     * Map pixel (x,y) of original image pidx to rectified coordinates.
+     *
+     * @param pidx
+     * @param x
+     * @param y
+     * @param result array to receive rectified x and y
+     */
+    public void toRectified(int pidx, double x, double y, double[] result) {
+        getRay(pidx, x, y, result);
+        if (pidx == 1)
+            rotate(rotation, result[0], result[1], result);
+
+        double tf = rectified.fovH/(2*width)*Math.PI/180;
+        double pf = rectified.fovV/(2*height)*Math.PI/180;
+        result[0] = Math.atan(result[0])/tf + 0.5*width;
+        result[1] = Math.atan(result[1])/pf + 0.5*height;
+    }
+
+    /**
+     * Map pixel (x,y) of rectified image pidx to original coordinates.
+     *
+     * @param pidx
+     * @param x
+     * @param y
+     * @param result array to receive original x and y
+     */
+    public void fromRectified(int pidx, double x, double y, double[] result) {
+        double tf = rectified.fovH/(2*width)*Math.PI/180;
+        double pf = rectified.fovV/(2*height)*Math.PI/180;
+        fromRectifiedRay(pidx, Math.tan((x - 0.5*width)*tf),
+            Math.tan((y - 0.5*height)*pf), result);
+    }
+
+    /**
+     * Map rectified ray tangents (u,v) of camera pidx to original pixel
+     * coordinates.
+     */
+    private void fromRectifiedRay(int pidx, double u, double v, double[] result) {
+        if (pidx == 1) {
+            double[] R = rotation;
+            double x = R[0]*u + R[3]*v + R[6];
+            double y = R[1]*u + R[4]*v + R[7];
+            double z = R[2]*u + R[5]*v + R[8];
+            u = x/z;
+            v = y/z;
+        }
+
+        CameraModel camera = getCamera(pidx);
+        camera.distort(u, v, result);
+        double tf = camera.fovH/(2*width)*Math.PI/180;
+        double pf = camera.fovV/(2*height)*Math.PI/180;
+        result[0] = Math.atan(result[0])/tf + 0.5*width + camera.cx;
+        result[1] = Math.atan(result[1])/pf + 0.5*height + camera.cy;
+    }
+
+    /**
+     * Map the given point coordinates in place, to rectified coordinates
+     * if toRectified is true or back to original coordinates otherwise.
+     * Coordinates are rounded to the nearest pixel.
+     *
+     * @param xL
+     * @param yL
+     * @param xR
+     * @param yR
+     * @param n number of points
+     * @param toRectified
+     */
+    public void mapPoints(int[] xL, int[] yL, int[] xR, int[] yR, int n,
+            boolean toRectified) {
+        double[] p = new double[2];
+        for (int pidx=0; pidx<2; pidx++) {
+            int[] xs = pidx == 0 ? xL : xR;
+            int[] ys = pidx == 0 ? yL : yR;
+            for (int i=0; i<n; i++) {
+                if (toRectified)
+                    toRectified(pidx, xs[i], ys[i], p);
+                else
+                    fromRectified(pidx, xs[i], ys[i], p);
+                xs[i] = (int)Math.round(p[0]);
+                ys[i] = (int)Math.round(p[1]);
+            }
+        }
+    }
+
+    /**
+     * @param pidx
+     * @return true if rectified image pidx is identical to the original.
+     */
+    public boolean isIdentity(int pidx) {
+        return pidx == 0 && left.equals(rectified);
+    }
+
+    /**
+     * @param pidx
+     * @return table of original image locations of each pixel of
+     * rectified image pidx, built on first use.
+     */
+    public synchronized RemapTable getRemapTable(int pidx) {
+        if (remapTables[pidx] == null)
+            remapTables[pidx] = buildRemapTable(pidx);
+        return remapTables[pidx];
+    }
+
+    private RemapTable buildRemapTable(final int pidx) {
+        final RemapTable table = new RemapTable(width, height);
+
+        // Rectified ray tangents are separable.
+        double tf = rectified.fovH/(2*width)*Math.PI/180;
+        double pf = rectified.fovV/(2*height)*Math.PI/180;
+        final double[] tanU = new double[width];
+        for (int x=0; x<width; x++)
+            tanU[x] = Math.tan((x - 0.5*width)*tf);
+        final double[] tanV = new double[height];
+        for (int y=0; y<height; y++)
+            tanV[y] = Math.tan((y - 0.5*height)*pf);
+
+        invokeBands(new BandTask() {
+            @Override
+            public void run(int y0, int y1) {
+                double[] p = new double[2];
+                for (int y=y0; y<y1; y++) {
+                    int off = y*width;
+                    for (int x=0; x<width; x++) {
+                        fromRectifiedRay(pidx, tanU[x], tanV[y], p);
+                        table.x[off+x] = (float)p[0];
+                        table.y[off+x] = (float)p[1];
+                    }
+                }
+            }
+        });
+
+        return table;
+    }
+
+    /**
+     * Compute the original image locations of the rectified image
+     * locations (x0 + i*stepX, y0 + j*stepY), for i < w and j < h.
+     *
+     * @param pidx
+     * @param x0
+     * @param y0
+     * @param stepX
+     * @param stepY
+     * @param w
+     * @param h
+     * @param xs row-major original x coordinates (w*h elements)
+     * @param ys row-major original y coordinates (w*h elements)
+     */
+    void remapGrid(int pidx, double x0, double y0, double stepX, double stepY,
+            int w, int h, float[] xs, float[] ys) {
+        double tf = rectified.fovH/(2*width)*Math.PI/180;
+        double pf = rectified.fovV/(2*height)*Math.PI/180;
+        double[] tanU = new double[w];
+        for (int i=0; i<w; i++)
+            tanU[i] = Math.tan((x0 + i*stepX - 0.5*width)*tf);
+
+        double[] p = new double[2];
+        for (int j=0; j<h; j++) {
+            double tanV = Math.tan((y0 + j*stepY - 0.5*height)*pf);
+            for (int i=0; i<w; i++) {
+                fromRectifiedRay(pidx, tanU[i], tanV, p);
+                xs[j*w+i] = (float)p[0];
+                ys[j*w+i] = (float)p[1];
+            }
+        }
+    }
+
+    /**
+     * Resample an original image onto the rectified grid.  Tiled images
+     * are rectified lazily as their tiles are needed.  Other images are
+     * resampled in full, processing bands of rows in parallel.
+     * Rectified pixels falling outside the original image are black.
+     *
+     * @param source original image pidx
+     * @param pidx
+     * @return rectified image, or source itself if rectification
+     * leaves it unchanged
+     * @throws java.io.UncheckedIOException if the source cannot be read
+     */
+    public ImageSource rectify(final ImageSource source, int pidx) {
+        if (source.getWidth() != width || source.getHeight() != height)
+            throw new IllegalArgumentException("Image dimensions differ"
+                + " from those of rectification.");
+
+        if (isIdentity(pidx))
+            return source;
+
+        if (source instanceof TiledImageSource)
+            return new RectifiedImageSource(this, (TiledImageSource)source, pidx);
+
+        final RemapTable table = getRemapTable(pidx);
+        BufferedImage image = new BufferedImage(width, height,
+            BufferedImage.TYPE_INT_RGB);
+        final int[] out = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+
+        invokeBands(new BandTask() {
+            @Override
+            public void run(int y0, int y1) {
+                // Source rows spanned by the band.
+                float minY = Float.POSITIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+                for (int i=y0*width; i<y1*width; i++) {
+                    minY = Math.min(minY, table.y[i]);
+                    maxY = Math.max(maxY, table.y[i]);
+                }
+                int sy0 = Math.max((int)Math.floor(minY), 0);
+                int sy1 = Math.min((int)Math.floor(maxY) + 1, height-1);
+                if (sy0 > sy1)
+                    return;
+
+                int[] rgb = new int[(sy1-sy0+1)*width];
+                source.getRGB(0, sy0, width, sy1-sy0+1, rgb);
+                for (int i=y0*width; i<y1*width; i++)
+                    out[i] = sample(rgb, 0, sy0, width, sy1-sy0+1,
+                        width, height, table.x[i], table.y[i]);
+            }
+        });
+
+        return new BufferedImageSource(image);
+    }
+
+    /**
+     * Bilinearly interpolate at (x,y) the region of an image of the
+     * given dimensions held in rgb, whose origin is at (rx0,ry0) and
+     * which is rw by rh pixels.  Locations are clamped to the region.
+     *
+     * @return interpolated RGB, or black if (x,y) lies outside the image.
+     */
+    static int sample(int[] rgb, int rx0, int ry0, int rw, int rh,
+            int imageWidth, int imageHeight, float x, float y) {
+        if (!(x >= -0.5f && x <= imageWidth - 0.5f
+            && y >= -0.5f && y <= imageHeight - 0.5f))
+            return 0;
+
+        int x0 = (int)Math.floor(x), y0 = (int)Math.floor(y);
+        float fx = x - x0, fy = y - y0;
+        int xa = Math.min(Math.max(x0, rx0), rx0+rw-1) - rx0;
+        int xb = Math.min(Math.max(x0+1, rx0), rx0+rw-1) - rx0;
+        int ya = Math.min(Math.max(y0, ry0), ry0+rh-1) - ry0;
+        int yb = Math.min(Math.max(y0+1, ry0), ry0+rh-1) - ry0;
+
+        int c00 = rgb[ya*rw + xa], c01 = rgb[ya*rw + xb];
+        int c10 = rgb[yb*rw + xa], c11 = rgb[yb*rw + xb];
+
+        int result = 0;
+        for (int shift=0; shift<24; shift+=8) {
+            float top = ((c00 >> shift) & 0xff)*(1-fx) + ((c01 >> shift) & 0xff)*fx;
+            float bottom = ((c10 >> shift) & 0xff)*(1-fx) + ((c11 >> shift) & 0xff)*fx;
+            result |= (int)(top*(1-fy) + bottom*fy + 0.5f) << shift;
+        }
+        return result;
+    }
+
+    private interface BandTask {
+        void run(int y0, int y1);
+    }
+
+    /**
+     * Run task over bands of BAND_HEIGHT rows on the common fork-join
+     * pool.
+     */
+    private void invokeBands(final BandTask task) {
+        final List<RecursiveAction> tasks = new ArrayList<>();
+        for (int y=0; y<height; y+=BAND_HEIGHT) {
+            final int y0 = y;
+            final int y1 = Math.min(y+BAND_HEIGHT, height);
+            tasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    task.run(y0, y1);
+                }
+            });
+        }
+
+        ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+    }
+
+    /**
+     * Rotate ray (u,v,1) by row-major R, storing the resulting tangents
+     * in result.
+     */
+    static void rotate(double[] R, double u, double v, double[] result) {
+        double x = R[0]*u + R[1]*v + R[2];
+        double y = R[3]*u + R[4]*v + R[5];
+        double z = R[6]*u + R[7]*v + R[8];
+        result[0] = x/z;
+        result[1] = y/z;
+    }
+
+    private static double rotatedV(double[] R, double u, double v) {
+        return (R[3]*u + R[4]*v + R[5])/(R[6]*u + R[7]*v + R[8]);
+    }
+
+    /**
+     * @return row-major rotation by the angle |w| about the axis w.
+     */
+    static double[] axisAngle(double wx, double wy, double wz) {
+        double theta = Math.sqrt(wx*wx + wy*wy + wz*wz);
+        if (theta == 0)
+            return new double[] {1, 0, 0, 0, 1, 0, 0, 0, 1};
+
+        double kx = wx/theta, ky = wy/theta, kz = wz/theta;
+        double c = Math.cos(theta), s = Math.sin(theta), t = 1 - c;
+        return new double[] {
+            t*kx*kx + c,    t*kx*ky - s*kz, t*kx*kz + s*ky,
+            t*kx*ky + s*kz, t*ky*ky + c,    t*ky*kz - s*kx,
+            t*kx*kz - s*ky, t*ky*kz + s*kx, t*kz*kz + c
+        };
+    }
+
+    /**
+     * Store the product AB in result, which may be either argument.
+     */
+    static void multiply(double[] A, double[] B, double[] result) {
+        double[] C = new double[9];
+        for (int i=0; i<3; i++) {
+            for (int j=0; j<3; j++)
+                C[3*i+j] = A[3*i]*B[j] + A[3*i+1]*B[3+j] + A[3*i+2]*B[6+j];
+        }
+        System.arraycopy(C, 0, result, 0, 9);
+    }
+
+    /**
+     * Original image location of each pixel of a rectified image,
+     * stored row-major.
+     */
+    public static class RemapTable {
+        final int width, height;
+        final float[] x, y;
+
+        RemapTable(int width, int height) {
+            this.width = width;
+            this.height = height;
+            this.x = new float[width*height];
+            this.y = new float[width*height];
+        }
+
+        public float getX(int x, int y) {
+            return this.x[y*width + x];
+        }
+
+        public float getY(int x, int y) {
+            return this.y[y*width + x];
+        }
+    }
+}
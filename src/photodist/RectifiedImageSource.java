@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Rectified view of a tiled image.  Tiles of the rectified image are
+ * computed from the source's tiles of the same level when first needed
+ * and cached like decoded tiles, so neither the rectified image nor a
+ * full-size remap table is ever held in memory.  The source's overview
+ * is rectified up front to stand in for tiles not yet computed.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class RectifiedImageSource extends TiledImageSource {
+
+    final Rectification rect;
+    final TiledImageSource source;
+    final int pidx;
+
+    /**
+     * @param rect rectification
+     * @param source original image pidx, which is not disposed along
+     * with this source
+     * @param pidx
+     */
+    public RectifiedImageSource(Rectification rect, TiledImageSource source,
+            int pidx) {
+        super(source.getWidth(), source.getHeight(),
+            source.tileWidth, source.tileHeight, source.maxCacheBytes);
+        this.rect = rect;
+        this.source = source;
+        this.pidx = pidx;
+
+        BufferedImageSource ov = source.getOverview();
+        if (ov != null)
+            setOverview(rectifyOverview(ov));
+    }
+
+    private BufferedImage rectifyOverview(BufferedImageSource ov) {
+        int ow = ov.getWidth(), oh = ov.getHeight();
+        int[] rgb = new int[ow*oh];
+        ov.getRGB(0, 0, ow, oh, rgb);
+
+        float[] xs = new float[ow*oh], ys = new float[ow*oh];
+        rect.remapGrid(pidx, 0, 0, (double)width/ow, (double)height/oh,
+            ow, oh, xs, ys);
+
+        BufferedImage image = new BufferedImage(ow, oh, BufferedImage.TYPE_INT_RGB);
+        int[] out = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        float fx = (float)ow/width, fy = (float)oh/height;
+        for (int i=0; i<ow*oh; i++)
+            out[i] = Rectification.sample(rgb, 0, 0, ow, oh, ow, oh,
+                xs[i]*fx, ys[i]*fy);
+        return image;
+    }
+
+    @Override
+    BufferedImage loadTile(int level, int tx, int ty) {
+        int f = 1 << level;
+        int u0 = tx*tileWidth, v0 = ty*tileHeight;
+        int w = Math.min(tileWidth, getLevelWidth(level) - u0);
+        int h = Math.min(tileHeight, getLevelHeight(level) - v0);
+
+        // Source locations in level coordinates.
+        float[] xs = new float[w*h], ys = new float[w*h];
+        rect.remapGrid(pidx, u0*f, v0*f, f, f, w, h, xs, ys);
+        float minX = Float.POSITIVE_INFINITY, maxX = Float.NEGATIVE_INFINITY;
+        float minY = Float.POSITIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+        for (int i=0; i<w*h; i++) {
+            xs[i] /= f;
+            ys[i] /= f;
+            minX = Math.min(minX, xs[i]);
+            maxX = Math.max(maxX, xs[i]);
+            minY = Math.min(minY, ys[i]);
+            maxY = Math.max(maxY, ys[i]);
+        }
+
+        BufferedImage tile = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        int[] out = ((DataBufferInt)tile.getRaster().getDataBuffer()).getData();
+
+        // Source region spanned by the tile.
+        int lw = source.getLevelWidth(level), lh = source.getLevelHeight(level);
+        int rx0 = Math.max((int)Math.floor(minX), 0);
+        int ry0 = Math.max((int)Math.floor(minY), 0);
+        int rx1 = Math.min((int)Math.floor(maxX) + 1, lw-1);
+        int ry1 = Math.min((int)Math.floor(maxY) + 1, lh-1);
+        if (rx0 > rx1 || ry0 > ry1)
+            return tile;
+
+        int rw = rx1-rx0+1, rh = ry1-ry0+1;
+        int[] rgb = new int[rw*rh];
+        source.getRGB(level, rx0, ry0, rw, rh, rgb);
+        for (int i=0; i<w*h; i++)
+            out[i] = Rectification.sample(rgb, rx0, ry0, rw, rh, lw, lh,
+                xs[i], ys[i]);
+
+        return tile;
+    }
+}
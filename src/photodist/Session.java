@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Saved annotation session: image file references, camera parameters
+ * and every point correspondence and path.
+ *
+ * Sessions are stored in a little-endian binary format consisting of
+ * a header followed by the path offsets and the four point coordinate
+ * arrays, each stored contiguously as 32 bit integers:
+ *
+ * <pre>
+ * int    magic ("PDSN"), version, flags (bit 0: last path open,
+ *        bit 1: rectified)
+ * double sep
+ * double fovH, fovV, cx, cy, k1, k2, p1, p2  (left, then right camera)
+ * double rotation[9]  (only if rectified)
+ * int    imageWidth, imageHeight, nPoints, nPaths
+ * string leftImage, rightImage  (int byte count or -1, UTF-8 bytes)
+ * pad to a multiple of 4 bytes
+ * int    pathOffsets[nPaths]
+ * int    xL[nPoints], yL[nPoints], xR[nPoints], yR[nPoints]
+ * </pre>
+ *
+ * Camera parameters are the calibration of the original cameras.  For
+ * a rectified session the point coordinates refer to the rectified
+ * images, and the rotation is that of the Rectification.
+ *
+ * Version 1 files, which hold only fovH and fovV (in that order, ahead
+ * of sep) for a pair of ideal cameras, and version 2 files, which lack
+ * the rectified flag, can still be read.
+ *
+ * Files are read by memory-mapping them and bulk-copying each array,
+ * so loading involves no per-point parsing.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class Session {
+
+    public static final int MAGIC = 'P' | 'D' << 8 | 'S' << 16 | 'N' << 24;
+    public static final int VERSION = 3;
+
+    public static final String EXTENSION = "pds";
+
+    static final int FLAG_PATH_OPEN = 1;
+    static final int FLAG_RECTIFIED = 2;
+
+    File leftImage, rightImage;
+    CameraModel leftCamera, rightCamera;
+    double[] rotation;
+    double sep;
+    int imageWidth, imageHeight;
+
+    int[] xL, yL, xR, yR;
+    int size;
+    int[] pathOffsets;
+    int nPaths;
+    boolean pathOpen;
+
+    /**
+     * Create session from a snapshot of the geometry.  The snapshot's
+     * arrays are shared rather than copied.
+     *
+     * @param snapshot
+     * @param leftImage left image file, may be null
+     * @param rightImage right image file, may be null
+     * @return new session
+     */
+    public static Session capture(GeometrySnapshot snapshot,
+            File leftImage, File rightImage) {
+        Session session = new Session();
+        session.leftImage = leftImage;
+        session.rightImage = rightImage;
+        session.leftCamera = snapshot.getCalibration(0);
+        session.rightCamera = snapshot.getCalibration(1);
+        if (snapshot.getRectification() != null)
+            session.rotation = snapshot.getRectification().getRotation();
+        session.sep = snapshot.getSeparation();
+        session.imageWidth = snapshot.getImageWidth();
+        session.imageHeight = snapshot.getImageHeight();
+
+        session.size = snapshot.size();
+        session.xL = snapshot.xL;
+        session.yL = snapshot.yL;
+        session.xR = snapshot.xR;
+        session.yR = snapshot.yR;
+        session.nPaths = snapshot.getPathCount();
+        session.pathOffsets = snapshot.pathOffsets;
+        session.pathOpen = snapshot.isPathOpen();
+
+        return session;
+    }
+
+    /**
+     * Restore parameters and points of geometry from this session.
+     * Point data is handed over to the geometry, so a session may only
+     * be applied once, and only if it was read from file.
+     *
+     * @param geom
+     */
+    public void applyTo(Geometry geom) {
+        geom.beginBatch();
+        try {
+            // Points are replaced below, so need not be mapped.
+            geom.setRectification(null, false);
+            geom.setCameras(leftCamera, rightCamera);
+            geom.setSeparation(sep);
+            if (imageWidth > 0 && imageHeight > 0)
+                geom.setImageSize(imageWidth, imageHeight);
+            Rectification rect = getRectification();
+            if (rect != null)
+                geom.setRectification(rect, false);
+            geom.setPoints(xL, yL, xR, yR, size, pathOffsets, nPaths, pathOpen);
+        } finally {
+            geom.endBatch();
+        }
+    }
+
+    public File getLeftImage() {
+        return leftImage;
+    }
+
+    public File getRightImage() {
+        return rightImage;
+    }
+
+    public double getHorizontalFOV() {
+        return leftCamera.fovH;
+    }
+
+    public double getVerticalFOV() {
+        return leftCamera.fovV;
+    }
+
+    /**
+     * @param pidx 0 for the left camera, 1 for the right
+     * @return camera model
+     */
+    public CameraModel getCamera(int pidx) {
+        return pidx == 0 ? leftCamera : rightCamera;
+    }
+
+    /**
+     * @return rectification of the session's images, or null if the
+     * session is not rectified or the image size is unknown.
+     */
+    public Rectification getRectification() {
+        if (rotation == null || imageWidth <= 0 || imageHeight <= 0)
+            return null;
+        return new Rectification(leftCamera, rightCamera,
+            imageWidth, imageHeight, rotation);
+    }
+
+    public double getSeparation() {
+        return sep;
+    }
+
+    /**
+     * @return number of points in session.
+     */
+    public int size() {
+        return size;
+    }
+
+    private static byte[] encode(File file) {
+        return file != null
+            ? file.getAbsolutePath().getBytes(StandardCharsets.UTF_8)
+            : null;
+    }
+
+    /**
+     * Write session to file.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        byte[] left = encode(leftImage);
+        byte[] right = encode(rightImage);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BinaryPointWriter.BUFFER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt((pathOpen ? FLAG_PATH_OPEN : 0)
+                | (rotation != null ? FLAG_RECTIFIED : 0));
+            buffer.putDouble(sep);
+            putCamera(buffer, leftCamera);
+            putCamera(buffer, rightCamera);
+            if (rotation != null) {
+                for (double r : rotation)
+                    buffer.putDouble(r);
+            }
+            buffer.putInt(imageWidth);
+            buffer.putInt(imageHeight);
+            buffer.putInt(size);
+            buffer.putInt(nPaths);
+            for (byte[] name : new byte[][] {left, right}) {
+                if (name == null) {
+                    buffer.putInt(-1);
+                } else {
+                    if (name.length + 4 > buffer.remaining())
+                        throw new IOException("Image file name too long.");
+                    buffer.putInt(name.length);
+                    buffer.put(name);
+                }
+            }
+            while (buffer.position() % 4 != 0)
+                buffer.put((byte)0);
+
+            writeInts(channel, buffer, pathOffsets, nPaths);
+            writeInts(channel, buffer, xL, size);
+            writeInts(channel, buffer, yL, size);
+            writeInts(channel, buffer, xR, size);
+            writeInts(channel, buffer, yR, size);
+            flush(channel, buffer);
+        }
+    }
+
+    private static void putCamera(ByteBuffer buffer, CameraModel camera) {
+        buffer.putDouble(camera.fovH);
+        buffer.putDouble(camera.fovV);
+        buffer.putDouble(camera.cx);
+        buffer.putDouble(camera.cy);
+        buffer.putDouble(camera.k1);
+        buffer.putDouble(camera.k2);
+        buffer.putDouble(camera.p1);
+        buffer.putDouble(camera.p2);
+    }
+
+    private static CameraModel getCamera(ByteBuffer buffer) {
+        double fovH = buffer.getDouble();
+        double fovV = buffer.getDouble();
+        double cx = buffer.getDouble();
+        double cy = buffer.getDouble();
+        double k1 = buffer.getDouble();
+        double k2 = buffer.getDouble();
+        double p1 = buffer.getDouble();
+        double p2 = buffer.getDouble();
+        return new CameraModel(fovH, fovV, cx, cy, k1, k2, p1, p2);
+    }
+
+    private static void writeInts(FileChannel channel, ByteBuffer buffer,
+            int[] array, int n) throws IOException {
+        int i = 0;
+        while (i < n) {
+            if (buffer.remaining() < 4)
+                flush(channel, buffer);
+
+            IntBuffer ints = buffer.asIntBuffer();
+            int count = Math.min(ints.remaining(), n - i);
+            ints.put(array, i, count);
+            buffer.position(buffer.position() + 4*count);
+            i += count;
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer)
+            throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Read session from file.
+     *
+     * @param file
+     * @return session
+     * @throws IOException if the file cannot be read or is not a valid
+     * session file
+     */
+    public static Session read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                0, fileSize);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            Session session = new Session();
+            try {
+                if (buffer.getInt() != MAGIC)
+                    throw new IOException("Not a PhotoDist session file.");
+                int version = buffer.getInt();
+                if (version < 1 || version > VERSION)
+                    throw new IOException("Unsupported session file version "
+                        + version + ".");
+
+                int flags = buffer.getInt();
+                session.pathOpen = (flags & FLAG_PATH_OPEN) != 0;
+                if (version == 1) {
+                    double fovH = buffer.getDouble();
+                    double fovV = buffer.getDouble();
+                    session.leftCamera = new CameraModel(fovH, fovV);
+                    session.rightCamera = session.leftCamera;
+                    session.sep = buffer.getDouble();
+                } else {
+                    session.sep = buffer.getDouble();
+                    session.leftCamera = getCamera(buffer);
+                    session.rightCamera = getCamera(buffer);
+                    if (version >= 3 && (flags & FLAG_RECTIFIED) != 0) {
+                        session.rotation = new double[9];
+                        for (int k=0; k<9; k++)
+                            session.rotation[k] = buffer.getDouble();
+                    }
+                }
+                session.imageWidth = buffer.getInt();
+                session.imageHeight = buffer.getInt();
+                session.size = buffer.getInt();
+                session.nPaths = buffer.getInt();
+                session.leftImage = readFile(buffer);
+                session.rightImage = readFile(buffer);
+                buffer.position((buffer.position() + 3) & ~3);
+            } catch (BufferUnderflowException | IllegalArgumentException ex) {
+                throw new IOException("Truncated session file.");
+            }
+
+            int n = session.size;
+            int nPaths = session.nPaths;
+            if (n < 0 || nPaths < 0
+                || buffer.position() + 4L*(nPaths + 4L*n) != fileSize)
+                throw new IOException("Corrupt session file.");
+
+            session.pathOffsets = new int[nPaths];
+            session.xL = new int[n];
+            session.yL = new int[n];
+            session.xR = new int[n];
+            session.yR = new int[n];
+
+            IntBuffer ints = buffer.asIntBuffer();
+            ints.get(session.pathOffsets);
+            ints.get(session.xL);
+            ints.get(session.yL);
+            ints.get(session.xR);
+            ints.get(session.yR);
+
+            // Paths must be contiguous runs covering every point.
+            if (nPaths > 0 ? session.pathOffsets[0] != 0 : n > 0)
+                throw new IOException("Corrupt session file.");
+            for (int p=1; p<nPaths; p++) {
+                int offset = session.pathOffsets[p];
+                if (offset < session.pathOffsets[p-1] || offset > n)
+                    throw new IOException("Corrupt session file.");
+            }
+
+            return session;
+        }
+    }
+
+    private static File readFile(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0)
+            return null;
+
+        if (length > buffer.remaining())
+            throw new IOException("Truncated session file.");
+
+        byte[] name = new byte[length];
+        buffer.get(name);
+        return new File(new String(name, StandardCharsets.UTF_8));
+    }
+}
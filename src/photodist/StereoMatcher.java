@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import java.util.Arrays;
+
+/**
+ * Block matching search for the partner of a point along the same row
+ * of the other image.  Candidate locations are scored using either the
+ * sum of absolute differences (SAD) or normalized cross-correlation
+ * (NCC) over a square block, and the best match is refined to
+ * sub-pixel precision by fitting a parabola through the scores of the
+ * best candidate and its neighbours.
+ *
+ * Only the region of each image covered by the block and search range
+ * is read, so the images may be backed by tiled sources.  For NCC,
+ * window sums and sums of squares of the target image are obtained from
+ * precomputed column sums, so only the cross term costs a full pass
+ * over each block.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class StereoMatcher {
+
+    public enum Metric { SAD, NCC }
+
+    Metric metric = Metric.NCC;
+    int blockRadius = 7;
+    int minDisparity = -200, maxDisparity = 200;
+
+    /**
+     * Result of a successful match.
+     */
+    public static class Match {
+        final double x;
+        final double score;
+
+        Match(double x, double score) {
+            this.x = x;
+            this.score = score;
+        }
+
+        /**
+         * @return sub-pixel x coordinate of match in target image.
+         */
+        public double getX() {
+            return x;
+        }
+
+        /**
+         * @return score of best match: mean absolute difference for SAD,
+         * correlation coefficient for NCC.
+         */
+        public double getScore() {
+            return score;
+        }
+    }
+
+    public Metric getMetric() {
+        return metric;
+    }
+
+    public void setMetric(Metric metric) {
+        this.metric = metric;
+    }
+
+    public int getBlockRadius() {
+        return blockRadius;
+    }
+
+    public void setBlockRadius(int blockRadius) {
+        this.blockRadius = blockRadius;
+    }
+
+    public int getMinDisparity() {
+        return minDisparity;
+    }
+
+    public int getMaxDisparity() {
+        return maxDisparity;
+    }
+
+    /**
+     * Set range of offsets (target x minus source x) searched.
+     *
+     * @param minDisparity
+     * @param maxDisparity
+     */
+    public void setDisparityRange(int minDisparity, int maxDisparity) {
+        if (minDisparity > maxDisparity)
+            throw new IllegalArgumentException("Minimum disparity exceeds maximum.");
+
+        this.minDisparity = minDisparity;
+        this.maxDisparity = maxDisparity;
+    }
+
+    /**
+     * Read luminance of the given region of image into out, with pixels
+     * lying outside the image taking the value of the nearest edge pixel.
+     */
+    static void readLuminance(ImageSource image, int x0, int y0,
+            int width, int height, int[] out) {
+        int ix0 = Math.max(x0, 0);
+        int ix1 = Math.min(x0+width, image.getWidth());
+        int iy0 = Math.max(y0, 0);
+        int iy1 = Math.min(y0+height, image.getHeight());
+        if (ix1 <= ix0 || iy1 <= iy0) {
+            Arrays.fill(out, 0, width*height, 0);
+            return;
+        }
+
+        int iw = ix1-ix0;
+        int[] rgb = new int[iw*(iy1-iy0)];
+        image.getRGB(ix0, iy0, iw, iy1-iy0, rgb);
+        for (int row=0; row<height; row++) {
+            int y = Math.min(Math.max(y0+row, iy0), iy1-1);
+            int off = (y-iy0)*iw;
+            for (int col=0; col<width; col++) {
+                int x = Math.min(Math.max(x0+col, ix0), ix1-1);
+                int c = rgb[off + x-ix0];
+                out[row*width + col] = (77*((c>>16)&0xff)
+                    + 150*((c>>8)&0xff) + 29*(c&0xff)) >> 8;
+            }
+        }
+    }
+
+    /**
+     * Find the location in target of the block centred at (x,y) in
+     * source, searching along row y.
+     *
+     * @param source
+     * @param target
+     * @param x
+     * @param y
+     * @return best match, or null if no candidate lies inside target.
+     */
+    public Match match(ImageSource source, ImageSource target, int x, int y) {
+        int r = blockRadius;
+        int bw = 2*r + 1;
+
+        int dMin = Math.max(minDisparity, -x);
+        int dMax = Math.min(maxDisparity, target.getWidth()-1 - x);
+        if (dMin > dMax || y < 0 || y >= target.getHeight()
+            || x < 0 || x >= source.getWidth())
+            return null;
+
+        int[] block = new int[bw*bw];
+        readLuminance(source, x-r, y-r, bw, bw, block);
+
+        int tx0 = x + dMin - r;
+        int tw = dMax - dMin + bw;
+        int[] band = new int[tw*bw];
+        readLuminance(target, tx0, y-r, tw, bw, band);
+
+        int nCand = dMax - dMin + 1;
+        double[] scores = new double[nCand];
+        if (metric == Metric.SAD)
+            scoreSAD(block, band, tw, bw, scores);
+        else
+            scoreNCC(block, band, tw, bw, scores);
+
+        // Lower is better for SAD, higher for NCC.
+        double sign = metric == Metric.SAD ? -1 : 1;
+        int best = 0;
+        for (int c=1; c<nCand; c++) {
+            if (sign*scores[c] > sign*scores[best])
+                best = c;
+        }
+
+        double offset = 0.0;
+        if (best > 0 && best < nCand-1) {
+            double sm = scores[best-1], s0 = scores[best], sp = scores[best+1];
+            double denom = sm - 2*s0 + sp;
+            if (denom != 0.0)
+                offset = Math.max(-0.5, Math.min(0.5, 0.5*(sm - sp)/denom));
+        }
+
+        double score = metric == Metric.SAD ? scores[best]/(bw*bw) : scores[best];
+        return new Match(x + dMin + best + offset, score);
+    }
+
+    private static void scoreSAD(int[] block, int[] band, int tw, int bw,
+            double[] scores) {
+        for (int c=0; c<scores.length; c++) {
+            int sad = 0;
+            for (int row=0; row<bw; row++) {
+                int bOff = row*bw;
+                int tOff = row*tw + c;
+                for (int col=0; col<bw; col++)
+                    sad += Math.abs(block[bOff+col] - band[tOff+col]);
+            }
+            scores[c] = sad;
+        }
+    }
+
+    private static void scoreNCC(int[] block, int[] band, int tw, int bw,
+            double[] scores) {
+        int n = bw*bw;
+
+        long sumB = 0, sumB2 = 0;
+        for (int v : block) {
+            sumB += v;
+            sumB2 += v*v;
+        }
+        double varB = sumB2 - (double)sumB*sumB/n;
+
+        // Column sums of target band, then sliding window sums.
+        long[] colSum = new long[tw];
+        long[] colSum2 = new long[tw];
+        for (int row=0; row<bw; row++) {
+            for (int col=0; col<tw; col++) {
+                int v = band[row*tw + col];
+                colSum[col] += v;
+                colSum2[col] += v*v;
+            }
+        }
+
+        long winSum = 0, winSum2 = 0;
+        for (int col=0; col<bw; col++) {
+            winSum += colSum[col];
+            winSum2 += colSum2[col];
+        }
+
+        for (int c=0; c<scores.length; c++) {
+            if (c > 0) {
+                winSum += colSum[c+bw-1] - colSum[c-1];
+                winSum2 += colSum2[c+bw-1] - colSum2[c-1];
+            }
+
+            long cross = 0;
+            for (int row=0; row<bw; row++) {
+                int bOff = row*bw;
+                int tOff = row*tw + c;
+                for (int col=0; col<bw; col++)
+                    cross += block[bOff+col]*band[tOff+col];
+            }
+
+            double varT = winSum2 - (double)winSum*winSum/n;
+            double cov = cross - (double)sumB*winSum/n;
+            double denom = Math.sqrt(varB*varT);
+            scores[c] = denom > 0 ? cov/denom : 0.0;
+        }
+    }
+}
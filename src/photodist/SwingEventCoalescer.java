@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * Wrapper for a Swing-side geometry listener which delivers at most one
+ * event per frame interval on the Event Dispatch Thread.  Events arriving
+ * too soon after the last delivery are merged and delivered together
+ * once the interval has elapsed.  Plain GeometryListeners may be wrapped too,
+ * in which case only the notification rate is reduced.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class SwingEventCoalescer implements GeometryEventListener {
+
+    /**
+     * Minimum interval between deliveries, roughly one 60 Hz frame.
+     */
+    public static final int FRAME_INTERVAL_MS = 16;
+
+    final GeometryListener delegate;
+    final Timer timer;
+
+    GeometryEvent pending;
+    long lastDelivery;
+
+    public SwingEventCoalescer(GeometryListener delegate) {
+        this.delegate = delegate;
+
+        timer = new Timer(FRAME_INTERVAL_MS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                deliver();
+            }
+        });
+        timer.setRepeats(false);
+    }
+
+    private void deliver() {
+        GeometryEvent event = pending;
+        pending = null;
+        if (event == null)
+            return;
+
+        lastDelivery = System.nanoTime();
+
+        if (delegate instanceof GeometryEventListener)
+            ((GeometryEventListener)delegate).geometryChanged(event);
+        else
+            delegate.geometryChanged();
+    }
+
+    @Override
+    public void geometryChanged(final GeometryEvent event) {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    geometryChanged(event);
+                }
+            });
+            return;
+        }
+
+        pending = pending == null ? event : pending.merge(event);
+        if (timer.isRunning())
+            return;
+
+        long elapsedMs = (System.nanoTime() - lastDelivery)/1000000;
+        if (elapsedMs >= FRAME_INTERVAL_MS) {
+            deliver();
+        } else {
+            timer.setInitialDelay((int)(FRAME_INTERVAL_MS - elapsedMs));
+            timer.start();
+        }
+    }
+
+    @Override
+    public void geometryChanged() {
+        geometryChanged(GeometryEvent.everything(null));
+    }
+}
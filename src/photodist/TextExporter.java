@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * Exporter for the original whitespace-delimited text format, with one
+ * "x y z path" line per point.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class TextExporter implements GeometryExporter {
+
+    @Override
+    public String getName() {
+        return "txt";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Text table (x y z path)";
+    }
+
+    @Override
+    public String getExtension() {
+        return "txt";
+    }
+
+    @Override
+    public PointWriter open(final File file) throws IOException {
+        final PrintStream pstream = new PrintStream(new BufferedOutputStream(
+            new FileOutputStream(file), BinaryPointWriter.BUFFER_SIZE));
+        pstream.println("x y z path");
+
+        return new PointWriter() {
+            @Override
+            public void write(double[] X, double[] Y, double[] Z,
+                    int from, int to, int path) throws IOException {
+                for (int i=from; i<to; i++)
+                    pstream.format("%g %g %g %d\n", X[i], Y[i], Z[i], path);
+            }
+
+            @Override
+            public void close() throws IOException {
+                pstream.close();
+                if (pstream.checkError())
+                    throw new IOException("Error writing to " + file);
+            }
+        };
+    }
+}
@@ -0,0 +1,687 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Image source which decodes rectangular tiles of an image file on
+ * demand using ImageReadParam.setSourceRegion, so that images larger
+ * than the heap can be displayed and matched.
+ *
+ * Decoded tiles are kept in an LRU cache bounded by size in bytes.
+ * Tiles are also available at power-of-two subsampling levels for
+ * drawing at reduced scale.  Optionally, tiles evicted from the cache
+ * are written to a raster cache file on disk, from which they can be
+ * reloaded much faster than they can be decoded.
+ *
+ * Formats without random access (such as JPEG) must be decoded from
+ * the start of the file up to each requested region, so tiled TIFF
+ * files are to be preferred for very large images.  For this reason
+ * draw() never decodes: missing tiles are queued for a background
+ * loader thread and drawn from the overview or a coarser cached level
+ * in the meantime.  Decoding and disk cache access are serialized on
+ * the reader and never happen while the tile cache is locked, so
+ * drawing does not wait on matching threads reading pixels.
+ *
+ * Subclasses may compute tiles rather than decode them by overriding
+ * loadTile().
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class TiledImageSource implements ImageSource {
+
+    /**
+     * Default tile dimension, used unless the image file is itself
+     * tiled.
+     */
+    public static final int DEFAULT_TILE_SIZE = 512;
+
+    /**
+     * Maximum subsampling level.
+     */
+    static final int MAX_LEVEL = 16;
+
+    final ImageInputStream iis;
+    final ImageReader reader;
+    final Object loadLock;
+    final int width, height;
+    final int tileWidth, tileHeight;
+    final boolean opaque;
+
+    final long maxCacheBytes;
+    long cacheBytes;
+    final LinkedHashMap<Long, BufferedImage> cache;
+    final DiskCache diskCache;
+
+    BufferedImageSource overview;
+    boolean disposed;
+
+    final LinkedHashSet<Long> requested = new LinkedHashSet<>();
+    Thread loader;
+    Runnable tileListener;
+
+    /**
+     * @param file image file
+     * @param maxCacheBytes upper bound on memory used by cached tiles
+     * @param diskCacheDir directory in which to create the raster cache
+     * file, or null to disable the disk cache
+     * @throws IOException if the image cannot be read
+     */
+    public TiledImageSource(File file, long maxCacheBytes, File diskCacheDir)
+            throws IOException {
+        iis = ImageIO.createImageInputStream(file);
+        if (iis == null)
+            throw new IOException("Cannot open " + file.getName());
+
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        if (!readers.hasNext()) {
+            iis.close();
+            throw new IOException("Unsupported image format: " + file.getName());
+        }
+
+        reader = readers.next();
+        loadLock = reader;
+        try {
+            reader.setInput(iis, true, true);
+            width = reader.getWidth(0);
+            height = reader.getHeight(0);
+
+            if (reader.isImageTiled(0)) {
+                int tw = reader.getTileWidth(0);
+                int th = reader.getTileHeight(0);
+                tileWidth = Math.max(tw, DEFAULT_TILE_SIZE/tw*tw);
+                tileHeight = Math.max(th, DEFAULT_TILE_SIZE/th*th);
+            } else {
+                tileWidth = DEFAULT_TILE_SIZE;
+                tileHeight = DEFAULT_TILE_SIZE;
+            }
+
+            ImageTypeSpecifier type = reader.getRawImageType(0);
+            opaque = type != null && !type.getColorModel().hasAlpha();
+
+            this.maxCacheBytes = maxCacheBytes;
+            cache = new LinkedHashMap<>(64, 0.75f, true);
+            diskCache = diskCacheDir != null
+                ? new DiskCache(diskCacheDir, tileWidth, tileHeight)
+                : null;
+
+        } catch (IOException | RuntimeException ex) {
+            reader.dispose();
+            iis.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Constructor for subclasses which compute opaque tiles in
+     * loadTile() rather than decoding them from a file.
+     *
+     * @param width
+     * @param height
+     * @param tileWidth
+     * @param tileHeight
+     * @param maxCacheBytes upper bound on memory used by cached tiles
+     */
+    TiledImageSource(int width, int height, int tileWidth, int tileHeight,
+            long maxCacheBytes) {
+        iis = null;
+        reader = null;
+        loadLock = new Object();
+        this.width = width;
+        this.height = height;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        opaque = true;
+        this.maxCacheBytes = maxCacheBytes;
+        cache = new LinkedHashMap<>(64, 0.75f, true);
+        diskCache = null;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Set a subsampled copy of the whole image, which is drawn in place
+     * of tiles whenever the drawing scale permits.
+     *
+     * @param overview
+     */
+    public void setOverview(BufferedImage overview) {
+        this.overview = overview != null ? new BufferedImageSource(overview) : null;
+    }
+
+    /**
+     * Set action to run, on the loader thread, whenever a tile which
+     * was missing during draw() has been loaded.  Typically this
+     * requests a repaint.
+     *
+     * @param tileListener
+     */
+    public void setTileListener(Runnable tileListener) {
+        this.tileListener = tileListener;
+    }
+
+    /**
+     * @return memory currently occupied by cached tiles.
+     */
+    public synchronized long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    static final long TILE_INDEX_MASK = (1L << 29) - 1;
+
+    private static long key(int level, int tx, int ty) {
+        return ((long)level << 58) | ((long)ty << 29) | tx;
+    }
+
+    /**
+     * Retrieve tile (tx,ty) of the given level, which has the image
+     * subsampled by 2^level.  Each tile covers tileWidth by tileHeight
+     * pixels of the level (fewer at the right and bottom edges).  Tiles
+     * which are not cached are loaded by the calling thread.
+     *
+     * @param level
+     * @param tx
+     * @param ty
+     * @return tile image
+     */
+    BufferedImage getTile(int level, int tx, int ty) {
+        long key = key(level, tx, ty);
+        BufferedImage tile = getCachedTile(key);
+        if (tile != null)
+            return tile;
+
+        List<Map.Entry<Long, BufferedImage>> evicted;
+        synchronized (loadLock) {
+            // Another thread may have loaded the tile while we waited.
+            tile = getCachedTile(key);
+            if (tile != null)
+                return tile;
+
+            try {
+                if (diskCache != null)
+                    tile = diskCache.read(key, opaque);
+
+                if (tile == null)
+                    tile = loadTile(level, tx, ty);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+
+            synchronized (this) {
+                if (disposed)
+                    throw new UncheckedIOException(
+                        new IOException("Image source has been disposed."));
+                cache.put(key, tile);
+                cacheBytes += 4L*tile.getWidth()*tile.getHeight();
+                evicted = evict();
+            }
+
+            if (diskCache != null) {
+                for (Map.Entry<Long, BufferedImage> entry : evicted) {
+                    try {
+                        diskCache.write(entry.getKey(), entry.getValue());
+                    } catch (IOException ex) {
+                        // Tile will simply be decoded again when needed.
+                    }
+                }
+            }
+        }
+
+        return tile;
+    }
+
+    /**
+     * @param key
+     * @return cached tile, or null if the tile is not in memory.
+     */
+    private synchronized BufferedImage getCachedTile(long key) {
+        if (disposed)
+            throw new UncheckedIOException(
+                new IOException("Image source has been disposed."));
+
+        return cache.get(key);
+    }
+
+    /**
+     * Produce tile (tx,ty) of the given level.  Calls are serialized.
+     *
+     * @param level
+     * @param tx
+     * @param ty
+     * @return tile image
+     * @throws IOException
+     */
+    BufferedImage loadTile(int level, int tx, int ty) throws IOException {
+        int f = 1 << level;
+        int x = tx*tileWidth*f;
+        int y = ty*tileHeight*f;
+        Rectangle region = new Rectangle(x, y,
+            Math.min(tileWidth*f, width - x), Math.min(tileHeight*f, height - y));
+
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(region);
+        if (f > 1)
+            param.setSourceSubsampling(f, f, 0, 0);
+        BufferedImage decoded = reader.read(0, param);
+
+        // Convert to packed ints, which are quick to draw and copy.
+        BufferedImage tile = new BufferedImage(decoded.getWidth(),
+            decoded.getHeight(), opaque
+                ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2d = tile.createGraphics();
+        g2d.drawImage(decoded, 0, 0, null);
+        g2d.dispose();
+        return tile;
+    }
+
+    /**
+     * Remove least recently used tiles until the cache fits its bound.
+     *
+     * @return removed tiles, to be written to the disk cache by the
+     * caller once the cache lock is released.
+     */
+    private List<Map.Entry<Long, BufferedImage>> evict() {
+        List<Map.Entry<Long, BufferedImage>> evicted = new ArrayList<>();
+        Iterator<Map.Entry<Long, BufferedImage>> it = cache.entrySet().iterator();
+        while (cacheBytes > maxCacheBytes && cache.size() > 1) {
+            Map.Entry<Long, BufferedImage> eldest = it.next();
+            BufferedImage tile = eldest.getValue();
+            evicted.add(new AbstractMap.SimpleEntry<>(eldest.getKey(), tile));
+            cacheBytes -= 4L*tile.getWidth()*tile.getHeight();
+            it.remove();
+        }
+        return evicted;
+    }
+
+    @Override
+    public void getRGB(int x0, int y0, int width, int height, int[] out) {
+        getRGB(0, x0, y0, width, height, out);
+    }
+
+    /**
+     * Read ARGB pixels of a region of the image subsampled by 2^level.
+     * Pixel (x,y) of the level is pixel (x*2^level, y*2^level) of the
+     * image.
+     *
+     * @param level
+     * @param x0
+     * @param y0
+     * @param width
+     * @param height
+     * @param out array of at least width*height elements
+     */
+    void getRGB(int level, int x0, int y0, int width, int height, int[] out) {
+        int tx0 = x0/tileWidth, tx1 = (x0+width-1)/tileWidth;
+        int ty0 = y0/tileHeight, ty1 = (y0+height-1)/tileHeight;
+
+        for (int ty=ty0; ty<=ty1; ty++) {
+            for (int tx=tx0; tx<=tx1; tx++) {
+                BufferedImage tile = getTile(level, tx, ty);
+                int ix0 = Math.max(x0, tx*tileWidth);
+                int iy0 = Math.max(y0, ty*tileHeight);
+                int ix1 = Math.min(x0+width, tx*tileWidth + tile.getWidth());
+                int iy1 = Math.min(y0+height, ty*tileHeight + tile.getHeight());
+
+                tile.getRGB(ix0 - tx*tileWidth, iy0 - ty*tileHeight,
+                    ix1-ix0, iy1-iy0, out, (iy0-y0)*width + (ix0-x0), width);
+            }
+        }
+    }
+
+    /**
+     * @param level
+     * @return width of the image subsampled by 2^level.
+     */
+    int getLevelWidth(int level) {
+        return (width + (1 << level) - 1) >> level;
+    }
+
+    /**
+     * @param level
+     * @return height of the image subsampled by 2^level.
+     */
+    int getLevelHeight(int level) {
+        return (height + (1 << level) - 1) >> level;
+    }
+
+    /**
+     * @return subsampled copy of the whole image, or null if none.
+     */
+    BufferedImageSource getOverview() {
+        return overview;
+    }
+
+    @Override
+    public void draw(Graphics2D g2d, int width, int height,
+            double x0, double y0, double scaleX, double scaleY) {
+        double scale = Math.max(scaleX, scaleY);
+
+        BufferedImageSource ov = overview;
+        if (ov != null) {
+            double ox = (double)ov.getWidth()/this.width;
+            double oy = (double)ov.getHeight()/this.height;
+            if (scale <= Math.min(ox, oy)) {
+                ov.draw(g2d, width, height, x0*ox, y0*oy, scaleX/ox, scaleY/oy);
+                return;
+            }
+        }
+
+        int level = 0;
+        while (level < MAX_LEVEL && scale <= 1.0/(1 << (level+1)))
+            level += 1;
+        int spanX = tileWidth << level;
+        int spanY = tileHeight << level;
+
+        int sx0 = Math.max(0, (int)Math.floor(x0));
+        int sy0 = Math.max(0, (int)Math.floor(y0));
+        int sx1 = Math.min(this.width, (int)Math.ceil(x0 + width/scaleX));
+        int sy1 = Math.min(this.height, (int)Math.ceil(y0 + height/scaleY));
+        if (sx1 <= sx0 || sy1 <= sy0)
+            return;
+
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+            RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+
+        synchronized (this) {
+            if (disposed)
+                return;
+            // Tiles which have scrolled out of view are no longer needed.
+            requested.clear();
+        }
+
+        for (int ty=sy0/spanY; ty<=(sy1-1)/spanY; ty++) {
+            for (int tx=sx0/spanX; tx<=(sx1-1)/spanX; tx++) {
+                long key = key(level, tx, ty);
+                BufferedImage tile;
+                synchronized (this) {
+                    tile = cache.get(key);
+                    if (tile == null)
+                        requested.add(key);
+                }
+
+                int tsx0 = tx*spanX, tsy0 = ty*spanY;
+                if (tile != null) {
+                    drawRegion(g2d, tile, tsx0, tsy0, level, 0, 0,
+                        tile.getWidth(), tile.getHeight(), x0, y0, scaleX, scaleY);
+                } else {
+                    drawPlaceholder(g2d, level, tsx0, tsy0,
+                        Math.min(tsx0+spanX, this.width), Math.min(tsy0+spanY, this.height),
+                        x0, y0, scaleX, scaleY);
+                }
+            }
+        }
+
+        synchronized (this) {
+            if (!requested.isEmpty())
+                startLoader();
+        }
+    }
+
+    /**
+     * Draw the region of a level tile with pixel bounds (u0,v0) to
+     * (u1,v1), the tile's origin lying at (tsx0,tsy0) in the image.
+     */
+    private static void drawRegion(Graphics2D g2d, BufferedImage tile,
+            int tsx0, int tsy0, int level, int u0, int v0, int u1, int v1,
+            double x0, double y0, double scaleX, double scaleY) {
+        g2d.drawImage(tile,
+            (int)Math.round((tsx0 + (u0 << level) - x0)*scaleX),
+            (int)Math.round((tsy0 + (v0 << level) - y0)*scaleY),
+            (int)Math.round((tsx0 + (u1 << level) - x0)*scaleX),
+            (int)Math.round((tsy0 + (v1 << level) - y0)*scaleY),
+            u0, v0, u1, v1, null);
+    }
+
+    /**
+     * Stand in for a missing tile covering image pixels (sx0,sy0) to
+     * (sx1,sy1) using the nearest coarser cached tile or, failing that,
+     * the overview.
+     */
+    private void drawPlaceholder(Graphics2D g2d, int level,
+            int sx0, int sy0, int sx1, int sy1,
+            double x0, double y0, double scaleX, double scaleY) {
+        for (int l=level+1; l<=MAX_LEVEL; l++) {
+            int spanX = tileWidth << l, spanY = tileHeight << l;
+            int tx = sx0/spanX, ty = sy0/spanY;
+            BufferedImage tile;
+            synchronized (this) {
+                tile = cache.get(key(l, tx, ty));
+            }
+            if (tile == null)
+                continue;
+
+            int u0 = (sx0 - tx*spanX) >> l, v0 = (sy0 - ty*spanY) >> l;
+            int u1 = Math.min(tile.getWidth(), (sx1 - tx*spanX + (1 << l) - 1) >> l);
+            int v1 = Math.min(tile.getHeight(), (sy1 - ty*spanY + (1 << l) - 1) >> l);
+            drawRegion(g2d, tile, tx*spanX, ty*spanY, l, u0, v0, u1, v1,
+                x0, y0, scaleX, scaleY);
+            return;
+        }
+
+        BufferedImageSource ov = overview;
+        if (ov == null)
+            return;
+
+        Graphics2D clipped = (Graphics2D)g2d.create();
+        clipped.clipRect(
+            (int)Math.floor((sx0-x0)*scaleX), (int)Math.floor((sy0-y0)*scaleY),
+            (int)Math.ceil((sx1-sx0)*scaleX) + 1, (int)Math.ceil((sy1-sy0)*scaleY) + 1);
+        double ox = (double)ov.getWidth()/this.width;
+        double oy = (double)ov.getHeight()/this.height;
+        Rectangle clip = clipped.getClipBounds();
+        ov.draw(clipped, clip.x + clip.width, clip.y + clip.height,
+            x0*ox, y0*oy, scaleX/ox, scaleY/oy);
+        clipped.dispose();
+    }
+
+    /**
+     * Start the loader thread if it is not already running.  Must be
+     * called with the cache lock held.
+     */
+    private void startLoader() {
+        if (loader == null) {
+            loader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    loadRequested();
+                }
+            }, "TiledImageSource loader");
+            loader.setDaemon(true);
+            loader.start();
+        } else {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Body of the loader thread: load requested tiles in the order in
+     * which they were requested until the source is disposed.
+     */
+    private void loadRequested() {
+        while (true) {
+            long key;
+            synchronized (this) {
+                while (!disposed && requested.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                if (disposed)
+                    return;
+
+                Iterator<Long> it = requested.iterator();
+                key = it.next();
+                it.remove();
+            }
+
+            try {
+                getTile((int)(key >>> 58), (int)(key & TILE_INDEX_MASK),
+                    (int)((key >>> 29) & TILE_INDEX_MASK));
+            } catch (UncheckedIOException ex) {
+                // Tile stays missing; it is requested again on the next draw.
+                continue;
+            }
+
+            Runnable listener = tileListener;
+            if (listener != null)
+                listener.run();
+        }
+    }
+
+    @Override
+    public void dispose() {
+        synchronized (this) {
+            if (disposed)
+                return;
+
+            disposed = true;
+            cache.clear();
+            cacheBytes = 0;
+            requested.clear();
+            notifyAll();
+        }
+
+        // Cut short any decode in progress rather than waiting for it.
+        if (reader != null)
+            reader.abort();
+        synchronized (loadLock) {
+            if (reader != null) {
+                reader.dispose();
+                try {
+                    iis.close();
+                } catch (IOException ex) { }
+            }
+            if (diskCache != null)
+                diskCache.close();
+        }
+    }
+
+    /**
+     * Raster cache file holding tiles as packed ints, one fixed-size
+     * slot per tile.  Transfers go through a direct buffer, so tile
+     * data never passes through an intermediate heap array.
+     */
+    static class DiskCache {
+        final File file;
+        final FileChannel channel;
+        final int slotSize;
+        final ByteBuffer buffer;
+        final IntBuffer intBuffer;
+        final Map<Long, Integer> slots = new HashMap<>();
+
+        DiskCache(File dir, int tileWidth, int tileHeight) throws IOException {
+            file = File.createTempFile("photodist", ".tiles", dir);
+            file.deleteOnExit();
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+
+            slotSize = 8 + 4*tileWidth*tileHeight;
+            buffer = ByteBuffer.allocateDirect(slotSize).order(ByteOrder.nativeOrder());
+            buffer.position(8);
+            intBuffer = buffer.slice().order(ByteOrder.nativeOrder()).asIntBuffer();
+            buffer.clear();
+        }
+
+        void write(long key, BufferedImage tile) throws IOException {
+            if (slots.containsKey(key))
+                return;
+
+            int[] data = ((DataBufferInt)tile.getRaster().getDataBuffer()).getData();
+            int n = tile.getWidth()*tile.getHeight();
+
+            buffer.clear();
+            buffer.putInt(0, tile.getWidth());
+            buffer.putInt(4, tile.getHeight());
+            intBuffer.clear();
+            intBuffer.put(data, 0, n);
+            buffer.limit(8 + 4*n);
+
+            int slot = slots.size();
+            long pos = (long)slot*slotSize;
+            while (buffer.hasRemaining())
+                pos += channel.write(buffer, pos);
+            slots.put(key, slot);
+        }
+
+        BufferedImage read(long key, boolean opaque) throws IOException {
+            Integer slot = slots.get(key);
+            if (slot == null)
+                return null;
+
+            buffer.clear();
+            long pos = (long)slot*slotSize;
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, pos);
+                if (n < 0)
+                    break;
+                pos += n;
+            }
+
+            BufferedImage tile = new BufferedImage(buffer.getInt(0),
+                buffer.getInt(4), opaque
+                    ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+            int[] data = ((DataBufferInt)tile.getRaster().getDataBuffer()).getData();
+            intBuffer.clear();
+            intBuffer.get(data, 0, tile.getWidth()*tile.getHeight());
+            return tile;
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ex) { }
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Client for TriangulationService using its binary request format.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class TriangulationClient {
+
+    final URL url;
+
+    /**
+     * @param host
+     * @param port
+     * @throws IOException if the service URL is malformed
+     */
+    public TriangulationClient(String host, int port) throws IOException {
+        url = new URL("http", host, port, "/triangulate");
+    }
+
+    /**
+     * Triangulate the first n of the given correspondences.
+     *
+     * @param fovH
+     * @param fovV
+     * @param sep
+     * @param width
+     * @param height
+     * @param xL
+     * @param yL
+     * @param xR
+     * @param yR
+     * @param n
+     * @return arrays of X, Y and Z coordinates
+     * @throws IOException if the request fails
+     */
+    public double[][] triangulate(double fovH, double fovV, double sep,
+            int width, int height, int[] xL, int[] yL, int[] xR, int[] yR, int n)
+            throws IOException {
+        ByteBuffer request = ByteBuffer.allocate(36 + 16*n)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        request.putDouble(fovH);
+        request.putDouble(fovV);
+        request.putDouble(sep);
+        request.putInt(width);
+        request.putInt(height);
+        request.putInt(n);
+        for (int[] array : new int[][] {xL, yL, xR, yR}) {
+            request.asIntBuffer().put(array, 0, n);
+            request.position(request.position() + 4*n);
+        }
+
+        HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(request.capacity());
+            connection.setRequestProperty("Content-Type",
+                TriangulationService.BINARY_TYPE);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(request.array());
+            }
+
+            int code = connection.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK) {
+                InputStream err = connection.getErrorStream();
+                String message = err != null
+                    ? new String(readAll(err), StandardCharsets.UTF_8).trim()
+                    : connection.getResponseMessage();
+                throw new IOException("Service returned " + code + ": " + message);
+            }
+
+            byte[] body;
+            try (InputStream in = connection.getInputStream()) {
+                body = readAll(in);
+            }
+            if (body.length != 24*n)
+                throw new IOException("Unexpected response length.");
+
+            ByteBuffer response = ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN);
+            double[][] result = new double[3][n];
+            for (double[] array : result) {
+                response.asDoubleBuffer().get(array);
+                response.position(response.position() + 8*n);
+            }
+            return result;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1 << 16];
+        int count;
+        while ((count = in.read(buf)) >= 0)
+            out.write(buf, 0, count);
+        return out.toByteArray();
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: TriangulationClient -width W -height H"
+            + " [-fovh DEG] [-fovv DEG] [-sep M] [-host HOST] [-port N]");
+        System.err.println();
+        System.err.println("Reads \"xL yL xR yR\" rows from standard input and"
+            + " writes \"x y z\" rows to standard output.");
+    }
+
+    public static void main(String[] args) {
+        double fovH = 15, fovV = 15, sep = 0.3;
+        int width = 0, height = 0;
+        String host = "localhost";
+        int port = TriangulationService.DEFAULT_PORT;
+
+        try {
+            for (int i=0; i<args.length; i++) {
+                switch (args[i]) {
+                    case "-width":
+                        width = Integer.parseInt(args[++i]);
+                        break;
+                    case "-height":
+                        height = Integer.parseInt(args[++i]);
+                        break;
+                    case "-fovh":
+                        fovH = Double.parseDouble(args[++i]);
+                        break;
+                    case "-fovv":
+                        fovV = Double.parseDouble(args[++i]);
+                        break;
+                    case "-sep":
+                        sep = Double.parseDouble(args[++i]);
+                        break;
+                    case "-host":
+                        host = args[++i];
+                        break;
+                    case "-port":
+                        port = Integer.parseInt(args[++i]);
+                        break;
+                    case "-help":
+                        printUsage();
+                        return;
+                    default:
+                        throw new IllegalArgumentException("Unknown argument " + args[i]);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException ex) {
+            System.err.println("Error parsing arguments: " + ex.getMessage());
+            printUsage();
+            System.exit(1);
+        }
+
+        if (width <= 0 || height <= 0) {
+            printUsage();
+            System.exit(1);
+        }
+
+        try {
+            int[][] coords = new int[4][1024];
+            int n = 0;
+            int[] fields = new int[5];
+            BufferedReader reader = new BufferedReader(
+                new InputStreamReader(System.in, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int nFields = BatchTriangulator.parseRow(line, fields);
+                if (nFields == 0)
+                    continue;
+                if (nFields < 4)
+                    throw new IOException("Expected 4 fields: " + line);
+
+                if (n == coords[0].length) {
+                    for (int k=0; k<4; k++)
+                        coords[k] = Arrays.copyOf(coords[k], 2*n);
+                }
+                for (int k=0; k<4; k++)
+                    coords[k][n] = fields[k];
+                n += 1;
+            }
+
+            TriangulationClient client = new TriangulationClient(host, port);
+            double[][] result = client.triangulate(fovH, fovV, sep, width, height,
+                coords[0], coords[1], coords[2], coords[3], n);
+
+            PrintStream out = System.out;
+            for (int i=0; i<n; i++)
+                out.format("%g %g %g\n", result[0][i], result[1][i], result[2][i]);
+            out.flush();
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Batch triangulation of point pairs.  Points are split into chunks
+ * which are processed in parallel on a fork-join pool.  Undistorted ray
+ * tangents are read from a RayTable for each camera.  For cameras
+ * without distortion these are per-column and per-row lookup tables,
+ * computed using exactly the same expressions as the direct
+ * calculation, so results are bit-for-bit identical to it.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class TriangulationEngine {
+
+    /**
+     * Number of points below which a range is triangulated serially.
+     */
+    public static final int CHUNK_SIZE = 8192;
+
+    final ForkJoinPool pool;
+
+    volatile RayTable[] rayTables;
+
+    /**
+     * Lookup table of undistorted ray tangents for a single camera.
+     * For a camera without distortion these depend only on pixel
+     * column (horizontal) or row (vertical), so one table is held per
+     * axis.  Otherwise the tangents are found for every pixel
+     * by iterative undistortion when the table is built.  Tables for
+     * images with more than MAX_SAMPLES pixels are sampled on a coarser
+     * grid and bilinearly interpolated.
+     */
+    public static class RayTable {
+
+        /**
+         * Maximum number of samples in a table for a distorted camera.
+         */
+        public static final int MAX_SAMPLES = 1 << 20;
+
+        final CameraModel camera;
+        final int imageWidth, imageHeight;
+        final double thetaFactor, phiFactor;
+        final double[] tanTheta, tanPhi;
+
+        /*
+         * Undistorted tangents at pixels (i*step, j*step), held at
+         * index j*nx + i, or null for a camera without distortion.
+         */
+        final int step, nx, ny;
+        final double[] rayTheta, rayPhi;
+
+        public RayTable(CameraModel camera, int imageWidth, int imageHeight) {
+            this.camera = camera;
+            this.imageWidth = imageWidth;
+            this.imageHeight = imageHeight;
+
+            thetaFactor = camera.fovH/(2*imageWidth)*Math.PI/180;
+            phiFactor = camera.fovV/(2*imageHeight)*Math.PI/180;
+
+            tanTheta = new double[imageWidth];
+            for (int x=0; x<imageWidth; x++)
+                tanTheta[x] = rawTanTheta(x);
+
+            tanPhi = new double[imageHeight];
+            for (int y=0; y<imageHeight; y++)
+                tanPhi[y] = rawTanPhi(y);
+
+            if (!camera.hasDistortion()) {
+                step = 0;
+                nx = 0;
+                ny = 0;
+                rayTheta = null;
+                rayPhi = null;
+                return;
+            }
+
+            int s = 1;
+            while ((long)(imageWidth/s + 2)*(imageHeight/s + 2) > MAX_SAMPLES)
+                s *= 2;
+            step = s;
+            nx = imageWidth/s + 2;
+            ny = imageHeight/s + 2;
+
+            rayTheta = new double[nx*ny];
+            rayPhi = new double[nx*ny];
+            double[] ray = new double[2];
+            for (int j=0; j<ny; j++) {
+                double yd = rawTanPhi(j*s);
+                for (int i=0; i<nx; i++) {
+                    camera.undistort(rawTanTheta(i*s), yd, ray);
+                    rayTheta[j*nx + i] = ray[0];
+                    rayPhi[j*nx + i] = ray[1];
+                }
+            }
+        }
+
+        /**
+         * Tangent of the horizontal angle of column x ignoring distortion.
+         */
+        private double rawTanTheta(double x) {
+            return Math.tan((x-0.5*imageWidth-camera.cx)*thetaFactor);
+        }
+
+        /**
+         * Tangent of the vertical angle of row y ignoring distortion.
+         */
+        private double rawTanPhi(double y) {
+            return Math.tan((y-0.5*imageHeight-camera.cy)*phiFactor);
+        }
+
+        public boolean matches(CameraModel camera, int imageWidth, int imageHeight) {
+            return this.camera.equals(camera)
+                && this.imageWidth == imageWidth
+                && this.imageHeight == imageHeight;
+        }
+
+        /**
+         * @param x
+         * @param y
+         * @return tangent of the horizontal angle of the ray through
+         * pixel (x,y).
+         */
+        public double tanTheta(int x, int y) {
+            if (rayTheta == null) {
+                if (x >= 0 && x < imageWidth)
+                    return tanTheta[x];
+                else
+                    return rawTanTheta(x);
+            }
+            return sample(rayTheta, 0, x, y);
+        }
+
+        /**
+         * Tangent of horizontal angle at sub-pixel location x of row y,
+         * obtained by linear interpolation between table entries.
+         *
+         * @param x
+         * @param y
+         * @return tangent
+         */
+        public double tanTheta(double x, int y) {
+            if (rayTheta == null) {
+                int x0 = (int)Math.floor(x);
+                if (x0 < 0 || x0+1 >= imageWidth)
+                    return rawTanTheta(x);
+
+                double f = x - x0;
+                return tanTheta[x0] + f*(tanTheta[x0+1] - tanTheta[x0]);
+            }
+            return sample(rayTheta, 0, x, y);
+        }
+
+        /**
+         * @param x
+         * @param y
+         * @return tangent of the vertical angle of the ray through
+         * pixel (x,y).
+         */
+        public double tanPhi(int x, int y) {
+            if (rayPhi == null) {
+                if (y >= 0 && y < imageHeight)
+                    return tanPhi[y];
+                else
+                    return rawTanPhi(y);
+            }
+            return sample(rayPhi, 1, x, y);
+        }
+
+        /**
+         * Bilinearly interpolate table at (x,y), falling back to direct
+         * undistortion outside the image.
+         */
+        private double sample(double[] table, int component, double x, double y) {
+            if (x < 0 || y < 0 || x > imageWidth-1 || y > imageHeight-1) {
+                double[] ray = new double[2];
+                camera.undistort(rawTanTheta(x), rawTanPhi(y), ray);
+                return ray[component];
+            }
+
+            double gx = x/step, gy = y/step;
+            int i = (int)gx, j = (int)gy;
+            double fx = gx - i, fy = gy - j;
+            int idx = j*nx + i;
+            if (fx == 0 && fy == 0)
+                return table[idx];
+
+            double a = table[idx] + fx*(table[idx+1] - table[idx]);
+            double b = table[idx+nx] + fx*(table[idx+nx+1] - table[idx+nx]);
+            return a + fy*(b - a);
+        }
+    }
+
+    public TriangulationEngine() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public TriangulationEngine(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Retrieve ray tables for the given cameras, rebuilding each only if
+     * its camera or the image size differ from those last used.
+     *
+     * @param left
+     * @param right
+     * @param imageWidth
+     * @param imageHeight
+     * @return left and right tables
+     */
+    public RayTable[] getRayTables(CameraModel left, CameraModel right,
+            int imageWidth, int imageHeight) {
+        RayTable[] t = rayTables;
+        if (t != null && t[0].matches(left, imageWidth, imageHeight)
+            && t[1].matches(right, imageWidth, imageHeight))
+            return t;
+
+        RayTable[] newTables = new RayTable[2];
+        for (int pidx=0; pidx<2; pidx++) {
+            CameraModel camera = pidx == 0 ? left : right;
+            if (t != null && t[pidx].matches(camera, imageWidth, imageHeight))
+                newTables[pidx] = t[pidx];
+            else if (pidx == 1 && right.equals(left))
+                newTables[1] = newTables[0];
+            else
+                newTables[pidx] = new RayTable(camera, imageWidth, imageHeight);
+        }
+        rayTables = newTables;
+        return newTables;
+    }
+
+    /**
+     * Triangulate every point in store.
+     *
+     * @param points
+     * @param left
+     * @param right
+     * @param sep
+     * @param imageWidth
+     * @param imageHeight
+     */
+    public void triangulate(PointStore points, CameraModel left, CameraModel right,
+            double sep, int imageWidth, int imageHeight) {
+        RayTable[] t = getRayTables(left, right, imageWidth, imageHeight);
+        triangulate(points.xL, points.yL, points.xR, points.yR,
+            points.X, points.Y, points.Z, 0, points.size(), sep, t[0], t[1]);
+    }
+
+    /**
+     * Triangulate points from (inclusive) to to (exclusive) of the
+     * given arrays using ray tables for the left and right cameras,
+     * splitting the work across the pool.
+     *
+     * @param xL
+     * @param yL
+     * @param xR
+     * @param yR
+     * @param X
+     * @param Y
+     * @param Z
+     * @param from
+     * @param to
+     * @param sep
+     * @param left
+     * @param right
+     */
+    public void triangulate(int[] xL, int[] yL, int[] xR, int[] yR,
+            double[] X, double[] Y, double[] Z,
+            int from, int to, double sep, RayTable left, RayTable right) {
+        if (to - from <= CHUNK_SIZE)
+            triangulateRange(xL, yL, xR, yR, X, Y, Z, from, to, sep, left, right);
+        else
+            pool.invoke(new RayTriangulateTask(xL, yL, xR, yR, X, Y, Z,
+                from, to, sep, left, right));
+    }
+
+    /**
+     * Serially triangulate points from (inclusive) to to (exclusive)
+     * using ray tables for the left and right cameras.
+     *
+     * @param xL
+     * @param yL
+     * @param xR
+     * @param yR
+     * @param X
+     * @param Y
+     * @param Z
+     * @param from
+     * @param to
+     * @param sep
+     * @param left
+     * @param right
+     */
+    public static void triangulateRange(int[] xL, int[] yL, int[] xR, int[] yR,
+            double[] X, double[] Y, double[] Z,
+            int from, int to, double sep, RayTable left, RayTable right) {
+        for (int i=from; i<to; i++) {
+            double tantheta0 = left.tanTheta(xL[i], yL[i]);
+            double tantheta1 = right.tanTheta(xR[i], yR[i]);
+            double tanphi = left.tanPhi(xL[i], yL[i]);
+
+            X[i] = sep/(tantheta1 - tantheta0) + 0.5*sep;
+            Y[i] = X[i]*tantheta1;
+            Z[i] = Y[i]*tanphi;
+        }
+    }
+
+    private static class RayTriangulateTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final int[] xL, yL, xR, yR;
+        final double[] X, Y, Z;
+        final int from, to;
+        final double sep;
+        final RayTable left, right;
+
+        RayTriangulateTask(int[] xL, int[] yL, int[] xR, int[] yR,
+                double[] X, double[] Y, double[] Z,
+                int from, int to, double sep, RayTable left, RayTable right) {
+            this.xL = xL;
+            this.yL = yL;
+            this.xR = xR;
+            this.yR = yR;
+            this.X = X;
+            this.Y = Y;
+            this.Z = Z;
+            this.from = from;
+            this.to = to;
+            this.sep = sep;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CHUNK_SIZE) {
+                triangulateRange(xL, yL, xR, yR, X, Y, Z, from, to, sep, left, right);
+                return;
+            }
+
+            int mid = (from + to) >>> 1;
+            invokeAll(new RayTriangulateTask(xL, yL, xR, yR, X, Y, Z, from, mid, sep, left, right),
+                new RayTriangulateTask(xL, yL, xR, yR, X, Y, Z, mid, to, sep, left, right));
+        }
+    }
+}
@@ -0,0 +1,766 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless HTTP service exposing triangulation to other local tools.
+ * Correspondences are POSTed to /triangulate, either as JSON
+ *
+ * <pre>
+ * {"fovH": 15, "fovV": 15, "sep": 0.3, "width": 1024, "height": 768,
+ *  "points": [[xL, yL, xR, yR], ...]}
+ * </pre>
+ *
+ * which is answered with {"points": [[X, Y, Z], ...]}, or (with content
+ * type application/octet-stream) in the little-endian binary form
+ *
+ * <pre>
+ * double fovH, fovV, sep
+ * int    width, height, n
+ * int    xL[n], yL[n], xR[n], yR[n]
+ * </pre>
+ *
+ * which is answered with double X[n], Y[n], Z[n].
+ *
+ * Requests are handled on virtual threads where the JVM provides them
+ * and on a cached pool of platform threads otherwise.  Small requests
+ * arriving within BATCH_WINDOW_MICROS of each other are gathered by a
+ * single batching thread, and those sharing the same parameters are
+ * concatenated and triangulated in one pass, so that many tiny
+ * requests still make use of the parallel triangulation path.
+ * Requests of CHUNK_SIZE points or more are triangulated directly.
+ *
+ * This class avoids any AWT or Swing dependencies.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class TriangulationService {
+
+    public static final int DEFAULT_PORT = 8765;
+
+    /**
+     * Time for which the batching thread waits for further requests
+     * after the first of a batch arrives.
+     */
+    public static final int BATCH_WINDOW_MICROS = 500;
+
+    /**
+     * Maximum number of points gathered into one batch.
+     */
+    public static final int MAX_BATCH_POINTS = 1 << 18;
+
+    /**
+     * Maximum number of points accepted in a single request.
+     */
+    public static final int MAX_REQUEST_POINTS = 1 << 24;
+
+    static final String BINARY_TYPE = "application/octet-stream";
+    static final String JSON_TYPE = "application/json";
+
+    /**
+     * Camera parameters of a request.  Requests may only share a batch
+     * if their parameters are equal.
+     */
+    static class Params {
+        final double fovH, fovV, sep;
+        final int width, height;
+
+        Params(double fovH, double fovV, double sep, int width, int height) {
+            this.fovH = fovH;
+            this.fovV = fovV;
+            this.sep = sep;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Params))
+                return false;
+
+            Params other = (Params)obj;
+            return fovH == other.fovH && fovV == other.fovV && sep == other.sep
+                && width == other.width && height == other.height;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = Double.doubleToLongBits(fovH);
+            h = 31*h + Double.doubleToLongBits(fovV);
+            h = 31*h + Double.doubleToLongBits(sep);
+            h = 31*h + width;
+            h = 31*h + height;
+            return (int)(h ^ (h >>> 32));
+        }
+    }
+
+    /**
+     * Triangulation request awaiting its results.
+     */
+    static class Request {
+        final Params params;
+        final int[] xL, yL, xR, yR;
+        final int n;
+
+        double[] X, Y, Z;
+        Throwable error;
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Request(Params params, int[] xL, int[] yL, int[] xR, int[] yR, int n) {
+            this.params = params;
+            this.xL = xL;
+            this.yL = yL;
+            this.xR = xR;
+            this.yR = yR;
+            this.n = n;
+        }
+    }
+
+    final TriangulationEngine engine;
+    final BlockingQueue<Request> pending;
+    final HttpServer server;
+    final ExecutorService handlers;
+    final Thread batcher;
+
+    long batchCount, batchedRequestCount;
+
+    /**
+     * Create service listening on the given address.  Call start() to
+     * begin accepting requests.
+     *
+     * @param address
+     * @throws IOException
+     */
+    public TriangulationService(InetSocketAddress address) throws IOException {
+        engine = new TriangulationEngine();
+        pending = new LinkedBlockingQueue<>();
+
+        server = HttpServer.create(address, 0);
+        handlers = newHandlerExecutor();
+        server.setExecutor(handlers);
+        server.createContext("/triangulate", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    handleTriangulate(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+
+        batcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true)
+                        processBatch();
+                } catch (InterruptedException ex) {
+                    // Service stopped.
+                }
+            }
+        }, "TriangulationService batcher");
+        batcher.setDaemon(true);
+    }
+
+    /**
+     * @return executor running a virtual thread per task if available,
+     * otherwise a cached pool of daemon platform threads.
+     */
+    static ExecutorService newHandlerExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)factory.invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "TriangulationService handler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    public void start() {
+        batcher.start();
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        batcher.interrupt();
+        handlers.shutdownNow();
+    }
+
+    /**
+     * @return address on which the service is listening.
+     */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * @return number of batches triangulated so far and the number of
+     * requests they contained.
+     */
+    public synchronized long[] getBatchStatistics() {
+        return new long[] {batchCount, batchedRequestCount};
+    }
+
+    private void handleTriangulate(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            sendError(exchange, 405, "Use POST.");
+            return;
+        }
+
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        boolean binary = contentType != null && contentType.startsWith(BINARY_TYPE);
+
+        Request request;
+        try {
+            byte[] body = readBody(exchange.getRequestBody());
+            request = binary ? parseBinary(body) : parseJson(body);
+        } catch (IllegalArgumentException ex) {
+            sendError(exchange, 400, ex.getMessage());
+            return;
+        }
+
+        try {
+            triangulate(request);
+        } catch (InterruptedException ex) {
+            sendError(exchange, 503, "Service stopping.");
+            return;
+        } catch (RuntimeException ex) {
+            sendError(exchange, 500, ex.toString());
+            return;
+        }
+
+        byte[] response = binary ? encodeBinary(request) : encodeJson(request);
+        exchange.getResponseHeaders().set("Content-Type",
+            binary ? BINARY_TYPE : JSON_TYPE);
+        exchange.sendResponseHeaders(200, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int code, String message)
+            throws IOException {
+        byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(code, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buf = new byte[1 << 16];
+        int count;
+        while ((count = in.read(buf)) >= 0) {
+            body.write(buf, 0, count);
+            if (body.size() > 16L*MAX_REQUEST_POINTS + 64)
+                throw new IllegalArgumentException("Request too large.");
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * Triangulate request, either directly or as part of a batch,
+     * returning once its results are available.
+     *
+     * @param request
+     * @throws InterruptedException
+     */
+    void triangulate(Request request) throws InterruptedException {
+        if (request.n >= TriangulationEngine.CHUNK_SIZE) {
+            List<Request> single = new ArrayList<>();
+            single.add(request);
+            triangulateGroup(single);
+            return;
+        }
+
+        pending.put(request);
+        request.done.await();
+        if (request.error instanceof RuntimeException)
+            throw (RuntimeException)request.error;
+        if (request.error != null)
+            throw new IllegalStateException("Triangulation failed.", request.error);
+    }
+
+    /**
+     * Gather pending requests into a batch and triangulate them.
+     *
+     * @throws InterruptedException
+     */
+    private void processBatch() throws InterruptedException {
+        Request first = pending.take();
+        List<Request> batch = new ArrayList<>();
+        batch.add(first);
+        int total = first.n;
+
+        long deadline = System.nanoTime()
+            + TimeUnit.MICROSECONDS.toNanos(BATCH_WINDOW_MICROS);
+        while (total < MAX_BATCH_POINTS) {
+            Request next = pending.poll(deadline - System.nanoTime(),
+                TimeUnit.NANOSECONDS);
+            if (next == null)
+                break;
+            batch.add(next);
+            total += next.n;
+        }
+
+        Map<Params, List<Request>> groups = new LinkedHashMap<>();
+        for (Request request : batch) {
+            List<Request> group = groups.get(request.params);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(request.params, group);
+            }
+            group.add(request);
+        }
+
+        for (List<Request> group : groups.values()) {
+            try {
+                triangulateGroup(group);
+            } catch (Throwable ex) {
+                // Errors such as OutOfMemoryError fail only this group,
+                // leaving the batcher to serve later requests.
+                for (Request request : group)
+                    request.error = ex;
+            } finally {
+                for (Request request : group)
+                    request.done.countDown();
+            }
+        }
+
+        synchronized (this) {
+            batchCount += 1;
+            batchedRequestCount += batch.size();
+        }
+    }
+
+    /**
+     * Triangulate requests sharing the same parameters in a single pass.
+     */
+    private void triangulateGroup(List<Request> group) {
+        Params params = group.get(0).params;
+        int total = 0;
+        for (Request request : group)
+            total += request.n;
+
+        int[] xL, yL, xR, yR;
+        if (group.size() == 1) {
+            Request request = group.get(0);
+            xL = request.xL;
+            yL = request.yL;
+            xR = request.xR;
+            yR = request.yR;
+        } else {
+            xL = new int[total];
+            yL = new int[total];
+            xR = new int[total];
+            yR = new int[total];
+            int off = 0;
+            for (Request request : group) {
+                System.arraycopy(request.xL, 0, xL, off, request.n);
+                System.arraycopy(request.yL, 0, yL, off, request.n);
+                System.arraycopy(request.xR, 0, xR, off, request.n);
+                System.arraycopy(request.yR, 0, yR, off, request.n);
+                off += request.n;
+            }
+        }
+
+        double[] X = new double[total];
+        double[] Y = new double[total];
+        double[] Z = new double[total];
+
+        long t0 = Metrics.start();
+        CameraModel camera = new CameraModel(params.fovH, params.fovV);
+        TriangulationEngine.RayTable[] t = engine.getRayTables(camera, camera,
+            params.width, params.height);
+        engine.triangulate(xL, yL, xR, yR, X, Y, Z, 0, total, params.sep, t[0], t[1]);
+        Metrics.stop(Metrics.Probe.TRIANGULATE, t0);
+
+        if (group.size() == 1) {
+            Request request = group.get(0);
+            request.X = X;
+            request.Y = Y;
+            request.Z = Z;
+            return;
+        }
+
+        int off = 0;
+        for (Request request : group) {
+            request.X = new double[request.n];
+            request.Y = new double[request.n];
+            request.Z = new double[request.n];
+            System.arraycopy(X, off, request.X, 0, request.n);
+            System.arraycopy(Y, off, request.Y, 0, request.n);
+            System.arraycopy(Z, off, request.Z, 0, request.n);
+            off += request.n;
+        }
+    }
+
+    private static Params checkParams(double fovH, double fovV, double sep,
+            int width, int height) {
+        if (!(fovH > 0) || !(fovV > 0) || width <= 0 || height <= 0)
+            throw new IllegalArgumentException(
+                "Fields of view and image size must be positive.");
+        return new Params(fovH, fovV, sep, width, height);
+    }
+
+    static Request parseBinary(byte[] body) {
+        ByteBuffer buffer = ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < 36)
+            throw new IllegalArgumentException("Truncated request header.");
+
+        double fovH = buffer.getDouble();
+        double fovV = buffer.getDouble();
+        double sep = buffer.getDouble();
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        int n = buffer.getInt();
+        if (n < 0 || n > MAX_REQUEST_POINTS || buffer.remaining() != 16L*n)
+            throw new IllegalArgumentException("Request body does not hold "
+                + n + " points.");
+
+        int[][] coords = new int[4][n];
+        for (int[] array : coords) {
+            buffer.asIntBuffer().get(array);
+            buffer.position(buffer.position() + 4*n);
+        }
+
+        return new Request(checkParams(fovH, fovV, sep, width, height),
+            coords[0], coords[1], coords[2], coords[3], n);
+    }
+
+    static byte[] encodeBinary(Request request) {
+        int n = request.n;
+        ByteBuffer buffer = ByteBuffer.allocate(24*n).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asDoubleBuffer().put(request.X, 0, n);
+        buffer.position(8*n);
+        buffer.asDoubleBuffer().put(request.Y, 0, n);
+        buffer.position(16*n);
+        buffer.asDoubleBuffer().put(request.Z, 0, n);
+        return buffer.array();
+    }
+
+    static Request parseJson(byte[] body) {
+        Object value = new JsonParser(new String(body, StandardCharsets.UTF_8)).parse();
+        if (!(value instanceof Map))
+            throw new IllegalArgumentException("Expected a JSON object.");
+        Map<?,?> object = (Map<?,?>)value;
+
+        Params params = checkParams(getNumber(object, "fovH"),
+            getNumber(object, "fovV"), getNumber(object, "sep"),
+            (int)getNumber(object, "width"), (int)getNumber(object, "height"));
+
+        Object points = object.get("points");
+        if (!(points instanceof List))
+            throw new IllegalArgumentException("Missing \"points\" array.");
+        List<?> list = (List<?>)points;
+
+        int n = list.size();
+        if (n > MAX_REQUEST_POINTS)
+            throw new IllegalArgumentException("Too many points.");
+        int[][] coords = new int[4][n];
+        for (int i=0; i<n; i++) {
+            Object point = list.get(i);
+            if (!(point instanceof List) || ((List<?>)point).size() != 4)
+                throw new IllegalArgumentException(
+                    "Each point must be an array [xL, yL, xR, yR].");
+            for (int k=0; k<4; k++) {
+                Object c = ((List<?>)point).get(k);
+                if (!(c instanceof Double))
+                    throw new IllegalArgumentException("Non-numeric coordinate.");
+                coords[k][i] = (int)Math.round((Double)c);
+            }
+        }
+
+        return new Request(params, coords[0], coords[1], coords[2], coords[3], n);
+    }
+
+    private static double getNumber(Map<?,?> object, String key) {
+        Object value = object.get(key);
+        if (!(value instanceof Double))
+            throw new IllegalArgumentException("Missing numeric \"" + key + "\".");
+        return (Double)value;
+    }
+
+    static byte[] encodeJson(Request request) {
+        StringBuilder sb = new StringBuilder(64*request.n + 16);
+        sb.append("{\"points\":[");
+        for (int i=0; i<request.n; i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append('[');
+            appendNumber(sb, request.X[i]);
+            sb.append(',');
+            appendNumber(sb, request.Y[i]);
+            sb.append(',');
+            appendNumber(sb, request.Z[i]);
+            sb.append(']');
+        }
+        sb.append("]}\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void appendNumber(StringBuilder sb, double value) {
+        // JSON has no representation of infinities or NaN.
+        if (Double.isNaN(value) || Double.isInfinite(value))
+            sb.append("null");
+        else
+            sb.append(value);
+    }
+
+    /**
+     * Minimal JSON parser producing Maps, Lists, Strings, Doubles,
+     * Booleans and nulls.
+     */
+    static class JsonParser {
+
+        /**
+         * Maximum nesting depth of arrays and objects.
+         */
+        static final int MAX_DEPTH = 64;
+
+        final String s;
+        int pos;
+        int depth;
+
+        JsonParser(String s) {
+            this.s = s;
+        }
+
+        Object parse() {
+            Object value = parseValue();
+            skipSpace();
+            if (pos != s.length())
+                throw error("Unexpected trailing characters");
+            return value;
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("Malformed JSON: " + message
+                + " at offset " + pos + ".");
+        }
+
+        private void skipSpace() {
+            while (pos < s.length() && Character.isWhitespace(s.charAt(pos)))
+                pos += 1;
+        }
+
+        private void expect(char c) {
+            skipSpace();
+            if (pos >= s.length() || s.charAt(pos) != c)
+                throw error("Expected '" + c + "'");
+            pos += 1;
+        }
+
+        private boolean consume(char c) {
+            skipSpace();
+            if (pos < s.length() && s.charAt(pos) == c) {
+                pos += 1;
+                return true;
+            }
+            return false;
+        }
+
+        private Object parseValue() {
+            skipSpace();
+            if (pos >= s.length())
+                throw error("Unexpected end of input");
+
+            char c = s.charAt(pos);
+            if ((c == '{' || c == '[') && depth >= MAX_DEPTH)
+                throw error("Nesting too deep");
+
+            switch (c) {
+                case '{':
+                    pos += 1;
+                    depth += 1;
+                    Map<String,Object> object = new LinkedHashMap<>();
+                    if (!consume('}')) {
+                        do {
+                            skipSpace();
+                            String key = parseString();
+                            expect(':');
+                            object.put(key, parseValue());
+                        } while (consume(','));
+                        expect('}');
+                    }
+                    depth -= 1;
+                    return object;
+
+                case '[':
+                    pos += 1;
+                    depth += 1;
+                    List<Object> array = new ArrayList<>();
+                    if (!consume(']')) {
+                        do {
+                            array.add(parseValue());
+                        } while (consume(','));
+                        expect(']');
+                    }
+                    depth -= 1;
+                    return array;
+
+                case '"':
+                    return parseString();
+
+                default:
+                    if (s.startsWith("true", pos)) {
+                        pos += 4;
+                        return Boolean.TRUE;
+                    }
+                    if (s.startsWith("false", pos)) {
+                        pos += 5;
+                        return Boolean.FALSE;
+                    }
+                    if (s.startsWith("null", pos)) {
+                        pos += 4;
+                        return null;
+                    }
+                    return parseNumber();
+            }
+        }
+
+        private String parseString() {
+            if (pos >= s.length() || s.charAt(pos) != '"')
+                throw error("Expected string");
+            pos += 1;
+
+            StringBuilder sb = new StringBuilder();
+            while (pos < s.length()) {
+                char c = s.charAt(pos++);
+                if (c == '"')
+                    return sb.toString();
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if (pos >= s.length())
+                    break;
+                char e = s.charAt(pos++);
+                switch (e) {
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'u':
+                        if (pos + 4 > s.length())
+                            throw error("Truncated escape");
+                        sb.append((char)Integer.parseInt(s.substring(pos, pos+4), 16));
+                        pos += 4;
+                        break;
+                    default: sb.append(e);
+                }
+            }
+            throw error("Unterminated string");
+        }
+
+        private Double parseNumber() {
+            int start = pos;
+            while (pos < s.length() && "+-0123456789.eE".indexOf(s.charAt(pos)) >= 0)
+                pos += 1;
+            if (pos == start)
+                throw error("Unexpected character");
+            try {
+                return Double.valueOf(s.substring(start, pos));
+            } catch (NumberFormatException ex) {
+                throw error("Bad number");
+            }
+        }
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: TriangulationService [-port N] [-bind ADDRESS]");
+        System.err.println();
+        System.err.println("Listens on the loopback interface unless -bind is given.");
+    }
+
+    public static void main(String[] args) {
+        int port = DEFAULT_PORT;
+        String bind = null;
+
+        try {
+            for (int i=0; i<args.length; i++) {
+                switch (args[i]) {
+                    case "-port":
+                        port = Integer.parseInt(args[++i]);
+                        break;
+                    case "-bind":
+                        bind = args[++i];
+                        break;
+                    case "-help":
+                        printUsage();
+                        return;
+                    default:
+                        throw new IllegalArgumentException("Unknown argument " + args[i]);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException ex) {
+            System.err.println("Error parsing arguments: " + ex.getMessage());
+            printUsage();
+            System.exit(1);
+        }
+
+        try {
+            InetAddress address = bind != null
+                ? InetAddress.getByName(bind) : InetAddress.getLoopbackAddress();
+            TriangulationService service = new TriangulationService(
+                new InetSocketAddress(address, port));
+            service.start();
+            System.err.println("Listening on http://"
+                + service.getAddress().getHostString() + ":"
+                + service.getAddress().getPort() + "/triangulate");
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+}
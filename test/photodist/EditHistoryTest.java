@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Tests of undo/redo history, in particular when old steps are
+ * discarded to keep within the maximum number of steps.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class EditHistoryTest {
+
+    /**
+     * @return points and path boundaries of geom as a string.
+     */
+    static String describe(Geometry geom) {
+        PointStore points = geom.getPoints();
+        StringBuilder sb = new StringBuilder();
+        for (int p=0; p<points.getPathCount(); p++) {
+            sb.append('[');
+            for (int i=points.getPathStart(p); i<points.getPathEnd(p); i++) {
+                sb.append(' ').append(points.getX(i, 0)).append(',')
+                    .append(points.getY(i, 0)).append(':')
+                    .append(points.getX(i, 1)).append(',')
+                    .append(points.getY(i, 1));
+            }
+            sb.append(" ]");
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void trimmedAppendReturnsRecordPayload() {
+        EditHistory history = new EditHistory(4);
+        for (int k=0; k<20; k++) {
+            int off = history.append(EditHistory.MOVE_POINT, 6);
+            for (int j=0; j<6; j++)
+                history.log[off+j] = 100*k + j;
+
+            assertEquals(6, history.log[off-1]);
+            assertEquals(6, history.log[off+6]);
+        }
+
+        int steps = history.getUndoSteps();
+        for (int k=19; k>19-steps; k--) {
+            int off = history.popUndo();
+            for (int j=0; j<6; j++)
+                assertEquals(100*k + j, history.log[off+j]);
+        }
+        assertFalse(history.canUndo());
+    }
+
+    @Test
+    public void undoRedoAcrossTrimmedSteps() {
+        Geometry geom = new Geometry();
+        geom.getHistory().setMaxSteps(4);
+
+        List<String> states = new ArrayList<>();
+        states.add(describe(geom));
+        for (int p=0; p<6; p++) {
+            geom.addPoint(10*p, 20*p, 10*p + 5, 20*p);
+            states.add(describe(geom));
+            geom.addPoint(10*p + 1, 20*p + 1, 10*p + 6, 20*p + 1);
+            states.add(describe(geom));
+            geom.endPath();
+            states.add(describe(geom));
+        }
+
+        int last = states.size() - 1;
+        int undone = 0;
+        while (geom.undo()) {
+            undone += 1;
+            assertEquals(states.get(last - undone), describe(geom));
+        }
+        assertEquals(4, undone);
+
+        while (geom.redo()) {
+            undone -= 1;
+            assertEquals(states.get(last - undone), describe(geom));
+        }
+        assertEquals(0, undone);
+    }
+}
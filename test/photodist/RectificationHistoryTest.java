@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015 Tim Vaughan (tgvaughan@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package photodist;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests of undo/redo of edits made while the images are rectified.
+ *
+ * @author Tim Vaughan (tgvaughan@gmail.com)
+ */
+public class RectificationHistoryTest {
+
+    static final int WIDTH = 640, HEIGHT = 480;
+
+    /**
+     * Rotation of the right camera by a few degrees about the vertical.
+     */
+    static double[] rotation() {
+        double c = Math.cos(0.05), s = Math.sin(0.05);
+        return new double[] {c, 0, s, 0, 1, 0, -s, 0, c};
+    }
+
+    static int[] rectified(Rectification rect, int pidx, int x, int y) {
+        double[] p = new double[2];
+        rect.toRectified(pidx, x, y, p);
+        return new int[] {(int)Math.round(p[0]), (int)Math.round(p[1])};
+    }
+
+    static int[] point(Geometry geom, int i, int pidx) {
+        return new int[] {geom.getPoints().getX(i, pidx),
+            geom.getPoints().getY(i, pidx)};
+    }
+
+    static void assertPoint(int[] expected, int[] actual) {
+        assertEquals(expected[0], actual[0]);
+        assertEquals(expected[1], actual[1]);
+    }
+
+    @Test
+    public void undoMoveAfterCalibrationChange() {
+        CameraModel camera = new CameraModel(60, 45);
+        Geometry geom = new Geometry();
+        geom.setImageSize(WIDTH, HEIGHT);
+        geom.setCameras(camera, camera);
+        for (int i=0; i<4; i++)
+            geom.addPoint(100 + 50*i, 100 + 40*i, 130 + 50*i, 100 + 40*i);
+        geom.endPath();
+
+        geom.setRectification(new Rectification(camera, camera,
+            WIDTH, HEIGHT, rotation()));
+        geom.movePoint(0, 0, 120, 130);
+        geom.closeEdit();
+
+        CameraModel distorted = new CameraModel(60, 45, 0, 0, 0.5, 0, 0, 0);
+        geom.setCameras(distorted, camera);
+        Rectification rect = geom.getRectification();
+        assertSame(distorted, rect.getCamera(0));
+        int[] moved = point(geom, 0, 0);
+
+        // The move is undone to the original location in the new
+        // rectified images, not its location in the old ones.
+        geom.undo();
+        assertPoint(rectified(rect, 0, 100, 100), point(geom, 0, 0));
+
+        geom.redo();
+        assertPoint(moved, point(geom, 0, 0));
+
+        // Undoing the rectification restores the original points.
+        geom.undo();
+        geom.undo();
+        assertEquals(null, geom.getRectification());
+        assertSame(distorted, geom.getCamera(0));
+        for (int i=0; i<4; i++) {
+            assertPoint(new int[] {100 + 50*i, 100 + 40*i}, point(geom, i, 0));
+            assertPoint(new int[] {130 + 50*i, 100 + 40*i}, point(geom, i, 1));
+        }
+    }
+
+    @Test
+    public void redoAddedPointAfterCalibrationChange() {
+        CameraModel camera = new CameraModel(60, 45);
+        Geometry geom = new Geometry();
+        geom.setImageSize(WIDTH, HEIGHT);
+        geom.setCameras(camera, camera);
+        geom.setRectification(new Rectification(camera, camera,
+            WIDTH, HEIGHT, rotation()));
+
+        geom.addPoint(100, 80, 130, 80);
+        int[] added = point(geom, 0, 1);
+        geom.undo();
+
+        // Added in the old rectified images, so redone at the same
+        // original location in the new ones.
+        double[] p = new double[2];
+        geom.getRectification().fromRectified(1, added[0], added[1], p);
+        int[] original = {(int)Math.round(p[0]), (int)Math.round(p[1])};
+
+        CameraModel distorted = new CameraModel(60, 45, 0, 0, 0.5, 0, 0, 0);
+        geom.setCameras(camera, distorted);
+        geom.redo();
+        assertPoint(rectified(geom.getRectification(), 1, original[0], original[1]),
+            point(geom, 0, 1));
+    }
+}